@@ -4,10 +4,28 @@ import java.net.URI;
 import java.util.Optional;
 
 import cartago.infrastructure.CartagoDistributedEnvironment;
+import cartago.infrastructure.VertxRuntime;
 
 public class CreateWorkspace {
 
     public static void main(String[] args) throws Exception {
+        /* the runtime is configured before being started by the environment */
+        try {
+        	if (hasOption(args, "-event-loops")) {
+        		VertxRuntime.setEventLoops(Integer.parseInt(getParam(args, "-event-loops")));
+        	}
+        	if (hasOption(args, "-worker-threads")) {
+        		VertxRuntime.setWorkerPoolSize(Integer.parseInt(getParam(args, "-worker-threads")));
+        	}
+        	if (hasOption(args, "-instances")) {
+        		VertxRuntime.setServiceInstances(Integer.parseInt(getParam(args, "-instances")));
+        	}
+        } catch (NumberFormatException ex) {
+        	System.err.println("Invalid number of event loops, worker threads or instances.");
+        	System.exit(1);
+        }
+        VertxRuntime.setPreferNativeTransport(hasFlag(args, "-native"));
+
         CartagoDistributedEnvironment env = CartagoDistributedEnvironment.getInstance();
     	
         String name = CartagoDistributedEnvironment.WSP_DEFAULT_NAME;
@@ -54,6 +72,15 @@ public class CreateWorkspace {
 		return false;
 	}
 
+	private static boolean hasFlag(String[] args, String arg){
+		for (int i = 0; i<args.length; i++){
+			if (args[i].equals(arg)){
+				return true;
+			} 
+		}
+		return false;
+	}
+
 	private static String getParam(String[] args, String arg){
 		for (int i = 0; i<args.length; i++){
 			if (args[i].equals(arg) && i<args.length-1){
@@ -0,0 +1,239 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes the requests of the remote agents of a service,
+ * according to its dispatch strategy.
+ *
+ * Each session gets an executor keeping the order of its requests.
+ * The time requests wait before being executed is recorded.
+ *
+ */
+public class ActionDispatcher {
+
+	private static final Executor INLINE = Runnable::run;
+
+	private final DispatchStrategy strategy;
+	/* single threaded workers of the WORKER_POOL strategy */
+	private final ExecutorService[] workers;
+	/* pool of the PER_SESSION and VIRTUAL strategies and of the joins */
+	private final ExecutorService pool;
+	private final AtomicInteger threads;
+
+	private final AtomicLong dispatched;
+	private final AtomicLong totalQueueTime;
+	private final AtomicLong maxQueueTime;
+
+	/**
+	 *
+	 * @param strategy
+	 * @param nThreads number of threads, for the strategies using a pool
+	 */
+	public ActionDispatcher(DispatchStrategy strategy, int nThreads) {
+		this.strategy = strategy;
+		threads = new AtomicInteger();
+		if (strategy == DispatchStrategy.WORKER_POOL) {
+			workers = new ExecutorService[nThreads];
+			for (int i = 0; i < nThreads; i++) {
+				workers[i] = Executors.newSingleThreadExecutor(this::newThread);
+			}
+		} else {
+			workers = null;
+		}
+		if (strategy == DispatchStrategy.INLINE) {
+			pool = null;
+		} else if (strategy == DispatchStrategy.VIRTUAL && VirtualThreads.isSupported()) {
+			pool = VirtualThreads.newThreadPerTaskExecutor("cartago-dispatcher-");
+		} else {
+			/* VIRTUAL falls back to PER_SESSION before Java 21 */
+			pool = Executors.newFixedThreadPool(nThreads, this::newThread);
+		}
+		dispatched = new AtomicLong();
+		totalQueueTime = new AtomicLong();
+		maxQueueTime = new AtomicLong();
+	}
+
+	private Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "cartago-dispatcher-" + threads.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+	public DispatchStrategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Executor of the requests of a session
+	 *
+	 * @param sessionId
+	 * @return
+	 */
+	public Executor forSession(String sessionId) {
+		switch (strategy) {
+		case WORKER_POOL:
+			return workers[Math.floorMod(sessionId.hashCode(), workers.length)];
+		case PER_SESSION:
+		case VIRTUAL:
+			return new SerialExecutor(pool);
+		default:
+			return INLINE;
+		}
+	}
+
+	/**
+	 * Whether the executor runs the requests in the thread of the caller
+	 *
+	 * @param executor
+	 * @return
+	 */
+	public boolean isInline(Executor executor) {
+		return executor == INLINE;
+	}
+
+	/**
+	 * Executor of the joins, not ordered
+	 *
+	 * @return
+	 */
+	Executor forJoins() {
+		return pool != null ? pool : INLINE;
+	}
+
+	/**
+	 * Execute a request, recording the time it is queued
+	 *
+	 * @param executor executor of the session or of the joins
+	 * @param task
+	 */
+	public void execute(Executor executor, Runnable task) {
+		if (executor == INLINE) {
+			dispatched.incrementAndGet();
+			run(task);
+			return;
+		}
+		long queued = System.nanoTime();
+		executor.execute(() -> {
+			long waited = System.nanoTime() - queued;
+			dispatched.incrementAndGet();
+			totalQueueTime.addAndGet(waited);
+			maxQueueTime.accumulateAndGet(waited, Math::max);
+			run(task);
+		});
+	}
+
+	private static void run(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Number of requests executed
+	 *
+	 * @return
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Mean time (ms) the requests waited to be executed
+	 *
+	 * @return
+	 */
+	public double getMeanQueueTime() {
+		long n = dispatched.get();
+		return n > 0 ? totalQueueTime.get() / 1e6 / n : 0;
+	}
+
+	/**
+	 * Max time (ms) a request waited to be executed
+	 *
+	 * @return
+	 */
+	public double getMaxQueueTime() {
+		return maxQueueTime.get() / 1e6;
+	}
+
+	public void shutdown() {
+		if (workers != null) {
+			for (ExecutorService worker: workers) {
+				worker.shutdown();
+			}
+		}
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Executes the tasks of a session one at a time, in order,
+	 * on the threads of a shared pool
+	 */
+	static class SerialExecutor implements Executor {
+
+		/* tasks run before giving the thread to the other sessions */
+		private static final int MAX_DRAIN = 64;
+
+		private final Executor pool;
+		private final ConcurrentLinkedQueue<Runnable> tasks;
+		private final AtomicBoolean scheduled;
+
+		SerialExecutor(Executor pool) {
+			this.pool = pool;
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			scheduled = new AtomicBoolean();
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+				pool.execute(this::drain);
+			}
+		}
+
+		private void drain() {
+			Runnable task;
+			int n = 0;
+			while (n++ < MAX_DRAIN && (task = tasks.poll()) != null) {
+				run(task);
+			}
+			scheduled.set(false);
+			/* tasks left or added after the last poll */
+			schedule();
+		}
+	}
+}
@@ -19,9 +19,11 @@ package cartago.infrastructure;
 
 import cartago.*;
 import cartago.events.*;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import static cartago.infrastructure.JsonUtil.*;
@@ -29,6 +31,8 @@ import static cartago.infrastructure.JsonUtil.*;
 import java.io.Serializable;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 /**
  * Class used to adapt Agent Body remote interface to Agent Body
  * interface.
@@ -40,23 +44,124 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 
 	private WorkspaceId wspId;
 	private WebSocket ws;
+	/* connection shared with other sessions, if multiplexed */
+	private MuxConnection mux;
+	private String sessionId;
+	/* secret of the session given by the node, needed to resume it */
+	private volatile String sessionToken;
+	private WireCodec codec;
+	/* parameters stored inline, if agreed */
+	private boolean inline;
+	/* dictionaries for the frames sent and received, if agreed */
+	private WireDictionary outDict;
+	private WireDictionary inDict;
+	/* last known copy of the observable properties, if deltas are agreed */
+	private ObsPropertyDeltas deltas;
+	private boolean conflation;
+	private boolean filtering;
+	/* flow control: events received and not granted back yet, if credits are agreed */
+	private boolean creditFlow;
+	private AtomicInteger ungranted;
+	private int creditWindow = CREDIT_WINDOW;
+	private volatile boolean paused;
+	/* number of the last event received and handler of a dropped connection, if resumption is agreed */
+	private boolean resumable;
+	private volatile long lastSeq;
+	private Handler<AgentBodyProxy> lostHandler;
+	private volatile boolean quitting;
+	/* focus shared with the other agents of this node, if enabled */
+	private SharedSubscriptions shared;
+	private PerceptFilters sharedFilters;
 	private ICartagoCallback eventListener;
+	/* actions sent and not completed yet, by id, expired by the timer wheel of the layer */
+	private final LongObjectHashMap<PendingAction> pending = new LongObjectHashMap<PendingAction>(16);
+	/* actions failed by the proxy, whose late outcome is dropped - the oldest are forgotten first */
+	private final BoundedLongSet failed = new BoundedLongSet(MAX_FAILED_KEPT);
+	private TimerWheel timeouts;
+	private final AtomicLong eventIds = new AtomicLong();
     // private String address;
 	private Vertx vertx;
 	private int port;
 	private AgentId aid;
 	
+	/* max events the workspace can send before the agent consumes them */
+	static final int CREDIT_WINDOW = 1024;
+	
+	/* time (ms) given to the workspace beyond the timeout of an action to report its failure */
+	static final long ACTION_TIMEOUT_GRACE = 1000;
+	/* failed actions remembered to drop their late outcome */
+	static final int MAX_FAILED_KEPT = 4096;
+	
 	AgentBodyProxy(Vertx vertx, int port) {
+		this(vertx, port, null);
+	}
+
+	/**
+	 * 
+	 * @param vertx
+	 * @param port
+	 * @param timeouts wheel expiring the actions not completed in time, null for none
+	 */
+	AgentBodyProxy(Vertx vertx, int port, TimerWheel timeouts) {
 		this.vertx = vertx;
 		this.port = port;
+		this.timeouts = timeouts;
 	}
 
-	public void init(WebSocket ws, WorkspaceId wspId, ICartagoCallback eventListener) {
+	public void init(WebSocket ws, WorkspaceId wspId, ICartagoCallback eventListener, WireProtocol protocol) {
+		init(ws, null, wspId, eventListener, protocol);
+	}
+
+	void init(WebSocket ws, String sessionId, WorkspaceId wspId, ICartagoCallback eventListener, WireProtocol protocol) {
+		attach(ws);
+		this.sessionId = sessionId;
+		setup(wspId, eventListener, protocol);
+	}
+
+	/**
+	 * Init a session multiplexed with others on the same connection
+	 */
+	void init(MuxConnection mux, String sessionId, WorkspaceId wspId, ICartagoCallback eventListener, WireProtocol protocol) {
+		this.mux = mux;
+		this.sessionId = sessionId;
+		setup(wspId, eventListener, protocol);
+	}
+
+	private void attach(WebSocket ws) {
 		this.ws = ws;
+		ws.handler(this::handleFrame);
+		ws.closeHandler(v -> {
+			if (this.ws == ws) {
+				connectionLost();
+			}
+		});
+	}
+
+	private void setup(WorkspaceId wspId, ICartagoCallback eventListener, WireProtocol protocol) {
+		this.codec = protocol.getCodec();
+		inline = protocol.has(WireProtocol.INLINE);
+		if (protocol.has(WireProtocol.DICTIONARY)) {
+			outDict = new WireDictionary();
+			inDict = new WireDictionary();
+		}
+		if (protocol.has(WireProtocol.DELTA)) {
+			deltas = new ObsPropertyDeltas();
+		}
+		conflation = protocol.has(WireProtocol.CONFLATION);
+		filtering = protocol.has(WireProtocol.FILTER);
 		// this.address = address;
 		this.eventListener = eventListener;
 		this.wspId = wspId;
-		ws.handler(this::handleEvent);
+		resumable = protocol.has(WireProtocol.RESUME) && sessionId != null;
+		creditFlow = protocol.has(WireProtocol.CREDIT);
+		if (creditFlow) {
+			/* what the percept queue of the agent can take */
+			if (eventListener instanceof AgentSession) {
+				creditWindow = ((AgentSession) eventListener).getCreditWindow();
+			}
+			ungranted = new AtomicInteger();
+			sendCredit(creditWindow);
+		}
 	}
 	
 	private void readEventInfo(JsonObject obj, CartagoEvent ev) {
@@ -64,61 +169,357 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 		obj.put("timestamp", ev.getTimestamp());
 	}
 
-	private void handleEvent(Buffer buffer) {
+	private void handleFrame(Buffer buffer) {
+		if (buffer.length() == 0) {
+			/* ping, answered by vertx */
+			return;
+		}
+		try {
+			handleFrame(WireCodec.decode(buffer));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	void handleFrame(JsonObject frame) {
+		try {
+			int n = 1;
+			if ("batch".equals(frame.getString("evType"))) {
+				JsonArray events = frame.getJsonArray("events");
+				n = events.size();
+				for (int i = 0; i < n; i++) {
+					handleEvent(events.getJsonObject(i));
+				}
+			} else {
+				handleEvent(frame);
+			}
+			if (creditFlow) {
+				/* credits are granted back in chunks, not for every frame */
+				if (ungranted.addAndGet(n) >= Math.max(1, creditWindow / 4) && !isBacklogged()) {
+					perceptsDrained();
+				}
+			} else if (!paused && mux == null && isBacklogged()) {
+				/* old workspaces do not use credits: stop reading, TCP will do the rest */
+				paused = true;
+				ws.pause();
+				/* the agent could have drained the percepts meanwhile */
+				if (!isBacklogged()) {
+					perceptsDrained();
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Set the handler called when the connection drops and the session can be resumed
+	 * 
+	 * @param handler
+	 */
+	void onConnectionLost(Handler<AgentBodyProxy> handler) {
+		lostHandler = handler;
+	}
+
+	/* the shared connection has been closed */
+	void connectionLost(MuxConnection from) {
+		if (mux == from) {
+			connectionLost();
+		}
+	}
+
+	private void connectionLost() {
+		if (resumable && !quitting && lostHandler != null) {
+			log("Connection lost, resuming session " + sessionId);
+			lostHandler.handle(this);
+		} else if (!quitting) {
+			sessionLost();
+		}
+	}
+
+	/**
+	 * The session cannot go on: the pending actions fail
+	 */
+	void sessionLost() {
+		List<PendingAction> lost;
+		synchronized (pending) {
+			lost = pending.clear();
+		}
+		for (PendingAction action: lost) {
+			action.cancel();
+			fail(action, "connection lost", "connection_lost");
+		}
+	}
+
+	/* the action is tracked before being sent, not to miss a quick reply */
+	private void track(long actionId, Op op, long timeout) {
+		PendingAction action = new PendingAction(actionId, op);
+		synchronized (pending) {
+			pending.put(actionId, action);
+		}
+		if (timeouts != null && timeout > 0 && timeout < Long.MAX_VALUE - ACTION_TIMEOUT_GRACE) {
+			action.timeout = timeouts.schedule(timeout + ACTION_TIMEOUT_GRACE, () -> expired(actionId));
+		}
+	}
+
+	private void untrack(long actionId) {
+		PendingAction action;
+		synchronized (pending) {
+			action = pending.remove(actionId);
+		}
+		if (action != null) {
+			action.cancel();
+		}
+	}
+
+	/**
+	 * An action has been completed
+	 * 
+	 * @param actionId
+	 * @return false if the action has already been failed by the proxy
+	 */
+	private boolean completed(long actionId) {
+		PendingAction action;
+		synchronized (pending) {
+			action = pending.remove(actionId);
+			if (action == null) {
+				return !failed.remove(actionId);
+			}
+		}
+		action.cancel();
+		return true;
+	}
+
+	private void expired(long actionId) {
+		PendingAction action;
+		synchronized (pending) {
+			action = pending.remove(actionId);
+		}
+		if (action != null) {
+			fail(action, "action timeout", "timeout");
+		}
+	}
+
+	private void fail(PendingAction action, String msg, String reason) {
+		synchronized (pending) {
+			failed.add(action.actionId);
+		}
+		try {
+			eventListener.notifyCartagoEvent(new ActionFailedEvent(eventIds.incrementAndGet(), action.actionId, action.op,
+					msg, new Tuple(reason), System.currentTimeMillis()));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/* number of actions sent and not completed yet */
+	int getPendingActions() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * The session has been resumed on a new connection
+	 */
+	synchronized void resumed(WebSocket ws) {
+		mux = null;
+		attach(ws);
+		restart();
+	}
+
+	/**
+	 * The session has been resumed on a connection shared with other sessions
+	 */
+	synchronized void resumed(MuxConnection mux) {
+		ws = null;
+		this.mux = mux;
+		restart();
+	}
+
+	/*
+	 * The requests sent while disconnected are lost: the dictionary
+	 * restarts, a new credit window is granted
+	 */
+	private void restart() {
+		if (outDict != null) {
+			outDict = new WireDictionary();
+		}
+		if (creditFlow) {
+			ungranted.set(0);
+			sendCredit(creditWindow);
+		}
+	}
+
+	String getSessionId() {
+		return sessionId;
+	}
+
+	String getSessionToken() {
+		return sessionToken;
+	}
+
+	void setSessionToken(String sessionToken) {
+		this.sessionToken = sessionToken;
+	}
+
+	/* number of the last event received */
+	long getLastSeq() {
+		return lastSeq;
+	}
+
+	boolean isBacklogged() {
+		if (eventListener instanceof AgentSession) {
+			return ((AgentSession) eventListener).isPerceptBacklogged();
+		} else if (eventListener instanceof SharedSubscriptions) {
+			return ((SharedSubscriptions) eventListener).isBacklogged();
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Share the focus on the artifacts of the workspace with the other agents of this node
+	 * 
+	 * @param shared
+	 */
+	void share(SharedSubscriptions shared) {
+		this.shared = shared;
+		sharedFilters = new PerceptFilters();
+	}
+
+	/**
+	 * Deliver an event of a shared focus, applying the filters of the agent
+	 * 
+	 * @param ev
+	 */
+	void deliver(CartagoEvent ev) {
+		ev = sharedFilters.apply(ev);
+		if (ev != null) {
+			eventListener.notifyCartagoEvent(ev);
+		}
+	}
+
+	/**
+	 * Called when the agent has consumed its backlog of percepts:
+	 * the workspace can send further events.
+	 */
+	void perceptsDrained() {
+		if (creditFlow) {
+			int n = ungranted.getAndSet(0);
+			if (n > 0) {
+				sendCredit(n);
+			}
+		} else if (paused) {
+			paused = false;
+			ws.resume();
+		}
+		if (shared != null) {
+			shared.perceptsDrained();
+		}
+	}
+
+	private void sendCredit(int n) {
+		try {
+			JsonObject req = new JsonObject();
+			req.put("reqType", "credit");
+			req.put("n", n);
+			if (resumable) {
+				/* the events received are not kept for replay anymore */
+				req.put("ack", lastSeq);
+			}
+			send(req);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private void handleEvent(JsonObject evobj) {
 		try {
-			JsonObject evobj = buffer.toJsonObject();
 			// log("Event received: \n" + evobj);
+			Long seq = evobj.getLong("seq");
+			if (seq != null) {
+				lastSeq = seq;
+			}
 			CartagoEvent ev = null;
+			/* action completed by the event, if any */
+			long done = -1;
 			String evType = evobj.getString("evType");
 			long id = evobj.getLong("id");
 			long ts = evobj.getLong("timestamp");
 			if (evType.equals("actionSucceeded")) {
 				long actionId = evobj.getLong("actionId");
 				var json = evobj.getJsonObject("op");
-				Op op = toOp(json);
-				ArtifactId aid = toArtifactId(evobj.getJsonObject("artifactId"));
+				Op op = toOp(json, inDict);
+				ArtifactId aid = toArtifactId(evobj.getValue("artifactId"), inDict);
 				ev = new ActionSucceededEvent(id, actionId, op, aid, ts);
+				done = actionId;
 			} else if (evType.equals("actionAccepted")) { 
 				long actionId = evobj.getLong("actionId");
 			
 			} else if (evType.equals("actionFailed")) {
 				long actionId = evobj.getLong("actionId");
-				Op op = toOp(evobj.getJsonObject("op"));
+				Op op = toOp(evobj.getJsonObject("op"), inDict);
 				String failureMsg = evobj.getString("failureMsg");
-				Tuple failureReason = toTuple(evobj.getJsonObject("failureReason"));
+				Tuple failureReason = toTuple(evobj.getJsonObject("failureReason"), inDict);
 				ev = new ActionFailedEvent(id, actionId, op, failureMsg, failureReason, ts);
+				done = actionId;
 			} else if (evType.equals("artifactObs")) {
-				ArtifactId src = toArtifactId(evobj.getJsonObject("src"));
-				Tuple signal = toTuple(evobj.getJsonObject("signal"));
-				ArtifactObsProperty[] propsChanged = toArtifactObsPropertyArray(evobj.getJsonArray("propsChanged"));
-				ArtifactObsProperty[] propsAdded = toArtifactObsPropertyArray(evobj.getJsonArray("propsAdded"));
-				ArtifactObsProperty[] propsRemoved = toArtifactObsPropertyArray(evobj.getJsonArray("propsRemoved"));				
+				ArtifactId src = toArtifactId(evobj.getValue("src"), inDict);
+				Tuple signal = toTuple(evobj.getJsonObject("signal"), inDict);
+				ArtifactObsProperty[] propsChanged = null;
+				if (deltas != null) {
+					propsChanged = deltas.decodeChanged(evobj.getJsonArray("propsChanged"), inDict);
+				} else {
+					propsChanged = toArtifactObsPropertyArray(evobj.getJsonArray("propsChanged"), inDict);
+				}
+				ArtifactObsProperty[] propsAdded = toArtifactObsPropertyArray(evobj.getJsonArray("propsAdded"), inDict);
+				ArtifactObsProperty[] propsRemoved = toArtifactObsPropertyArray(evobj.getJsonArray("propsRemoved"), inDict);
+				if (deltas != null) {
+					deltas.remember(propsAdded);
+					deltas.forget(propsRemoved);
+				}				
 				ev = new ArtifactObsEvent(id, src, signal, propsChanged, propsAdded, propsRemoved, ts);
 			} else if (evType.equals("focusSucceeded")) {
 				long actionId = evobj.getLong("actionId");
 				JsonObject jop = evobj.getJsonObject("op");
-				Op op = jop != null ? toOp(jop) : null;
-				ArtifactId aid = toArtifactId(evobj.getJsonObject("artifactId"));
-				ArtifactId targetArtifact = toArtifactId(evobj.getJsonObject("targetArtifactId"));
-				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"));
+				Op op = jop != null ? toOp(jop, inDict) : null;
+				ArtifactId aid = toArtifactId(evobj.getValue("artifactId"), inDict);
+				ArtifactId targetArtifact = toArtifactId(evobj.getValue("targetArtifactId"), inDict);
+				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"), inDict);
+				if (deltas != null) {
+					deltas.remember(props);
+				}
 				ev = new FocusSucceededEvent(id, actionId, op, aid, targetArtifact, props, ts);
+				done = actionId;
 			} else if (evType.equals("stopFocusSucceeded")) {
 				long actionId = evobj.getLong("actionId");
 				JsonObject jop = evobj.getJsonObject("op");
-				Op op = jop != null ? toOp(jop) : null;
-				ArtifactId aid = toArtifactId(evobj.getJsonObject("artifactId"));
-				ArtifactId targetArtifact = toArtifactId(evobj.getJsonObject("targetArtifactId"));
-				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"));
+				Op op = jop != null ? toOp(jop, inDict) : null;
+				ArtifactId aid = toArtifactId(evobj.getValue("artifactId"), inDict);
+				ArtifactId targetArtifact = toArtifactId(evobj.getValue("targetArtifactId"), inDict);
+				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"), inDict);
+				if (deltas != null) {
+					deltas.forget(props);
+				}
 				ev = new StopFocusSucceededEvent(id, actionId, op, aid, targetArtifact, props, ts);
+				done = actionId;
 			} else if (evType.equals("focussedArtifactDisposed")) {
-				ArtifactId src = toArtifactId(evobj.getJsonObject("src"));
-				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"));
+				ArtifactId src = toArtifactId(evobj.getValue("src"), inDict);
+				List<ArtifactObsProperty> props = toArtifactObsPropertyList(evobj.getJsonArray("props"), inDict);
+				if (deltas != null) {
+					deltas.forget(props);
+				}
 				ev = new FocussedArtifactDisposedEvent(id, src, props, ts);
 			} else {
 				log("Event not to be handled: " + evType);
 				return;
 			}	
 			
+			if (done != -1 && !completed(done)) {
+				/* late outcome of an action already failed by its timeout or a lost connection */
+				return;
+			}
 			eventListener.notifyCartagoEvent(ev);
 			
 		} catch (Exception ex) {
@@ -128,9 +529,24 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 		
 	@Override
 	public void quit() throws CartagoException {
+		quitting = true;
+		/* the outcomes of the pending actions are not expected anymore */
+		List<PendingAction> dropped;
+		synchronized (pending) {
+			dropped = pending.clear();
+		}
+		for (PendingAction action: dropped) {
+			action.cancel();
+		}
+		if (shared != null) {
+			shared.leave(this);
+		}
 		try {
 			JsonObject req = makeJsonObjForQuit();
-			ws.writeTextMessage(req.encodePrettily());
+			send(req);
+			if (mux != null) {
+				mux.remove(sessionId);
+			}
 		} catch (Exception ex) {
 			ex.printStackTrace();
 			throw new CartagoException(ex.getMessage());
@@ -142,11 +558,15 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 	 */
 	public void doAction(long agentCallbackId, String id, Op op, IAlignmentTest test,
 			long timeout) throws CartagoException {
+		track(agentCallbackId, op, timeout);
 		try {
-			JsonObject req = makeJsonObjForAct(agentCallbackId, op, timeout);
-			req.put("artifactName", id);			
-			ws.writeTextMessage(req.encodePrettily());
+			synchronized (this) {
+				JsonObject req = makeJsonObjForAct(agentCallbackId, op, timeout);
+				req.put("artifactName", id);			
+				send(req);
+			}
 		} catch (Exception ex) {
+			untrack(agentCallbackId);
 			ex.printStackTrace();
 			throw new CartagoException(ex.getMessage());
 		}
@@ -159,15 +579,124 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 	 */
 	public void doAction(long agentCallbackId, Op op, IAlignmentTest test,
 			long timeout) throws CartagoException {
+		if (shared != null && doShared(agentCallbackId, op)) {
+			return;
+		}
+		track(agentCallbackId, op, timeout);
 		try {
-			JsonObject req = makeJsonObjForAct(agentCallbackId, op, timeout);
-			ws.writeTextMessage(req.encodePrettily());
+			synchronized (this) {
+				JsonObject req = makeJsonObjForAct(agentCallbackId, op, timeout);
+				send(req);
+			}
 		} catch (Exception ex) {
+			untrack(agentCallbackId);
 			ex.printStackTrace();
 			throw new CartagoException(ex.getMessage());
 		}
 	}
 	
+	/* plain focus and stop focus actions are completed by the shared subscriptions */
+	private boolean doShared(long agentCallbackId, Op op) throws CartagoException {
+		Object[] params = op.getParamValues();
+		if (params == null || params.length != 1 || !(params[0] instanceof ArtifactId)) {
+			return false;
+		} else if (op.getName().equals("focus")) {
+			shared.focus(this, agentCallbackId, op, (ArtifactId) params[0]);
+			return true;
+		} else if (op.getName().equals("stopFocus")) {
+			return shared.stopFocus(this, agentCallbackId, op, (ArtifactId) params[0]);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Ask the workspace to conflate the updates of an observable property
+	 * of a focused artifact: the updates not sent yet are replaced by the
+	 * newest one, so a slow agent gets the current value only.
+	 * 
+	 * @param target artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 * @param maxRate max number of updates per second, 0 for no limit
+	 * @return false if the workspace does not support conflation
+	 * @throws CartagoException
+	 */
+	public boolean conflate(ArtifactId target, String propName, double maxRate) throws CartagoException {
+		long minInterval = maxRate > 0 ? (long) Math.ceil(1000 / maxRate) : 0;
+		return sendConflate(target, propName, true, minInterval);
+	}
+
+	/**
+	 * Stop conflating the updates of an observable property
+	 * 
+	 * @param target artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 * @return false if the workspace does not support conflation
+	 * @throws CartagoException
+	 */
+	public boolean stopConflating(ArtifactId target, String propName) throws CartagoException {
+		return sendConflate(target, propName, false, 0);
+	}
+
+	private boolean sendConflate(ArtifactId target, String propName, boolean enabled, long minInterval) throws CartagoException {
+		if (!conflation) {
+			return false;
+		}
+		try {
+			synchronized (this) {
+				JsonObject req = new JsonObject();
+				req.put("reqType", "conflate");
+				req.put("artifactId", toJson(target, outDict));
+				if (propName != null) {
+					req.put("property", propName);
+				}
+				req.put("enabled", enabled);
+				req.put("minInterval", minInterval);
+				send(req);
+			}
+			return true;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			throw new CartagoException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Set the filter applied by the workspace to the observations
+	 * sent to the agent.
+	 * 
+	 * @param target focused artifact, null for the filter of the whole session
+	 * @param filter the filter, null to remove it
+	 * @return false if the workspace does not support filters
+	 * @throws CartagoException
+	 */
+	public boolean setPerceptFilter(ArtifactId target, PerceptFilter filter) throws CartagoException {
+		if (!filtering) {
+			return false;
+		}
+		if (shared != null) {
+			/* events of shared focus are filtered locally */
+			sharedFilters.set(target, filter);
+		}
+		try {
+			synchronized (this) {
+				JsonObject req = new JsonObject();
+				req.put("reqType", "filter");
+				if (target != null) {
+					req.put("artifactId", toJson(target, outDict));
+				}
+				if (filter != null) {
+					req.put("filter", toJson(filter));
+				}
+				send(req);
+			}
+			return true;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			throw new CartagoException(ex.getMessage());
+		}
+	}
+
 	@Override
 	public WorkspaceId getWorkspaceId() throws CartagoException {
 		return wspId;
@@ -184,10 +713,19 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 		req.put("reqType", "doAction");		
 		req.put("agentCallbackId", agentCallbackId);
 		req.put("timeout", timeout);
-		req.put("op", toJson(op));
+		req.put("op", toJson(op, outDict, inline));
 		return req;
 	}
 
+	/* frames must be written in the same order they are encoded with the dictionary */
+	private synchronized void send(JsonObject req) {
+		if (mux != null) {
+			mux.write(codec, sessionId, req);
+		} else {
+			codec.write(ws, req);
+		}
+	}
+
 	/*
 	private JsonObject makeJsonObjForTryAct(long agentCallbackId, Op op,long timeout) {
 		JsonObject req = new JsonObject();
@@ -209,4 +747,23 @@ public class AgentBodyProxy implements ICartagoContext, Serializable {
 	}
 
     
+
+	/* an action sent and not completed yet */
+	static private final class PendingAction {
+		final long actionId;
+		final Op op;
+		volatile TimerWheel.Timeout timeout;
+
+		PendingAction(long actionId, Op op) {
+			this.actionId = actionId;
+			this.op = op;
+		}
+
+		void cancel() {
+			TimerWheel.Timeout t = timeout;
+			if (t != null) {
+				t.cancel();
+			}
+		}
+	}
 }
@@ -19,18 +19,63 @@ package cartago.infrastructure;
 
 import static cartago.infrastructure.JsonUtil.*;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cartago.infrastructure.RemoteSessions.State;
+
 import cartago.*;
 import cartago.events.*;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 public class AgentBodyRemote  implements ICartagoCallback {
     
+	static private final SecureRandom RANDOM = new SecureRandom();
+
 	private WorkspaceService service;
+	private String sessionId;
+	/* secret given to the agent when it connects, required to resume or quit the session */
+	private String token;
+	private boolean tokenGiven;
 	private ServerWebSocket websocket;
-    private  AgentBody ctx;  
-	private long lastPingFromMind;
+	/* liveness of the connection, if not shared */
+	private Heartbeat heartbeat;
+	/* lifecycle of the session, see RemoteSessions */
+	private final AtomicReference<State> state = new AtomicReference<State>(State.JOINED);
+	/* the session is closed if the agent does not connect again in time */
+	private volatile TimerWheel.Timeout expiry;
+	/* bodies registered for the joins of the agent to other workspaces */
+	private final ConcurrentLinkedQueue<String> joins = new ConcurrentLinkedQueue<String>();
+	/* connection shared with other sessions and id of this one, if multiplexed */
+	private MuxServerConnection mux;
+	private String muxId;
+	private WireCodec codec;
+	private WireProtocol protocol;
+	/* the session waits for the agent to resume it after a dropped connection, if agreed */
+	private boolean resumable;
+	/* parameters stored inline, if agreed */
+	private boolean inline;
+	/* dictionaries for the frames sent and received, if agreed */
+	private WireDictionary outDict;
+	private volatile WireDictionary inDict;
+	private ObsPropertyDeltas deltas;
+	private PerceptOutbox outbox;
+	private PerceptFilters filters;
+	/* encodings shared with the other sessions, null if not used */
+	private EncodeCache cache;
+	/* executor of the requests of the agent, keeping their order; null for inline */
+	private Executor executor;
+    private volatile AgentBody ctx;  
 
     
     public AgentBodyRemote()   {
@@ -39,18 +84,240 @@ public class AgentBodyRemote  implements ICartagoCallback {
     public void init(AgentBody ctx) {
     	this.ctx = ctx;
     }
+
+    /**
+     * Init the session of an agent about to join, so that the events raised by the join reach it
+     */
+    synchronized void init(String sessionId, WorkspaceService service) {
+    	this.sessionId = sessionId;
+    	this.service = service;
+    	byte[] secret = new byte[16];
+    	RANDOM.nextBytes(secret);
+    	token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+    	executor = service.getActionDispatcher().forSession(sessionId);
+    }
+
+    /**
+     * The agent joined: the session is closed if no connection is attached in time
+     */
+    synchronized void joined(AgentBody ctx) {
+    	this.ctx = ctx;
+    	if (!isLive()) {
+    		/* closed while joining */
+    		try {
+    			ctx.quit();
+    		} catch (Exception ex) {
+    			ex.printStackTrace();
+    		}
+    	} else if (state.get() == State.JOINED && expiry == null) {
+    		expiry = service.getTimerWheel().schedule(service.getSessionConfig().getResumeTimeout(), this::expired);
+    	}
+    }
+
+    /**
+     * The agent has not been admitted: the session is closed, there is nothing to quit
+     */
+    void refused() {
+    	State s = state.getAndSet(State.QUITTING);
+    	if (s != State.QUITTING && s != State.CLOSED) {
+    		/* the connection, if any, is kept to tell the agent */
+    		synchronized (this) {
+    			websocket = null;
+    		}
+    		release();
+    	}
+    }
     
-    public void connect(ServerWebSocket websocket, WorkspaceService service) {
-        lastPingFromMind = System.currentTimeMillis();
+    /**
+     * Attach the connection of the agent
+     * 
+     * @return false if the session is already connected or is being closed
+     */
+    public synchronized boolean connect(ServerWebSocket websocket, WorkspaceService service, WireProtocol protocol) {
+        if (!connected()) {
+        	return false;
+        }
+        setup(websocket, service, protocol);
+        attach(websocket);
+        return true;
+    }
+
+    private void attach(ServerWebSocket websocket) {
+        if (heartbeat != null) {
+        	heartbeat.stop();
+        }
+        /* old clients are not pinged */
+        heartbeat = protocol.has(WireProtocol.HEARTBEAT) ? new Heartbeat(websocket, service.getTimerWheel(), service.getSessionConfig()) : null;
+        websocket.drainHandler(v -> outbox.flush());
+        websocket.closeHandler(v -> closed(websocket));
+        websocket.handler(this::handleData);
+    }
+
+    /**
+     * Connect a session multiplexed with others on the same connection
+     */
+    synchronized boolean connect(MuxServerConnection mux, String sessionId, WorkspaceService service, WireProtocol protocol) {
+        if (!connected()) {
+        	return false;
+        }
+        this.mux = mux;
+        this.muxId = sessionId;
+        setup(mux.getWebSocket(), service, protocol);
+        return true;
+    }
+
+    private void setup(ServerWebSocket websocket, WorkspaceService service, WireProtocol protocol) {
+        if (outbox != null) {
+        	/* connected again, the events of the previous connection are dropped */
+        	outbox.close();
+        }
+        this.codec = protocol.getCodec();
+        this.protocol = protocol;
+        resumable = protocol.has(WireProtocol.RESUME);
+        inline = protocol.has(WireProtocol.INLINE);
+        if (protocol.has(WireProtocol.DICTIONARY)) {
+        	outDict = new WireDictionary();
+        	inDict = new WireDictionary();
+        }
+        if (protocol.has(WireProtocol.DELTA)) {
+        	deltas = new ObsPropertyDeltas();
+        }
         this.websocket = websocket;
         this.service = service;
-        websocket.handler(this::handleData);
+        /* shared encodings are inline */
+        cache = inline && service.getSessionConfig().isSharedEncoding() ? service.getEncodeCache() : null;
+        if (protocol.has(WireProtocol.FILTER)) {
+        	filters = new PerceptFilters();
+        }
+        outbox = new PerceptOutbox(this, service.getVertx(), service.getSessionConfig(), protocol);
+    }
+
+    /* secret of the session, given once, in the reply to the first connection of the agent; null afterwards */
+    synchronized String takeToken() {
+    	String t = tokenGiven ? null : token;
+    	tokenGiven = true;
+    	return t;
+    }
+
+    /* the secret of the session, compared in constant time */
+    boolean isToken(String secret) {
+    	return secret != null && token != null
+    			&& MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* the connection dropped and the session waits for the agent to resume it */
+    boolean isDetached() {
+    	PerceptOutbox ob = outbox;
+    	return state.get() == State.JOINED && ob != null && ob.isDetached();
+    }
+
+    /**
+     * Resume the session on the new connection of the agent
+     * 
+     * @param websocket
+     * @param token secret of the session
+     * @param lastSeq number of the last event received by the agent
+     * @param accepted called before sending the events again, to reply to the agent
+     * @return false if the session cannot be resumed
+     */
+    boolean resume(ServerWebSocket websocket, String token, long lastSeq, Runnable accepted) {
+    	return resume(websocket, null, null, token, lastSeq, accepted);
+    }
+
+    /**
+     * Resume the session on a connection shared with other sessions
+     */
+    boolean resume(MuxServerConnection mux, String sessionId, String token, long lastSeq, Runnable accepted) {
+    	return resume(mux.getWebSocket(), mux, sessionId, token, lastSeq, accepted);
+    }
+
+    private boolean resume(ServerWebSocket websocket, MuxServerConnection mux, String sessionId, String token, long lastSeq, Runnable accepted) {
+    	if (!isToken(token) || !reattach(websocket, mux, sessionId, lastSeq, accepted)) {
+    		return false;
+    	}
+    	/* the reply and the events sent again are written not holding the lock of the session */
+    	outbox.flush();
+    	return true;
+    }
+
+    /* only a session whose connection has been closed can be resumed */
+    private synchronized boolean reattach(ServerWebSocket websocket, MuxServerConnection mux, String sessionId, long lastSeq, Runnable accepted) {
+    	if (!resumable || !outbox.isDetached() || !state.compareAndSet(State.JOINED, State.CONNECTED)) {
+    		return false;
+    	}
+    	cancelExpiry();
+    	if (this.mux != null && this.mux != mux) {
+    		this.mux.remove(muxId);
+    	}
+    	this.websocket = websocket;
+    	this.mux = mux;
+    	this.muxId = sessionId;
+    	/* 
+    	 * the requests sent while disconnected are lost: the agent restarts its dictionary;
+    	 * the requests of the old connection still queued keep using the old one
+    	 */
+    	if (inDict != null) {
+    		inDict = new WireDictionary();
+    	}
+    	if (mux == null) {
+    		attach(websocket);
+    	}
+    	if (!outbox.resume(lastSeq, accepted)) {
+    		log("Events to be replayed are missing, the session is closed.");
+    		outbox.close();
+    		quit();
+    		return false;
+    	}
+    	return true;
+    }
+
+    /* protocol of the session, kept when resumed */
+    WireProtocol getProtocol() {
+    	return protocol;
     }
     
     
     private void handleData(Buffer data) {
+    	if (heartbeat != null) {
+    		heartbeat.seen();
+    	}
+    	if (data.length() == 0) {
+    		/* pong */
+    		return;
+    	}
+    	try {
+    		received(WireCodec.decode(data));
+    	} catch (Exception ex) {
+    		ex.printStackTrace();
+    	}
+    }
+
+    /**
+     * A request received on the event loop, by a frame handler holding the lock
+     * of the connection: no request is handled there. The credits are granted
+     * by the next task of the loop, the other requests are executed by the 
+     * dispatcher of the service, in the next task of the loop with the INLINE strategy.
+     */
+    void received(JsonObject req) {
+    	/* the dictionary of the connection that received the request */
+    	WireDictionary dict = inDict;
+    	ActionDispatcher dispatcher = service.getActionDispatcher();
+    	Runnable task = () -> handleRequest(req, dict);
+    	if (executor == null || "credit".equals(req.getString("reqType"))) {
+    		service.getVertx().runOnContext(v -> task.run());
+    	} else if (dispatcher.isInline(executor)) {
+    		service.getVertx().runOnContext(v -> dispatcher.execute(executor, task));
+    	} else {
+    		dispatcher.execute(executor, task);
+    	}
+    }
+
+    private void handleRequest(JsonObject req, WireDictionary inDict) {
     	// synchronized (this) {	
-    	JsonObject req = data.toJsonObject();
+    	if (!isLive()) {
+    		/* late requests of a session being closed */
+    		return;
+    	}
     	String reqType = req.getString("reqType");
     		
 			// log("New request: \n" + req.encodePrettily());
@@ -59,7 +326,7 @@ public class AgentBodyRemote  implements ICartagoCallback {
     		long agentCallbackId = req.getLong("agentCallbackId");
     		long timeout = req.getLong("timeout");    			
     			try {	    				    			
-	    			Op op = toOp(req.getJsonObject("op"));	    			
+	    			Op op = toOp(req.getJsonObject("op"), inDict);	    			
     				String artifactName = req.getString("artifactName");
 	    			if (artifactName != null) {
 	        			ctx.doAction(agentCallbackId, artifactName, op, null, timeout);
@@ -69,12 +336,38 @@ public class AgentBodyRemote  implements ICartagoCallback {
     			} catch (Exception ex) {
     				ex.printStackTrace();
     			}
-    	} else if (reqType.contentEquals("quit")) {
+    	} else if (reqType.equals("credit")) {
+    		Object lastSeq = req.getValue("ack");
+    		Object n = req.getValue("n");
+    		if (!(n instanceof Number) || ((Number) n).longValue() <= 0 || (lastSeq != null && !(lastSeq instanceof Number))) {
+    			log("Bad credit request: " + req.encode());
+    			return;
+    		}
+    		if (lastSeq != null) {
+    			outbox.ack(((Number) lastSeq).longValue());
+    		}
+    		outbox.grant(((Number) n).longValue());
+    	} else if (reqType.equals("filter")) {
+    		try {
+    			ArtifactId aid = toArtifactId(req.getValue("artifactId"), inDict);
+    			filters.set(aid, toPerceptFilter(req.getJsonObject("filter")));
+    		} catch (Exception ex) {
+    			ex.printStackTrace();
+    		}
+    	} else if (reqType.equals("conflate")) {
     		try {
-   				ctx.quit();
+    			ArtifactId aid = toArtifactId(req.getValue("artifactId"), inDict);
+    			String propName = req.getString("property");
+    			if (req.getBoolean("enabled", true)) {
+    				outbox.conflate(aid, propName, req.getLong("minInterval", 0L));
+    			} else {
+    				outbox.stopConflating(aid, propName);
+    			}
     		} catch (Exception ex) {
     			ex.printStackTrace();
-   			}
+    		}
+    	} else if (reqType.contentEquals("quit")) {
+    		quit();
    		}
     }
 
@@ -89,101 +382,310 @@ public class AgentBodyRemote  implements ICartagoCallback {
 		obj.put("actionId", ev.getActionId());
 		obj.put("timestamp", ev.getTimestamp());
 		if (ev.getOp() != null) {
-			obj.put("op", toJson(ev.getOp()));
+			obj.put("op", toJson(ev.getOp(), outDict, inline));
 		}
 	}
 
 	
 	@Override
 	public void notifyCartagoEvent(CartagoEvent ev) {
-		synchronized (this) {
-			try {
-				if (websocket != null) {
-					JsonObject evo = new JsonObject();
-					if (ev instanceof FocusSucceededEvent) {
-						evo.put("evType", "focusSucceeded");
-						FocusSucceededEvent evFoc = (FocusSucceededEvent) ev;
-						writeActionEventInfo(evo, evFoc);						
-						evo.put("targetArtifactId", toJson(evFoc.getTargetArtifact()));
-						evo.put("props", toJson(evFoc.getObsProperties()));
-						// log("focus succeeded event: \n" + evo);
-					} else if (ev instanceof StopFocusSucceededEvent) {
-						evo.put("evType", "stopFocusSucceeded");
-						StopFocusSucceededEvent evFoc = (StopFocusSucceededEvent) ev;
-						writeActionEventInfo(evo, evFoc);						
-						evo.put("targetArtifactId", toJson(evFoc.getTargetArtifact()));
-						evo.put("props", toJson(evFoc.getObsProperties()));
-					} else if (ev instanceof JoinWSPSucceededEvent) {
-						evo.put("evType", "joinWSPSucceeded");
-						JoinWSPSucceededEvent wspEv = (JoinWSPSucceededEvent) ev;
-						writeActionEventInfo(evo, wspEv);						
-						evo.put("workspaceId", toJson(wspEv.getWorkspaceId()));
-						String bodyId = "body-"+ev.getId();
-						evo.put("bodyId", bodyId);
-						service.registerNewJoin(bodyId, (AgentBody) wspEv.getContext());
-						
-					} else if (ev instanceof ActionSucceededEvent) {
-						evo.put("evType", "actionSucceeded");
-						ActionSucceededEvent evAct = (ActionSucceededEvent) ev;
-						writeActionEventInfo(evo, evAct);		
-						if (evAct.getArtifactId() != null) {
-							evo.put("artifactId", toJson(evAct.getArtifactId()));
-						}
-						// log("action succeeded event: \n" + evo);
-
-					} else if (ev instanceof ActionFailedEvent) {
-						evo.put("evType", "actionFailed");
-						ActionFailedEvent evAct = (ActionFailedEvent) ev;
-						writeActionEventInfo(evo, evAct);
-						if (evAct.getFailureMsg() != null) {
-							evo.put("failureMsg", evAct.getFailureMsg());
-						}
-						if (evAct.getFailureDescr() != null) {
-							evo.put("failureReason", toJson(evAct.getFailureDescr()));
-						}
-					} else if (ev instanceof FocussedArtifactDisposedEvent) {
-						evo.put("evType", "focussedArtifactDisposed");
-						FocussedArtifactDisposedEvent evFoc = (FocussedArtifactDisposedEvent) ev;
-						writeEventInfo(evo, ev);
-						evo.put("src", toJson(evFoc.getArtifactId()));
-						if (evFoc.getSignal() != null) {
-							evo.put("signal", toJson(evFoc.getSignal()));
-						}
-						if (evFoc.getChangedProperties() != null) {
-							evo.put("propsChanged", toJson(evFoc.getChangedProperties()));
-						}
-						if (evFoc.getAddedProperties() != null) {
-							evo.put("propsAdded", toJson(evFoc.getAddedProperties()));
-						}
-						if (evFoc.getRemovedProperties() != null) {
-							evo.put("propsRemoved", toJson(evFoc.getRemovedProperties()));
-						}
-						evo.put("props", toJson(evFoc.getObsProperties()));
-					} else if (ev instanceof ArtifactObsEvent) {
-						evo.put("evType", "artifactObs");
-						writeEventInfo(evo, ev);
-						ArtifactObsEvent evObs = (ArtifactObsEvent) ev;
-						evo.put("src", toJson(evObs.getArtifactId()));
-						if (evObs.getSignal() != null) {
-							evo.put("signal", toJson(evObs.getSignal()));
-						}
-						if (evObs.getChangedProperties() != null) {
-							evo.put("propsChanged", toJson(evObs.getChangedProperties()));
-						}
-						if (evObs.getAddedProperties() != null) {
-							evo.put("propsAdded", toJson(evObs.getAddedProperties()));
-						}
-						if (evObs.getRemovedProperties() != null) {
-							evo.put("propsRemoved", toJson(evObs.getRemovedProperties()));
-						}
-					} 
-
-					websocket.writeTextMessage(evo.encode());
+		try {
+			if (ev instanceof JoinWSPSucceededEvent) {
+				JoinWSPSucceededEvent wspEv = (JoinWSPSucceededEvent) ev;
+				service.registerNewJoin("body-"+ev.getId(), (AgentBody) wspEv.getContext());
+				joins.add("body-"+ev.getId());
+			}
+			/* filtered before being queued and encoded */
+			if (filters != null) {
+				ev = filters.apply(ev);
+			}
+			if (outbox != null && ev != null) {
+				outbox.offer(ev);
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Encode an event, called by the outbox when the event is sent
+	 * 
+	 * @param ev
+	 * @return the encoded event or null if the event is not sent to remote agents
+	 */
+	JsonObject encodeEvent(CartagoEvent ev) {
+		try {
+			JsonObject evo = new JsonObject();
+			if (ev instanceof FocusSucceededEvent) {
+				evo.put("evType", "focusSucceeded");
+				FocusSucceededEvent evFoc = (FocusSucceededEvent) ev;
+				writeActionEventInfo(evo, evFoc);						
+				evo.put("targetArtifactId", toJson(evFoc.getTargetArtifact(), outDict));
+				evo.put("props", encodeProps(evFoc.getObsProperties()));
+				if (deltas != null) {
+					deltas.remember(evFoc.getObsProperties());
+				}
+				// log("focus succeeded event: \n" + evo);
+			} else if (ev instanceof StopFocusSucceededEvent) {
+				evo.put("evType", "stopFocusSucceeded");
+				StopFocusSucceededEvent evFoc = (StopFocusSucceededEvent) ev;
+				writeActionEventInfo(evo, evFoc);						
+				evo.put("targetArtifactId", toJson(evFoc.getTargetArtifact(), outDict));
+				evo.put("props", encodeProps(evFoc.getObsProperties()));
+				if (deltas != null) {
+					deltas.forget(evFoc.getObsProperties());
+				}
+			} else if (ev instanceof JoinWSPSucceededEvent) {
+				evo.put("evType", "joinWSPSucceeded");
+				JoinWSPSucceededEvent wspEv = (JoinWSPSucceededEvent) ev;
+				writeActionEventInfo(evo, wspEv);						
+				evo.put("workspaceId", toJson(wspEv.getWorkspaceId()));
+				evo.put("bodyId", "body-"+ev.getId());
+				
+			} else if (ev instanceof ActionSucceededEvent) {
+				evo.put("evType", "actionSucceeded");
+				ActionSucceededEvent evAct = (ActionSucceededEvent) ev;
+				writeActionEventInfo(evo, evAct);		
+				if (evAct.getArtifactId() != null) {
+					evo.put("artifactId", toJson(evAct.getArtifactId(), outDict));
+				}
+				// log("action succeeded event: \n" + evo);
+
+			} else if (ev instanceof ActionFailedEvent) {
+				evo.put("evType", "actionFailed");
+				ActionFailedEvent evAct = (ActionFailedEvent) ev;
+				writeActionEventInfo(evo, evAct);
+				if (evAct.getFailureMsg() != null) {
+					evo.put("failureMsg", evAct.getFailureMsg());
+				}
+				if (evAct.getFailureDescr() != null) {
+					evo.put("failureReason", toJson(evAct.getFailureDescr(), outDict, inline));
+				}
+			} else if (ev instanceof FocussedArtifactDisposedEvent) {
+				evo.put("evType", "focussedArtifactDisposed");
+				FocussedArtifactDisposedEvent evFoc = (FocussedArtifactDisposedEvent) ev;
+				writeEventInfo(evo, ev);
+				evo.put("src", toJson(evFoc.getArtifactId(), outDict));
+				if (evFoc.getSignal() != null) {
+					evo.getMap().put("signal", encodeSignal(evFoc.getSignal()));
+				}
+				if (evFoc.getChangedProperties() != null) {
+					evo.put("propsChanged", encodeProps(Arrays.asList(evFoc.getChangedProperties())));
 				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
+				if (evFoc.getAddedProperties() != null) {
+					evo.put("propsAdded", encodeProps(Arrays.asList(evFoc.getAddedProperties())));
+				}
+				if (evFoc.getRemovedProperties() != null) {
+					evo.put("propsRemoved", encodeProps(Arrays.asList(evFoc.getRemovedProperties())));
+				}
+				evo.put("props", encodeProps(evFoc.getObsProperties()));
+				if (deltas != null) {
+					deltas.forget(evFoc.getObsProperties());
+				}
+			} else if (ev instanceof ArtifactObsEvent) {
+				evo.put("evType", "artifactObs");
+				writeEventInfo(evo, ev);
+				ArtifactObsEvent evObs = (ArtifactObsEvent) ev;
+				evo.put("src", toJson(evObs.getArtifactId(), outDict));
+				if (evObs.getSignal() != null) {
+					evo.getMap().put("signal", encodeSignal(evObs.getSignal()));
+				}
+				if (evObs.getChangedProperties() != null) {
+					if (deltas != null) {
+						evo.put("propsChanged", deltas.encodeChanged(evObs.getChangedProperties(), outDict, inline, cache != null ? this::sharedProp : null));
+					} else {
+						evo.put("propsChanged", encodeProps(Arrays.asList(evObs.getChangedProperties())));
+					}
+				}
+				if (evObs.getAddedProperties() != null) {
+					evo.put("propsAdded", encodeProps(Arrays.asList(evObs.getAddedProperties())));
+				}
+				if (evObs.getRemovedProperties() != null) {
+					evo.put("propsRemoved", encodeProps(Arrays.asList(evObs.getRemovedProperties())));
+				}
+				if (deltas != null) {
+					deltas.remember(evObs.getAddedProperties());
+					deltas.forget(evObs.getRemovedProperties());
+				}
+			} 
+
+			return evo;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	/* signals and properties use the shared encoding, if any */
+
+	private Object encodeSignal(Tuple signal) {
+		EncodedValue encoded = cache != null ? cache.share(signal, () -> toJson(signal, null, true)) : null;
+		return encoded != null ? encoded : toJson(signal, outDict, inline);
+	}
+
+	private JsonArray encodeProps(Collection<ArtifactObsProperty> props) {
+		JsonArray array = new JsonArray();
+		for (ArtifactObsProperty prop: props) {
+			EncodedValue encoded = cache != null ? sharedProp(prop) : null;
+			array.getList().add(encoded != null ? encoded : toJson(prop, outDict, inline));
+		}
+		return array;
+	}
+
+	private EncodedValue sharedProp(ArtifactObsProperty prop) {
+		return cache.share(prop, () -> toJson(prop, null, true));
+	}
+
+	void writeFrame(JsonObject frame) {
+		if (muxId != null) {
+			frame.put("sid", muxId);
+		}
+		try {
+			codec.write(websocket, frame);
+		} catch (IllegalStateException ex) {
+			/* closed before the close handler is called: resumed sessions send the events again */
+		}
+	}
+
+	/* the shared connection can be written again */
+	void drained() {
+		outbox.flush();
+	}
+
+	/*
+	 * The connection has been closed: a session that can be resumed
+	 * waits for the agent, its events are queued meanwhile.
+	 * A connection replaced on resume is not used anymore.
+	 */
+	synchronized void closed(ServerWebSocket from) {
+		if (from != websocket || !state.compareAndSet(State.CONNECTED, State.JOINED)) {
+			return;
+		}
+		if (heartbeat != null && mux == null) {
+			heartbeat.stop();
+		}
+		if (resumable) {
+			outbox.detach();
+		} else {
+			outbox.close();
+		}
+		expiry = service.getTimerWheel().schedule(service.getSessionConfig().getResumeTimeout(), this::expired);
+	}
+
+	private synchronized void expired() {
+		expiry = null;
+		if (state.get() == State.JOINED) {
+			log("Session " + sessionId + " without connection for too long, the agent quits.");
+			quit();
+		}
+	}
+
+	/* a connection is attached only to a session without one: a connected session is resumed */
+	private boolean connected() {
+		if (!state.compareAndSet(State.JOINED, State.CONNECTED)) {
+			return false;
+		}
+		cancelExpiry();
+		return true;
+	}
+
+	private void cancelExpiry() {
+		TimerWheel.Timeout timeout = expiry;
+		if (timeout != null) {
+			timeout.cancel();
+			expiry = null;
+		}
+	}
+
+	State getState() {
+		return state.get();
+	}
+
+	private boolean isLive() {
+		State s = state.get();
+		return s == State.JOINED || s == State.CONNECTED;
+	}
+
+	/**
+	 * The agent quits the workspace and the session is closed, once.
+	 * 
+	 * Called for quit requests, by the client or the service, and for
+	 * connections not resumed in time - often by the event loop: the
+	 * workspace is left by the executor of the session, as for actions.
+	 */
+	void quit() {
+		State s;
+		do {
+			s = state.get();
+			if (s == State.QUITTING || s == State.CLOSED) {
+				return;
+			}
+		} while (!state.compareAndSet(s, State.QUITTING));
+		if (executor != null) {
+			service.getActionDispatcher().execute(executor, this::leave);
+		} else {
+			leave();
+		}
+	}
+
+	private void leave() {
+		try {
+			AgentBody c = ctx;
+			if (c != null) {
+				c.quit();
 			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		release();
+	}
+
+	/*
+	 * Release the resources of the session: timers, queued events,
+	 * registered bodies and the connection, if not shared.
+	 * No lock of the session is taken, the outbox can be quitting.
+	 */
+	private void release() {
+		cancelExpiry();
+		Heartbeat hb = heartbeat;
+		if (hb != null) {
+			hb.stop();
+		}
+		if (outbox != null) {
+			outbox.close();
+		}
+		String bodyId;
+		while ((bodyId = joins.poll()) != null) {
+			service.unregisterJoin(bodyId);
 		}
+		try {
+			if (mux != null) {
+				/* the connection is still used by the other sessions */
+				mux.remove(muxId);
+			} else if (websocket != null) {
+				websocket.close();
+			}
+		} catch (IllegalStateException ex) {
+			/* already closed */
+		}
+		state.set(State.CLOSED);
+		service.removeRemoteSession(sessionId);
+	}
+
+	boolean isWriteQueueFull() {
+		try {
+			return websocket.writeQueueFull();
+		} catch (IllegalStateException ex) {
+			/* closed: the events wait for the close handler */
+			return true;
+		}
+	}
+
+	/**
+	 * Close the connection with the agent, that quits the workspace
+	 */
+	void disconnect() {
+		quit();
 	}
 
 	AgentBody getContext(){
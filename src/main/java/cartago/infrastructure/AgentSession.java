@@ -2,11 +2,13 @@ package cartago.infrastructure;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.*;
 
 import cartago.IAgentSession;
@@ -26,12 +28,19 @@ import cartago.*
 public class AgentSession implements IAgentSession, ICartagoCallback, Serializable {
 
 	// one context for workspace, the agent can work in multiple workspaces
-	private ConcurrentHashMap<WorkspaceId, ICartagoContext> contexts;
+	// indexed by the interned key of the workspace, that is by its name
+	private ConcurrentHashMap<WspKey, Joined> contexts;
+	private WspKeys keys;
 	private ICartagoContext homeWspCtx;
 	private WorkspaceId		homeWspId;
 	
 	// queue where percepts are notified by the environment
-	private java.util.concurrent.ConcurrentLinkedQueue<CartagoEvent> perceptQueue;
+	private PerceptLanes perceptQueue;
+	// beyond this number of queued percepts remote workspaces stop sending events
+	private int maxPerceptBacklog;
+	private final int creditWindow;
+	// a remote workspace is waiting for the backlog to be consumed
+	private volatile boolean drainRequested;
 
 	private ICartagoListener agentArchListener;
 	private AtomicLong actionId;
@@ -43,8 +52,27 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	private static String wspNotJoined = "Workspace not joined";
 		
 	public AgentSession(AgentCredential credential, String agentRole, ICartagoListener listener) throws CartagoException {
-		contexts = new ConcurrentHashMap<WorkspaceId, ICartagoContext>();
-		perceptQueue = new java.util.concurrent.ConcurrentLinkedQueue<CartagoEvent>();
+		/* lossless: a full queue holds up the producers, but never an event loop */
+		this(credential, agentRole, listener, PerceptQueue.DEFAULT_CAPACITY, PerceptQueue.Overflow.BLOCK);
+	}
+
+	/**
+	 * 
+	 * @param credential
+	 * @param agentRole
+	 * @param listener
+	 * @param perceptCapacity max number of observations queued
+	 * @param overflow policy applied when the observation queue is full
+	 * @throws CartagoException
+	 */
+	public AgentSession(AgentCredential credential, String agentRole, ICartagoListener listener, int perceptCapacity, PerceptQueue.Overflow overflow) throws CartagoException {
+		contexts = new ConcurrentHashMap<WspKey, Joined>();
+		keys = new WspKeys();
+		perceptQueue = new PerceptLanes(perceptCapacity, overflow, PerceptLanes.Policy.FIFO);
+		/* the events granted to a remote workspace must fit in the queue beyond the backlog */
+		int observations = perceptQueue.capacity(PerceptLanes.Lane.OBSERVATION);
+		creditWindow = Math.max(1, Math.min(AgentBodyProxy.CREDIT_WINDOW, observations / 2));
+		maxPerceptBacklog = observations - creditWindow;
 		agentArchListener = listener;
 		this.agentRole = agentRole;
 		this.credential = credential;
@@ -52,7 +80,7 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	}
 
 	void init(WorkspaceId homeWspId, ICartagoContext startContext) {
-		contexts.put(homeWspId, startContext);
+		contexts.put(keys.of(homeWspId), new Joined(homeWspId, startContext));
 		this.homeWspId = homeWspId;
 		this.homeWspCtx = startContext;
 	}
@@ -64,15 +92,12 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	 */
 	public long doAction(ArtifactId aid, Op op, IAlignmentTest test, long timeout) throws CartagoException  {
 		long actId = actionId.incrementAndGet();
-		ICartagoContext ctx = null;
-		synchronized (this){
-			ctx = contexts.get(aid.getWorkspaceId());
-			if (ctx != null) {
-				ctx.doAction(actId, aid.getName(), op, test, timeout);
-				return actId;
-			} else {
-				throw new CartagoException(wspNotJoined);
-			}
+		ICartagoContext ctx = getContext(aid.getWorkspaceId());
+		if (ctx != null) {
+			ctx.doAction(actId, aid.getName(), op, test, timeout);
+			return actId;
+		} else {
+			throw new CartagoException(wspNotJoined);
 		}
 	}
 
@@ -84,15 +109,12 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	public long doAction(WorkspaceId wspId, String artName, Op op, IAlignmentTest test, long timeout)
 			throws CartagoException {
 		long actId = actionId.incrementAndGet();
-		ICartagoContext ctx = null;
-		synchronized (this){
-			ctx = contexts.get(wspId);
-			if (ctx != null) {
-				ctx.doAction(actId, artName, op, test, timeout);
-				return actId;
-			} else {
-				throw new CartagoException(wspNotJoined);
-			}
+		ICartagoContext ctx = getContext(wspId);
+		if (ctx != null) {
+			ctx.doAction(actId, artName, op, test, timeout);
+			return actId;
+		} else {
+			throw new CartagoException(wspNotJoined);
 		}
 	}
 	
@@ -104,20 +126,12 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	public long doAction(String wspName, String artName, Op op, IAlignmentTest test, long timeout)
 			throws CartagoException {
 		long actId = actionId.incrementAndGet();
-		ICartagoContext ctx = null;
-		synchronized (this){
-			for (Map.Entry<WorkspaceId, ICartagoContext> e: contexts.entrySet()){
-				if (e.getKey().getName().equals(wspName)) {
-					ctx = e.getValue();
-					break;
-				}
-			}
-			if (ctx != null) {
-				ctx.doAction(actId, artName, op, test, timeout);
-				return actId;
-			} else {
-				throw new CartagoException(wspNotJoined);
-			}
+		ICartagoContext ctx = getContext(wspName);
+		if (ctx != null) {
+			ctx.doAction(actId, artName, op, test, timeout);
+			return actId;
+		} else {
+			throw new CartagoException(wspNotJoined);
 		}
 	}
 
@@ -128,15 +142,12 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	 */	
 	public long doAction(Op op, WorkspaceId wspId, IAlignmentTest test, long timeout) throws CartagoException {
 		long actId = actionId.incrementAndGet();
-		ICartagoContext ctx = null;
-		synchronized (this){
-			ctx = contexts.get(wspId);
-			if (ctx != null) {
-				ctx.doAction(actId, op, test, timeout);
-				return actId;
-			} else {
-				throw new CartagoException(wspNotJoined);
-			}
+		ICartagoContext ctx = getContext(wspId);
+		if (ctx != null) {
+			ctx.doAction(actId, op, test, timeout);
+			return actId;
+		} else {
+			throw new CartagoException(wspNotJoined);
 		}
 	}
 
@@ -147,20 +158,12 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	 */	
 	public long doAction(Op op, String wspName, IAlignmentTest test, long timeout) throws CartagoException {
 		long actId = actionId.incrementAndGet();
-		ICartagoContext ctx = null;
-		synchronized (this){
-				for (Map.Entry<WorkspaceId, ICartagoContext> e: contexts.entrySet()){
-					if (e.getKey().getName().equals(wspName)) {
-						ctx = e.getValue();
-						break;
-					}
-				}
-			if (ctx != null) {
-				ctx.doAction(actId, op, test, timeout);
-				return actId;
-			} else {
-				throw new CartagoException(wspNotJoined);
-			}
+		ICartagoContext ctx = getContext(wspName);
+		if (ctx != null) {
+			ctx.doAction(actId, op, test, timeout);
+			return actId;
+		} else {
+			throw new CartagoException(wspNotJoined);
 		}
 	}
 		
@@ -168,9 +171,9 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	 * Close this session
 	 */
 	public void closeSession()  throws CartagoException {
-			for (java.util.Map.Entry<WorkspaceId, ICartagoContext> e : contexts.entrySet()) {
+			for (Joined j : contexts.values()) {
 				try {
-					e.getValue().quit();
+					j.ctx.quit();
 				} catch (Exception ex){
 					ex.printStackTrace();
 				}
@@ -181,8 +184,8 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 
 	public List<WorkspaceId> getJoinedWorkspaces() throws CartagoException {
 		List<WorkspaceId> wsps = new LinkedList<WorkspaceId>();
-		for (java.util.Map.Entry<WorkspaceId, ICartagoContext> c : contexts.entrySet()) {
-			wsps.add(c.getKey());
+		for (Joined j : contexts.values()) {
+			wsps.add(j.wspId);
 		}
 		return wsps;
 	}
@@ -190,16 +193,45 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	// Utility methods
 
 	public WorkspaceId getJoinedWspId(String wspName) throws CartagoException {
-		for (java.util.Map.Entry<WorkspaceId, ICartagoContext> c : contexts.entrySet()) {
-			if (c.getKey().getName().equals(wspName)) {
-				return c.getKey();
-			}
+		Joined j = getJoined(wspName);
+		if (j != null) {
+			return j.wspId;
 		}
 		throw new CartagoException("Workspace not joined.");
 	}
 
 	public ICartagoContext getJoinedWsp(WorkspaceId wid) {
-		return contexts.get(wid);
+		return getContext(wid);
+	}
+
+	/* lookups by key, without locks: the contexts are updated by the join and quit events */
+
+	private Joined getJoined(String wspName) {
+		WspKey key = getKey(wspName);
+		return key != null ? contexts.get(key) : null;
+	}
+
+	/* the URI of a joined workspace may have been finalized since: its new name leads to its key then */
+	private WspKey getKey(String wspName) {
+		WspKey key = keys.lookup(wspName);
+		if (key == null) {
+			for (Map.Entry<WspKey, Joined> e: contexts.entrySet()) {
+				if (wspName.equals(e.getValue().wspId.getName())) {
+					keys.rename(e.getKey(), wspName);
+					return e.getKey();
+				}
+			}
+		}
+		return key;
+	}
+
+	private ICartagoContext getContext(String wspName) {
+		Joined j = getJoined(wspName);
+		return j != null ? j.ctx : null;
+	}
+
+	private ICartagoContext getContext(WorkspaceId wspId) {
+		return getContext(wspId.getName());
 	}
 		
 	/**
@@ -221,6 +253,92 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	}
 
 	
+	/**
+	 * Conflate the updates of an observable property of a focused artifact.
+	 * 
+	 * If the agent lags behind, the updates of the property not sent yet
+	 * by the workspace are replaced by the newest one. The setting holds
+	 * until the focus is stopped.
+	 * 
+	 * @param aid artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 * @param maxRate max number of updates per second, 0 for no limit
+	 * @return false if not supported, as for local workspaces
+	 * @throws CartagoException
+	 */
+	public boolean conflate(ArtifactId aid, String propName, double maxRate) throws CartagoException {
+		ICartagoContext ctx = getContext(aid.getWorkspaceId());
+		if (ctx == null) {
+			throw new CartagoException(wspNotJoined);
+		} else if (ctx instanceof AgentBodyProxy) {
+			return ((AgentBodyProxy) ctx).conflate(aid, propName, maxRate);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Stop conflating the updates of an observable property.
+	 * 
+	 * @param aid artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 * @return false if not supported
+	 * @throws CartagoException
+	 */
+	public boolean stopConflating(ArtifactId aid, String propName) throws CartagoException {
+		ICartagoContext ctx = getContext(aid.getWorkspaceId());
+		if (ctx == null) {
+			throw new CartagoException(wspNotJoined);
+		} else if (ctx instanceof AgentBodyProxy) {
+			return ((AgentBodyProxy) ctx).stopConflating(aid, propName);
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Set the filter applied by a remote workspace to all the
+	 * observations sent to the agent.
+	 * 
+	 * Unlike the agent listener, the filter is evaluated before the
+	 * events are encoded and sent.
+	 * 
+	 * @param wspId workspace
+	 * @param filter the filter, null to remove it
+	 * @return false if not supported, as for local workspaces
+	 * @throws CartagoException
+	 */
+	public boolean setPerceptFilter(WorkspaceId wspId, PerceptFilter filter) throws CartagoException {
+		ICartagoContext ctx = getContext(wspId);
+		if (ctx == null) {
+			throw new CartagoException(wspNotJoined);
+		} else if (ctx instanceof AgentBodyProxy) {
+			return ((AgentBodyProxy) ctx).setPerceptFilter(null, filter);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Set the filter applied by a remote workspace to the observations
+	 * of a focused artifact. The filter holds until the focus is stopped.
+	 * 
+	 * @param aid artifact
+	 * @param filter the filter, null to remove it
+	 * @return false if not supported, as for local workspaces
+	 * @throws CartagoException
+	 */
+	public boolean setPerceptFilter(ArtifactId aid, PerceptFilter filter) throws CartagoException {
+		ICartagoContext ctx = getContext(aid.getWorkspaceId());
+		if (ctx == null) {
+			throw new CartagoException(wspNotJoined);
+		} else if (ctx instanceof AgentBodyProxy) {
+			return ((AgentBodyProxy) ctx).setPerceptFilter(aid, filter);
+		} else {
+			return false;
+		}
+	}
+	
 	//
 
 	/**
@@ -230,7 +348,92 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 	 * 
 	 */
 	public CartagoEvent fetchNextPercept() {
-		return perceptQueue.poll();
+		CartagoEvent ev = perceptQueue.poll();
+		checkBacklog();
+		return ev;
+	}
+
+	/**
+	 * Fetch a new percept, waiting for it if there are none.
+	 * 
+	 * @param timeout max time to wait (ms)
+	 * @return the percept or null if the timeout expired or the thread has been interrupted
+	 */
+	public CartagoEvent fetchNextPercept(long timeout) {
+		CartagoEvent ev = null;
+		checkBacklog();
+		try {
+			ev = perceptQueue.poll(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		checkBacklog();
+		return ev;
+	}
+
+	/**
+	 * Fetch all the available percepts, up to a max number.
+	 * 
+	 * @param percepts collection where to add the percepts
+	 * @param max
+	 * @return the number of percepts fetched
+	 */
+	public int drainPercepts(Collection<? super CartagoEvent> percepts, int max) {
+		int n = perceptQueue.drainTo(percepts, max);
+		checkBacklog();
+		return n;
+	}
+
+	/**
+	 * Set the order in which the percepts are fetched: by default
+	 * percepts are handed out in arrival order.
+	 * 
+	 * @param policy
+	 */
+	public void setPerceptDequeuePolicy(PerceptLanes.Policy policy) {
+		perceptQueue.setPolicy(policy);
+	}
+
+	/**
+	 * Set the number of queued observations beyond which remote
+	 * workspaces stop sending events to this agent - at most the
+	 * capacity of the observation queue less the credit window.
+	 * 
+	 * @param max
+	 */
+	public void setMaxPerceptBacklog(int max) {
+		int observations = perceptQueue.capacity(PerceptLanes.Lane.OBSERVATION);
+		maxPerceptBacklog = Math.max(1, Math.min(max, observations - creditWindow));
+	}
+
+	/* events a remote workspace can send before the agent consumes them */
+	int getCreditWindow() {
+		return creditWindow;
+	}
+
+	boolean isPerceptBacklogged() {
+		if (perceptQueue.size(PerceptLanes.Lane.OBSERVATION) >= maxPerceptBacklog) {
+			drainRequested = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/* once the backlog has been consumed, remote workspaces can go on */
+	private void checkBacklog() {
+		if (drainRequested && perceptQueue.size(PerceptLanes.Lane.OBSERVATION) < maxPerceptBacklog) {
+			drainRequested = false;
+			perceptsDrained();
+		}
+	}
+
+	private void perceptsDrained() {
+		for (Joined j: contexts.values()) {
+			if (j.ctx instanceof AgentBodyProxy) {
+				((AgentBodyProxy) j.ctx).perceptsDrained();
+			}
+		}
 	}
 
 	
@@ -246,10 +449,14 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 			}
 		} else if (ev instanceof JoinWSPSucceededEvent) {
 			JoinWSPSucceededEvent wspev = (JoinWSPSucceededEvent) ev;				
-			contexts.put(wspev.getWorkspaceId(), wspev.getContext());
+			contexts.put(keys.of(wspev.getWorkspaceId()), new Joined(wspev.getWorkspaceId(), wspev.getContext()));
 		} else if (ev instanceof QuitWSPSucceededEvent) {
 			QuitWSPSucceededEvent wspev = (QuitWSPSucceededEvent) ev;
-			contexts.remove(wspev.getWorkspaceId());
+			WspKey key = getKey(wspev.getWorkspaceId().getName());
+			if (key != null) {
+				contexts.remove(key);
+				keys.remove(key);
+			}
 		}
 	}
 
@@ -260,12 +467,20 @@ public class AgentSession implements IAgentSession, ICartagoCallback, Serializab
 			keepEvent = agentArchListener.notifyCartagoEvent(ev);
 		}
 		if (keepEvent) {
-			perceptQueue.add(ev);
+			perceptQueue.offer(ev);
 		}
 	}
 
 	
 
+	/* a joined workspace: its id and the context of the agent */
+	static private final class Joined {
+		final WorkspaceId wspId;
+		final ICartagoContext ctx;
 
-
+		Joined(WorkspaceId wspId, ICartagoContext ctx) {
+			this.wspId = wspId;
+			this.ctx = ctx;
+		}
+	}
 }
@@ -0,0 +1,270 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.WebSocketBase;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Compact tag-length-value encoding of the frames.
+ *
+ * A frame is the magic byte followed by the format version and by the
+ * encoded root object. Each value is a one byte tag followed by its payload:
+ * integers are zig-zag varints, doubles are 8 bytes, strings are a varint
+ * length followed by UTF-8 bytes, objects and arrays are a varint count
+ * followed by their entries.
+ *
+ */
+class BinaryWireCodec extends WireCodec {
+
+	/* JSON frames start with '{', so this byte is never ambiguous */
+	static final byte MAGIC = (byte) 0xCA;
+	static final byte VERSION = 1;
+
+	static final byte T_NULL = 0;
+	static final byte T_TRUE = 1;
+	static final byte T_FALSE = 2;
+	static final byte T_INT = 3;
+	static final byte T_LONG = 4;
+	static final byte T_DOUBLE = 5;
+	static final byte T_STRING = 6;
+	static final byte T_OBJECT = 7;
+	static final byte T_ARRAY = 8;
+
+	public String getName() {
+		return "binary";
+	}
+
+	public Buffer encode(JsonObject frame) {
+		Buffer buf = Buffer.buffer(256);
+		buf.appendByte(MAGIC);
+		buf.appendByte(VERSION);
+		writeMap(buf, frame.getMap());
+		return buf;
+	}
+
+	public void write(WebSocketBase ws, JsonObject frame) {
+		ws.writeBinaryMessage(encode(frame));
+	}
+
+	/**
+	 * Encode a single value, to be included in frames
+	 *
+	 * @param value
+	 * @return
+	 */
+	static Buffer encodeValue(Object value) {
+		Buffer buf = Buffer.buffer(64);
+		writeValue(buf, value);
+		return buf;
+	}
+
+	static boolean isBinaryFrame(Buffer buffer) {
+		return buffer.length() > 1 && buffer.getByte(0) == MAGIC;
+	}
+
+	@SuppressWarnings("unchecked")
+	static JsonObject decodeFrame(Buffer buffer) {
+		byte version = buffer.getByte(1);
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported binary frame version: " + version);
+		}
+		Reader in = new Reader(buffer, 2);
+		Object root = in.readValue();
+		if (!(root instanceof Map)) {
+			throw new IllegalArgumentException("Binary frame does not contain an object");
+		}
+		return new JsonObject((Map<String, Object>) root);
+	}
+
+	// encoding
+
+	@SuppressWarnings("unchecked")
+	static private void writeValue(Buffer buf, Object value) {
+		if (value == null) {
+			buf.appendByte(T_NULL);
+		} else if (value instanceof String) {
+			buf.appendByte(T_STRING);
+			writeString(buf, (String) value);
+		} else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			buf.appendByte(T_INT);
+			writeVarLong(buf, zigZag(((Number) value).intValue()));
+		} else if (value instanceof Long) {
+			buf.appendByte(T_LONG);
+			writeVarLong(buf, zigZag((Long) value));
+		} else if (value instanceof Number) {
+			buf.appendByte(T_DOUBLE);
+			buf.appendDouble(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			buf.appendByte(((Boolean) value) ? T_TRUE : T_FALSE);
+		} else if (value instanceof JsonObject) {
+			writeMap(buf, ((JsonObject) value).getMap());
+		} else if (value instanceof Map) {
+			writeMap(buf, (Map<String, Object>) value);
+		} else if (value instanceof JsonArray) {
+			writeList(buf, ((JsonArray) value).getList());
+		} else if (value instanceof List) {
+			writeList(buf, (List<Object>) value);
+		} else if (value instanceof CharSequence) {
+			buf.appendByte(T_STRING);
+			writeString(buf, value.toString());
+		} else if (value instanceof EncodedValue) {
+			buf.appendBuffer(((EncodedValue) value).binary());
+		} else if (value instanceof byte[]) {
+			/* same representation used by the JSON encoding */
+			buf.appendByte(T_STRING);
+			writeString(buf, Base64.getEncoder().encodeToString((byte[]) value));
+		} else {
+			throw new IllegalStateException("Illegal type in frame: " + value.getClass());
+		}
+	}
+
+	static private void writeMap(Buffer buf, Map<String, Object> map) {
+		buf.appendByte(T_OBJECT);
+		writeVarLong(buf, map.size());
+		for (Map.Entry<String, Object> e: map.entrySet()) {
+			writeString(buf, e.getKey());
+			writeValue(buf, e.getValue());
+		}
+	}
+
+	static private void writeList(Buffer buf, List<Object> list) {
+		buf.appendByte(T_ARRAY);
+		writeVarLong(buf, list.size());
+		for (Object elem: list) {
+			writeValue(buf, elem);
+		}
+	}
+
+	static private void writeString(Buffer buf, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(buf, bytes.length);
+		buf.appendBytes(bytes);
+	}
+
+	static private void writeVarLong(Buffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.appendByte((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.appendByte((byte) v);
+	}
+
+	static private long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static private long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	// decoding
+
+	static private class Reader {
+
+		private final Buffer buf;
+		private int pos;
+
+		Reader(Buffer buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		Object readValue() {
+			byte tag = buf.getByte(pos++);
+			switch (tag) {
+			case T_NULL:
+				return null;
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_INT:
+				return (int) unZigZag(readVarLong());
+			case T_LONG:
+				return unZigZag(readVarLong());
+			case T_DOUBLE: {
+				double d = buf.getDouble(pos);
+				pos += 8;
+				return d;
+			}
+			case T_STRING:
+				return readString();
+			case T_OBJECT: {
+				int size = readCount();
+				Map<String, Object> map = new LinkedHashMap<String, Object>(size * 2);
+				for (int i = 0; i < size; i++) {
+					String key = readString();
+					map.put(key, readValue());
+				}
+				return map;
+			}
+			case T_ARRAY: {
+				int size = readCount();
+				List<Object> list = new ArrayList<Object>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readValue());
+				}
+				return list;
+			}
+			default:
+				throw new IllegalArgumentException("Unknown tag " + tag + " at " + (pos - 1));
+			}
+		}
+
+		private String readString() {
+			int len = readCount();
+			String s = buf.getString(pos, pos + len, "UTF-8");
+			pos += len;
+			return s;
+		}
+
+		/* number of entries, bytes or elements: each one takes a byte at least */
+		private int readCount() {
+			long n = readVarLong();
+			if (n < 0 || n > buf.length() - pos) {
+				throw new IllegalArgumentException("Bad count " + n + " at " + pos);
+			}
+			return (int) n;
+		}
+
+		private long readVarLong() {
+			long v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (shift > 63) {
+					throw new IllegalArgumentException("Bad varint at " + pos);
+				}
+				b = buf.getByte(pos++);
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+/**
+ * Set of long keys that keeps the most recent ones: when the set is
+ * full, the key added first is forgotten to make room.
+ *
+ * Not thread safe.
+ *
+ */
+class BoundedLongSet {
+
+	private final int max;
+	/* keys mapped to the number of the addition that put them */
+	private final LongObjectHashMap<Long> keys;
+	/* keys in the order they were added, some possibly removed since */
+	private long[] order;
+	private int first;
+	private int count;
+	private long added;
+
+	/**
+	 * 
+	 * @param max max number of keys kept
+	 */
+	BoundedLongSet(int max) {
+		this.max = Math.max(1, max);
+		keys = new LongObjectHashMap<Long>(16);
+		order = new long[Math.min(16, this.max)];
+	}
+
+	/**
+	 * Add a key, forgetting the oldest one if the set is full
+	 * 
+	 * @param key
+	 */
+	void add(long key) {
+		if (count == max) {
+			long oldest = order[first];
+			Long n = keys.get(oldest);
+			/* not if it has been removed, or removed and added again */
+			if (n != null && n == added - count) {
+				keys.remove(oldest);
+			}
+			first = (first + 1) % order.length;
+			count--;
+		} else if (count == order.length) {
+			grow();
+		}
+		order[(first + count) % order.length] = key;
+		count++;
+		keys.put(key, added++);
+	}
+
+	private void grow() {
+		long[] larger = new long[Math.min(order.length * 2, max)];
+		for (int i = 0; i < count; i++) {
+			larger[i] = order[(first + i) % order.length];
+		}
+		order = larger;
+		first = 0;
+	}
+
+	/**
+	 * Remove a key
+	 * 
+	 * @param key
+	 * @return false if the key is not in the set, never added or forgotten
+	 */
+	boolean remove(long key) {
+		return keys.remove(key) != null;
+	}
+
+	boolean contains(long key) {
+		return keys.get(key) != null;
+	}
+
+	int size() {
+		return keys.size();
+	}
+}
@@ -20,6 +20,7 @@ package cartago.infrastructure;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -27,6 +28,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import cartago.AgentCredential;
 import cartago.ArtifactConfig;
@@ -56,7 +58,7 @@ public class CartagoDistributedEnvironment {
 	/* singleton design */
 	private static CartagoDistributedEnvironment instance;
 	
-	private CartagoInfrastructureLayer infraLayer;
+	private volatile CartagoInfrastructureLayer infraLayer;
 		
 	private HashMap<String,Inspector> debuggers;
 	
@@ -170,6 +172,20 @@ public class CartagoDistributedEnvironment {
 		infraLayer.shutdownLayer();
 	}
 	
+	/**
+	 * 
+	 * Enable or disable the focus on remote artifacts shared by the agents
+	 * of this node, so that the observations of an artifact focused by many
+	 * agents are received once. It applies to the sessions started from now on.
+	 * 
+	 * @param enabled
+	 */
+	public synchronized void setSharedSubscriptions(boolean enabled) {
+		if (infraLayer instanceof CartagoInfrastructureLayerImpl) {
+			((CartagoInfrastructureLayerImpl) infraLayer).setSharedSubscriptions(enabled);
+		}
+	}
+
 	// Agent sessions
 
 	/**
@@ -182,16 +198,87 @@ public class CartagoDistributedEnvironment {
 	 * @return
 	 * @throws CartagoException
 	 */
-	public synchronized IAgentSession startSession(URI wspURI, AgentCredential cred, ICartagoListener eventListener) throws CartagoException {
+	public IAgentSession startSession(URI wspURI, AgentCredential cred, ICartagoListener eventListener) throws CartagoException {
 			AgentSession session = new AgentSession(cred,null,eventListener);
-			String sid  = requestToJoinWorkspace(wspURI, cred);
 			WorkspaceId wspId = new InfrastructureWspId(wspURI);
-			var ctx = completeJoinWorkspace(wspId,  sid, session);
+			var ctx = joinWorkspace(wspURI, cred, session);
+			session.init(wspId, ctx);
+			return session;
+	}
+
+	/**
+	 * 
+	 * Start a CArtAgO session in a remote workspace without blocking the caller:
+	 * any number of sessions can be started in parallel.
+	 * 
+	 * @param wspURI URI of the workspace: (es: http://acme.org:20100/mywsp)
+	 * @param cred agent credential
+	 * @param eventListener listener to receive CArtAgO events
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return the session, once joined
+	 */
+	public CompletableFuture<IAgentSession> startSessionAsync(URI wspURI, AgentCredential cred, ICartagoListener eventListener, long timeout) {
+		AgentSession session;
+		try {
+			session = new AgentSession(cred,null,eventListener);
+		} catch (CartagoException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+		WorkspaceId wspId = new InfrastructureWspId(wspURI);
+		return infraLayer.joinWorkspaceAsync(wspId, cred, session, timeout).thenApply(ctx -> {
 			session.init(wspId, ctx);
 			return session;
+		});
 	}
 	
 	
+	/**
+	 * 
+	 * Start the CArtAgO sessions of a batch of agents in a remote workspace:
+	 * the agents are admitted by the workspace with a few requests.
+	 * 
+	 * @param wspURI URI of the workspace: (es: http://acme.org:20100/mywsp)
+	 * @param creds agent credentials
+	 * @param eventListeners listeners to receive CArtAgO events, one for each agent
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return the session of each agent, once joined
+	 */
+	public List<CompletableFuture<IAgentSession>> startSessionsAsync(URI wspURI, List<AgentCredential> creds, List<? extends ICartagoListener> eventListeners, long timeout) {
+		WorkspaceId wspId = new InfrastructureWspId(wspURI);
+		List<AgentSession> sessions = new ArrayList<AgentSession>(creds.size());
+		for (int i = 0; i < creds.size(); i++) {
+			try {
+				sessions.add(new AgentSession(creds.get(i), null, eventListeners.get(i)));
+			} catch (CartagoException ex) {
+				ex.printStackTrace();
+				sessions.add(null);
+			}
+		}
+		/* agents whose session could not be created are not joined */
+		List<AgentCredential> joining = new ArrayList<AgentCredential>();
+		List<AgentSession> listeners = new ArrayList<AgentSession>();
+		for (int i = 0; i < creds.size(); i++) {
+			if (sessions.get(i) != null) {
+				joining.add(creds.get(i));
+				listeners.add(sessions.get(i));
+			}
+		}
+		List<CompletableFuture<ICartagoContext>> joins = infraLayer.joinWorkspaceAsync(wspId, joining, listeners, timeout);
+		List<CompletableFuture<IAgentSession>> res = new ArrayList<CompletableFuture<IAgentSession>>(creds.size());
+		int next = 0;
+		for (AgentSession session: sessions) {
+			if (session == null) {
+				res.add(CompletableFuture.failedFuture(new CartagoException("Session not created")));
+			} else {
+				res.add(joins.get(next++).thenApply(ctx -> {
+					session.init(wspId, ctx);
+					return session;
+				}));
+			}
+		}
+		return res;
+	}
+
 	/**
 	 * 
 	 * Join a remote workspace
@@ -201,17 +288,30 @@ public class CartagoDistributedEnvironment {
 	 * @return
 	 * @throws CartagoException
 	 */
-	public synchronized ICartagoContext joinWorkspace(URI wspURI, AgentCredential cred, ICartagoCallback eventListener) throws CartagoException{
+	public ICartagoContext joinWorkspace(URI wspURI, AgentCredential cred, ICartagoCallback eventListener) throws CartagoException{
 		try {
-			String sid  = this.infraLayer.requestToJoinWorkspace(wspURI, cred);
 			WorkspaceId wspId = new InfrastructureWspId(wspURI);
-			ICartagoContext ctx = this.infraLayer.joinWorkspace(wspId, sid, eventListener);
+			ICartagoContext ctx = this.infraLayer.joinWorkspace(wspId, cred, eventListener);
 			return ctx;
 		} catch (CartagoInfrastructureLayerException ex) {
 			ex.printStackTrace();
 			throw new CartagoException("Join " + wspURI + " failed ");
 		}
 	}
+
+	/**
+	 * 
+	 * Join a remote workspace without blocking the caller
+	 * 
+	 * @param wspURI workspace URI
+	 * @param cred agent credentials
+	 * @param eventListener listener to receive CArtAgO events
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return
+	 */
+	public CompletableFuture<ICartagoContext> joinWorkspaceAsync(URI wspURI, AgentCredential cred, ICartagoCallback eventListener, long timeout) {
+		return infraLayer.joinWorkspaceAsync(new InfrastructureWspId(wspURI), cred, eventListener, timeout);
+	}
 	
 	/**
 	 * 
@@ -222,7 +322,7 @@ public class CartagoDistributedEnvironment {
 	 * @return session id
 	 * @throws CartagoException
 	 */
-	synchronized String requestToJoinWorkspace(URI wspURI, AgentCredential cred) throws cartago.security.SecurityException, CartagoException{
+	String requestToJoinWorkspace(URI wspURI, AgentCredential cred) throws cartago.security.SecurityException, CartagoException{
 		try {
 			String sid  = this.infraLayer.requestToJoinWorkspace(wspURI, cred);
 			return sid;
@@ -242,7 +342,7 @@ public class CartagoDistributedEnvironment {
 	 * @return
 	 * @throws CartagoException
 	 */
-	synchronized ICartagoContext completeJoinWorkspace(WorkspaceId wspId, String sid, ICartagoCallback eventListener) throws cartago.security.SecurityException, CartagoException{
+	ICartagoContext completeJoinWorkspace(WorkspaceId wspId, String sid, ICartagoCallback eventListener) throws cartago.security.SecurityException, CartagoException{
 		try {
 			ICartagoContext ctx = this.infraLayer.joinWorkspace(wspId, sid, eventListener);
 			return ctx;
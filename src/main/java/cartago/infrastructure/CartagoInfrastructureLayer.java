@@ -18,7 +18,9 @@
 package cartago.infrastructure;
 
 import java.net.URI;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import cartago.*;
 
@@ -48,6 +50,40 @@ public interface CartagoInfrastructureLayer {
 	ICartagoContext joinWorkspace(WorkspaceId wspId, String agentSessionId, ICartagoCallback eventListener) throws CartagoInfrastructureLayerException, CartagoException;
 
 	String requestToJoinWorkspace(URI wspId, AgentCredential cred) throws CartagoInfrastructureLayerException, CartagoException;
+
+	/**
+	 * Join a remote workspace with the agent credential, in a single step
+	 * 
+	 * @param wspId	workspace id
+	 * @param cred	agent credential
+	 * @param eventListener listener to perceive workspace events
+	 * @return
+	 * @throws CartagoInfrastructureLayerException
+	 * @throws CartagoException
+	 */
+	ICartagoContext joinWorkspace(WorkspaceId wspId, AgentCredential cred, ICartagoCallback eventListener) throws CartagoInfrastructureLayerException, CartagoException;
+
+	/**
+	 * Join a remote workspace without blocking the caller
+	 * 
+	 * @param wspId	workspace id
+	 * @param cred	agent credential
+	 * @param eventListener listener to perceive workspace events
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return
+	 */
+	CompletableFuture<ICartagoContext> joinWorkspaceAsync(WorkspaceId wspId, AgentCredential cred, ICartagoCallback eventListener, long timeout);
+
+	/**
+	 * Join a remote workspace with a batch of agents, without blocking the caller
+	 * 
+	 * @param wspId	workspace id
+	 * @param creds	agent credentials
+	 * @param eventListeners listeners to perceive workspace events, one for each agent
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return the join of each agent
+	 */
+	List<CompletableFuture<ICartagoContext>> joinWorkspaceAsync(WorkspaceId wspId, List<AgentCredential> creds, List<? extends ICartagoCallback> eventListeners, long timeout);
 	
 	/**
 	 * Execute an linked operation from a local artifact to a target remote artifact using this service
@@ -18,9 +18,17 @@
 package cartago.infrastructure;
 
 import java.net.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import cartago.*;
 import cartago.security.*;
@@ -31,6 +39,8 @@ import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.ServerWebSocket;
 import io.vertx.core.http.WebSocket;
+import io.vertx.core.http.WebsocketRejectedException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.client.WebClient;
@@ -45,10 +55,34 @@ import io.vertx.ext.web.client.WebClient;
 public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLayer {
 	
 	static public final int WSP_DEFAULT_PORT = 20100; 
+
+	/* max number of agents in a bulk request to join, so that requests fit a websocket frame */
+	static final int MAX_BULK_JOIN = 500;
+
+	/* time (ms) spent resuming a session after its connection dropped, and delays between the attempts */
+	static final long RESUME_TIMEOUT = 30000;
+	static final long RESUME_MIN_DELAY = 100;
+	static final long RESUME_MAX_DELAY = 5000;
+
+	/* tick (ms) and slots of the wheel expiring the actions of the agents */
+	static final long ACTION_TIMEOUT_TICK = 100;
+	static final int ACTION_TIMEOUT_SLOTS = 1024;
 	
 	private WorkspaceService service;
 	private Vertx vertx;
-	private boolean error = false;
+	/* timeouts of the actions sent by all the proxies */
+	private final TimerWheel actionTimeouts = new TimerWheel(ACTION_TIMEOUT_TICK, ACTION_TIMEOUT_SLOTS);
+	/* focus on remote artifacts shared by the local agents, by workspace */
+	private boolean sharedSubscriptions = false;
+	private final ConcurrentHashMap<URI, SharedSubscriptions> subscriptions = new ConcurrentHashMap<URI, SharedSubscriptions>();
+	/* clients and connections shared by the sessions, by host:port */
+	private final ConcurrentHashMap<String, HttpClient> clients = new ConcurrentHashMap<String, HttpClient>();
+	private int muxConnections = 0;
+	private final HashMap<String, ArrayList<CompletableFuture<MuxConnection>>> muxes = new HashMap<String, ArrayList<CompletableFuture<MuxConnection>>>();
+	/* nodes not supporting shared connections and single round trip joins */
+	private final HashSet<String> noMux = new HashSet<String>();
+	private final HashSet<String> noConnect = new HashSet<String>();
+	private final HashSet<String> noBulk = new HashSet<String>();
 	
 	
 	/**
@@ -58,7 +92,8 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 	 * @throws CartagoInfrastructureLayerException
 	 */
 	protected CartagoInfrastructureLayerImpl(URI wspId) throws CartagoInfrastructureLayerException {
-		vertx = Vertx.vertx();
+		vertx = VertxRuntime.get();
+		actionTimeouts.start(vertx);
 		try {
 			service = new WorkspaceService();
 			service.deploy(wspId);
@@ -66,13 +101,7 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 			ex.printStackTrace();
 			throw new CartagoInfrastructureLayerException();
 		}
-		var t0 = System.currentTimeMillis();
-		while (!service.isReady() && !service.isFailed() && (System.currentTimeMillis() - t0 < 10000)) {
-			try {
-				Thread.sleep(100);
-			} catch (Exception ex) {}
-		}
-		if (!service.isReady()) {
+		if (!service.awaitReady(10000)) {
 			throw new CartagoInfrastructureLayerException();
 		}
 	}
@@ -83,11 +112,60 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 	 * 
 	 */
 	protected CartagoInfrastructureLayerImpl() {
-		vertx = Vertx.vertx();
+		vertx = VertxRuntime.get();
+		actionTimeouts.start(vertx);
 		
 	}
 	
+	/**
+	 * Enable or disable the focus on remote artifacts shared by the agents
+	 * joining workspaces from now on: the observations of an artifact
+	 * focused by many local agents are received once.
+	 * 
+	 * @param enabled
+	 */
+	public void setSharedSubscriptions(boolean enabled) {
+		sharedSubscriptions = enabled;
+	}
+
+	/**
+	 * Set the number of connections shared by the agent sessions
+	 * with the same workspace node, 0 (the default) to use
+	 * a connection for each session.
+	 * 
+	 * Nodes not supporting shared connections are joined with
+	 * a connection for each session anyway.
+	 * 
+	 * @param n
+	 */
+	public void setMuxConnections(int n) {
+		synchronized (muxes) {
+			muxConnections = Math.max(0, n);
+		}
+	}
+
 	public void shutdownLayer() throws CartagoException {
+		for (SharedSubscriptions sub: subscriptions.values()) {
+			sub.close();
+		}
+		subscriptions.clear();
+		synchronized (muxes) {
+			for (ArrayList<CompletableFuture<MuxConnection>> pool: muxes.values()) {
+				for (CompletableFuture<MuxConnection> mux: pool) {
+					mux.thenAccept(conn -> {
+						if (conn != null) {
+							conn.close();
+						}
+					});
+				}
+			}
+			muxes.clear();
+		}
+		for (HttpClient client: clients.values()) {
+			client.close();
+		}
+		clients.clear();
+		actionTimeouts.stop(vertx);
 		if (service != null){
 			service.shutdownService();
 			service = null;
@@ -95,91 +173,299 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 	}
 	
 	public ICartagoContext joinWorkspace(WorkspaceId wspId, String agentSessionId, ICartagoCallback eventListener) throws CartagoInfrastructureLayerException, CartagoException {
-		
-		try {
-			
-			InfrastructureWspId wid = (InfrastructureWspId) wspId;
-			URI uri = wid.getURI();
-			String host = uri.getHost();
-			int port = uri.getPort();
-			if (port == -1) {
-				port = WSP_DEFAULT_PORT;
+		AgentBodyProxy proxy = connect(wspId, agentSessionId, eventListener);
+		share(proxy, wspId);
+		return proxy;
+	}
+
+	/**
+	 * Join a remote workspace in a single round trip: the credential is sent
+	 * on the connection then used by the session. Nodes not supporting it are
+	 * joined with a request to join first.
+	 */
+	public ICartagoContext joinWorkspace(WorkspaceId wspId, AgentCredential cred, ICartagoCallback eventListener) throws CartagoInfrastructureLayerException, CartagoException {
+		return await(joinWorkspaceAsync(wspId, cred, eventListener, 0));
+	}
+
+	/**
+	 * Join a remote workspace without blocking the caller: any number
+	 * of joins can be in progress at the same time.
+	 * 
+	 * A join completed after its timeout is quit.
+	 * 
+	 * @param wspId workspace id
+	 * @param cred agent credential
+	 * @param eventListener listener to perceive workspace events
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return
+	 */
+	public CompletableFuture<ICartagoContext> joinWorkspaceAsync(WorkspaceId wspId, AgentCredential cred, ICartagoCallback eventListener, long timeout) {
+		CompletableFuture<AgentBodyProxy> join = connectAsync(wspId, cred, eventListener).thenCompose(proxy -> {
+			if (proxy != null) {
+				return CompletableFuture.completedFuture(proxy);
 			}
+			/* nodes not supporting the single round trip join */
+			return requestToJoinAsync(((InfrastructureWspId) wspId).getURI(), cred)
+					.thenCompose(sid -> connectAsync(wspId, sid, eventListener));
+		});
+		return complete(join, wspId, timeout);
+	}
 
-			HttpClientOptions options = new HttpClientOptions().setDefaultHost(host).setDefaultPort(port);
-			HttpClient client = vertx.createHttpClient(options);
-			
-			AgentBodyProxy proxy = new AgentBodyProxy(vertx, port);
-			
-			Semaphore ev = new Semaphore(0);
-			error = false;
-			
-			client.websocket("/cartago/api/join", (WebSocket ws) -> {
-				  
-				 
-				  JsonObject params = new JsonObject();
-				  params.put("session-id", agentSessionId);
+	/**
+	 * Join a remote workspace with a batch of agents: the agents are admitted
+	 * by the node with a few requests, then each session is connected.
+	 * 
+	 * @param wspId workspace id
+	 * @param creds agent credentials
+	 * @param eventListeners listeners to perceive workspace events, one for each agent
+	 * @param timeout timeout in ms, 0 for no timeout
+	 * @return the join of each agent
+	 */
+	public List<CompletableFuture<ICartagoContext>> joinWorkspaceAsync(WorkspaceId wspId, List<AgentCredential> creds, List<? extends ICartagoCallback> eventListeners, long timeout) {
+		CompletableFuture<List<String>> sids = requestToJoinAsync(((InfrastructureWspId) wspId).getURI(), creds);
+		List<CompletableFuture<ICartagoContext>> joins = new ArrayList<CompletableFuture<ICartagoContext>>(creds.size());
+		for (int i = 0; i < creds.size(); i++) {
+			int index = i;
+			CompletableFuture<AgentBodyProxy> join = sids.thenCompose(list -> {
+				String sid = list.get(index);
+				if (sid == null) {
+					log("Request from " + creds.get(index).getId() + " refused");
+					throw new CompletionException(new CartagoInfrastructureLayerException());
+				}
+				return connectAsync(wspId, sid, eventListeners.get(index));
+			});
+			joins.add(complete(join, wspId, timeout));
+		}
+		return joins;
+	}
 
-				  ws.handler((Buffer b) -> {
-					  try {
-						proxy.init(ws, wspId, eventListener);
-					  } catch (Exception ex) { 
-						ex.printStackTrace();  
-					  } finally {
-					  	ev.release();
-					  }
-				  });
-				  
-				  ws.writeTextMessage(params.encode());
+	/* a join completed after its timeout is quit */
+	private CompletableFuture<ICartagoContext> complete(CompletableFuture<AgentBodyProxy> join, WorkspaceId wspId, long timeout) {
+		CompletableFuture<ICartagoContext> res = join.thenApply(proxy -> {
+			share(proxy, wspId);
+			return proxy;
+		});
+		if (timeout > 0) {
+			res.orTimeout(timeout, TimeUnit.MILLISECONDS);
+			join.thenAccept(proxy -> {
+				if (res.isCompletedExceptionally()) {
+					try {
+						proxy.quit();
+					} catch (Exception ex) {
+						ex.printStackTrace();
+					}
+				}
+			});
+		}
+		return res;
+	}
 
-				   
-			}, err -> {
-				  System.out.println("Error!");
-				  error = true;
-				  ev.release();
-			
+	private void share(AgentBodyProxy proxy, WorkspaceId wspId) {
+		if (sharedSubscriptions) {
+			URI uri = ((InfrastructureWspId) wspId).getURI();
+			proxy.share(subscriptions.computeIfAbsent(uri, u -> new SharedSubscriptions(this, wspId)));
+		}
+	}
+
+	/**
+	 * Open the connection of a session 
+	 * 
+	 * @param wspId
+	 * @param agentSessionId
+	 * @param eventListener
+	 * @return
+	 * @throws CartagoInfrastructureLayerException
+	 */
+	AgentBodyProxy connect(WorkspaceId wspId, String agentSessionId, ICartagoCallback eventListener) throws CartagoInfrastructureLayerException {
+		return await(connectAsync(wspId, agentSessionId, eventListener));
+	}
+
+	private CompletableFuture<AgentBodyProxy> connectAsync(WorkspaceId wspId, String agentSessionId, ICartagoCallback eventListener) {
+		URI uri = ((InfrastructureWspId) wspId).getURI();
+		String host = uri.getHost();
+		int port = uri.getPort() != -1 ? uri.getPort() : WSP_DEFAULT_PORT;
+
+		return muxAsync(host, port).thenCompose(mux -> {
+			AgentBodyProxy proxy = newProxy(host, port);
+			if (mux != null) {
+				return mux.join(proxy, agentSessionId, wspId, eventListener).thenApply(sid -> proxy);
+			}
+			JsonObject params = new JsonObject();
+			params.put("session-id", agentSessionId);
+			return open(host, port, "/cartago/api/join", proxy, params, wspId, eventListener).thenApply(joined -> {
+				if (joined == null) {
+					throw new CompletionException(new CartagoInfrastructureLayerException());
+				}
+				return joined;
 			});
+		});
+	}
+
+	/*
+	 * Open the connection of a session with the credential of the agent,
+	 * null if the node does not support it.
+	 */
+	private CompletableFuture<AgentBodyProxy> connectAsync(WorkspaceId wspId, AgentCredential cred, ICartagoCallback eventListener) {
+		URI uri = ((InfrastructureWspId) wspId).getURI();
+		String host = uri.getHost();
+		int port = uri.getPort() != -1 ? uri.getPort() : WSP_DEFAULT_PORT;
+		String key = host + ":" + port;
 
-			ev.acquire();
-			if (!error) {
-				return proxy;
-			} else {
-				throw new CartagoInfrastructureLayerException();
+		return muxAsync(host, port).thenCompose(mux -> {
+			AgentBodyProxy proxy = newProxy(host, port);
+			if (mux != null) {
+				return mux.join(proxy, cred, wspId, eventListener).thenApply(sid -> {
+					log("Join of " + cred.getId() + " accepted - session id: " + sid);
+					return proxy;
+				});
 			}
-			
-		} catch (Exception ex){
-			ex.printStackTrace();
-			throw new CartagoInfrastructureLayerException();
-		}
+			synchronized (muxes) {
+				if (noConnect.contains(key)) {
+					return CompletableFuture.completedFuture(null);
+				}
+			}
+			JsonObject params = new JsonObject();
+			params.put("agent-cred", JsonUtil.toJson(cred));
+			return open(host, port, "/cartago/api/connect", proxy, params, wspId, eventListener).thenApply(joined -> {
+				if (joined == null) {
+					log("Node " + key + " does not support single round trip joins");
+					synchronized (muxes) {
+						noConnect.add(key);
+					}
+				}
+				return joined;
+			});
+		});
+	}
+
+	/*
+	 * Open a websocket and join with the params: the websocket is then used by the session.
+	 * Null if the node rejects the websocket.
+	 */
+	private CompletableFuture<AgentBodyProxy> open(String host, int port, String path, AgentBodyProxy proxy, JsonObject params, WorkspaceId wspId, ICartagoCallback eventListener) {
+		CompletableFuture<AgentBodyProxy> res = new CompletableFuture<AgentBodyProxy>();
 		
+		client(host, port).websocket(path, (WebSocket ws) -> {
+			  
+			  WireProtocol.offer(params);
+
+			  ws.handler((Buffer b) -> {
+				  try {
+					JsonObject reply = b.toJsonObject();
+					if (reply.containsKey("error")) {
+						log("Join failed: " + reply.getString("error"));
+						res.completeExceptionally(new CartagoInfrastructureLayerException());
+					} else {
+						/* the single round trip join replies with the new session id */
+						String sessionId = reply.getString("session-id", params.getString("session-id"));
+						proxy.setSessionToken(reply.getString("session-token"));
+						proxy.init(ws, sessionId, wspId, eventListener, WireProtocol.accepted(reply));
+						res.complete(proxy);
+					}
+				  } catch (Exception ex) { 
+					ex.printStackTrace();  
+					res.completeExceptionally(new CartagoInfrastructureLayerException());
+				  }
+			  });
+			  
+			  ws.writeTextMessage(params.encode());
+
+		}, err -> {
+			  if (err instanceof WebsocketRejectedException) {
+				  res.complete(null);
+			  } else {
+				  System.out.println("Error!");
+				  res.completeExceptionally(new CartagoInfrastructureLayerException());
+			  }
+		});
+		return res;
 	}
 	
+	private AgentBodyProxy newProxy(String host, int port) {
+		AgentBodyProxy proxy = new AgentBodyProxy(vertx, port, actionTimeouts);
+		proxy.onConnectionLost(p -> resume(p, host, port, System.currentTimeMillis() + RESUME_TIMEOUT, RESUME_MIN_DELAY));
+		return proxy;
+	}
+
+	/*
+	 * Resume a session whose connection dropped: the node sends again the
+	 * events missed. Attempts are repeated with a growing delay while the
+	 * node is not reachable.
+	 */
+	private void resume(AgentBodyProxy proxy, String host, int port, long deadline, long delay) {
+		String sessionId = proxy.getSessionId();
+		muxAsync(host, port).thenCompose(mux -> mux != null ? mux.resume(proxy) : resumeAsync(host, port, proxy))
+			.whenComplete((resumed, ex) -> {
+				if (ex == null) {
+					log(resumed ? "Session " + sessionId + " resumed" : "Session " + sessionId + " cannot be resumed");
+					if (!resumed) {
+						proxy.sessionLost();
+					}
+				} else if (System.currentTimeMillis() + delay < deadline) {
+					vertx.setTimer(delay, id -> resume(proxy, host, port, deadline, Math.min(delay * 2, RESUME_MAX_DELAY)));
+				} else {
+					log("Session " + sessionId + " lost: node not reachable");
+					proxy.sessionLost();
+				}
+			});
+	}
+
+	/* resume a session on a new websocket */
+	private CompletableFuture<Boolean> resumeAsync(String host, int port, AgentBodyProxy proxy) {
+		CompletableFuture<Boolean> res = new CompletableFuture<Boolean>();
+		client(host, port).websocket("/cartago/api/join", (WebSocket ws) -> {
+			ws.handler((Buffer b) -> {
+				try {
+					String state = b.toJsonObject().getString("state");
+					boolean resumed = "resumed".equals(state);
+					if (resumed) {
+						proxy.resumed(ws);
+					} else {
+						ws.close();
+					}
+					if ("busy".equals(state)) {
+						/* the node has not seen the connection drop yet */
+						res.completeExceptionally(new CartagoInfrastructureLayerException());
+					} else {
+						res.complete(resumed);
+					}
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					res.completeExceptionally(new CartagoInfrastructureLayerException());
+				}
+			});
+			ws.closeHandler(v -> res.completeExceptionally(new CartagoInfrastructureLayerException()));
+			JsonObject params = new JsonObject();
+			params.put("session-id", proxy.getSessionId());
+			params.put("session-token", proxy.getSessionToken());
+			params.put("resume", proxy.getLastSeq());
+			WireProtocol.offer(params);
+			ws.writeTextMessage(params.encode());
+		}, err -> res.completeExceptionally(new CartagoInfrastructureLayerException()));
+		return res;
+	}
+
 	public String requestToJoinWorkspace(URI wspId, AgentCredential cred) throws CartagoInfrastructureLayerException, CartagoException {
-		
-		try {
-			
-			String host = wspId.getHost();
-			int port = wspId.getPort();
-			if (port == -1) {
-				port = WSP_DEFAULT_PORT;
-			}
+		return await(requestToJoinAsync(wspId, cred));
+	}
 
-			HttpClientOptions options = new HttpClientOptions().setDefaultHost(host).setDefaultPort(port);
-			HttpClient client = vertx.createHttpClient(options);
-			
-			// AgentBodyProxy proxy = new AgentBodyProxy(vertx, port);
-			
-			Semaphore ev = new Semaphore(0);
-			error = false;
-			StringBuffer sessionId = new StringBuffer();
+	private CompletableFuture<String> requestToJoinAsync(URI wspId, AgentCredential cred) {
+		String host = wspId.getHost();
+		int port = wspId.getPort() != -1 ? wspId.getPort() : WSP_DEFAULT_PORT;
+
+		return muxAsync(host, port).thenCompose(mux -> {
+			if (mux != null) {
+				return mux.requestToJoin(cred).thenApply(sid -> {
+					log("Request from " + cred.getId() + " accepted - session id: " + sid);
+					return sid;
+				});
+			}
+			CompletableFuture<String> res = new CompletableFuture<String>();
 			
-			client.websocket("/cartago/api/request-to-join", (WebSocket ws) -> {
+			client(host, port).websocket("/cartago/api/request-to-join", (WebSocket ws) -> {
 				  JsonObject params = new JsonObject();
 				  // params.put("wspFullName", wspFullNameRemote);
-				  JsonObject ac = new JsonObject();
-				  ac.put("userName", cred.getId());
-				  ac.put("roleName", cred.getRoleName());				  
-				  params.put("agent-cred", ac);
+				  params.put("agent-cred", JsonUtil.toJson(cred));
 				  
 				  log("New request to join from: " + cred.getId());
 
@@ -189,15 +475,15 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 
 							String agentSessionId = reply.getString("session-id");
 							// System.out.println("AGENT SESSION ID: " + reply);			
-							sessionId.append(agentSessionId);
 							log("Request from " + cred.getId() + " accepted - session id: " + agentSessionId);
+							ws.close();
+							res.complete(agentSessionId);
 
 						// WorkspaceId id = WorkspaceId.makeInfrastructureWspIJd(wspId);
 						// proxy.init(ws, id, eventListener);
 					  } catch (Exception ex) { 
 						ex.printStackTrace();  
-					  } finally {
-					  	ev.release();
+						res.completeExceptionally(new CartagoInfrastructureLayerException());
 					  }
 				  });
 				
@@ -205,24 +491,111 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 
 			}, err -> {
 				  System.out.println("Error!");
-				  error = true;
-				  ev.release();
-			
+				  res.completeExceptionally(new CartagoInfrastructureLayerException());
 			});
+			return res;
+		});
+	}
 
-			ev.acquire();
-			if (!error) {
-				return sessionId.toString();
-			} else {
-		
-				throw new CartagoInfrastructureLayerException();
+	/*
+	 * Request to join for a batch of agents: null session ids for the agents
+	 * not admitted. Nodes not supporting bulk requests get a request for each agent.
+	 */
+	private CompletableFuture<List<String>> requestToJoinAsync(URI wspId, List<AgentCredential> creds) {
+		List<CompletableFuture<List<String>>> requests = new ArrayList<CompletableFuture<List<String>>>();
+		for (int i = 0; i < creds.size(); i += MAX_BULK_JOIN) {
+			requests.add(bulkRequestToJoinAsync(wspId, creds.subList(i, Math.min(creds.size(), i + MAX_BULK_JOIN))));
+		}
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).thenApply(v -> {
+			List<String> sids = new ArrayList<String>(creds.size());
+			for (CompletableFuture<List<String>> req: requests) {
+				sids.addAll(req.join());
+			}
+			return sids;
+		});
+	}
+
+	private CompletableFuture<List<String>> bulkRequestToJoinAsync(URI wspId, List<AgentCredential> creds) {
+		String host = wspId.getHost();
+		int port = wspId.getPort() != -1 ? wspId.getPort() : WSP_DEFAULT_PORT;
+		String key = host + ":" + port;
+
+		return muxAsync(host, port).thenCompose(mux -> {
+			if (mux != null) {
+				return mux.requestToJoin(creds);
 			}
+			synchronized (muxes) {
+				if (noBulk.contains(key)) {
+					return requestToJoinEachAsync(wspId, creds);
+				}
+			}
+			CompletableFuture<List<String>> res = new CompletableFuture<List<String>>();
 			
-		} catch (Exception ex){
+			client(host, port).websocket("/cartago/api/bulk-request-to-join", (WebSocket ws) -> {
+				  JsonObject params = new JsonObject();
+				  JsonArray list = new JsonArray();
+				  for (AgentCredential cred: creds) {
+					  list.add(JsonUtil.toJson(cred));
+				  }
+				  params.put("agent-creds", list);
+
+				  ws.handler((Buffer b) -> {
+					  try {
+						  JsonObject reply = b.toJsonObject();
+						  ws.close();
+						  res.complete(JsonUtil.toStringList(reply.getJsonArray("session-ids")));
+					  } catch (Exception ex) { 
+						  ex.printStackTrace();  
+						  res.completeExceptionally(new CartagoInfrastructureLayerException());
+					  }
+				  });
+				
+				  ws.writeTextMessage(params.encode());
+
+			}, err -> {
+				  if (err instanceof WebsocketRejectedException) {
+					  log("Node " + key + " does not support bulk requests to join");
+					  synchronized (muxes) {
+						  noBulk.add(key);
+					  }
+					  requestToJoinEachAsync(wspId, creds).thenAccept(res::complete);
+				  } else {
+					  System.out.println("Error!");
+					  res.completeExceptionally(new CartagoInfrastructureLayerException());
+				  }
+			});
+			return res;
+		});
+	}
+
+	private CompletableFuture<List<String>> requestToJoinEachAsync(URI wspId, List<AgentCredential> creds) {
+		List<CompletableFuture<String>> requests = new ArrayList<CompletableFuture<String>>(creds.size());
+		for (AgentCredential cred: creds) {
+			requests.add(requestToJoinAsync(wspId, cred).exceptionally(ex -> null));
+		}
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).thenApply(v -> {
+			List<String> sids = new ArrayList<String>(creds.size());
+			for (CompletableFuture<String> req: requests) {
+				sids.add(req.join());
+			}
+			return sids;
+		});
+	}
+
+	/* wait for an operation started asynchronously */
+	static private <T> T await(CompletableFuture<T> op) throws CartagoInfrastructureLayerException {
+		try {
+			return op.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof CartagoInfrastructureLayerException) {
+				throw (CartagoInfrastructureLayerException) ex.getCause();
+			}
 			ex.printStackTrace();
 			throw new CartagoInfrastructureLayerException();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new CartagoInfrastructureLayerException();
 		}
-		
 	}
 
 	
@@ -247,6 +620,50 @@ public class CartagoInfrastructureLayerImpl implements CartagoInfrastructureLaye
 	}
 
 
+	private HttpClient client(String host, int port) {
+		return clients.computeIfAbsent(host + ":" + port, key -> {
+			/* websockets of the sessions are long lived, they must not be limited by the pool */
+			HttpClientOptions options = new HttpClientOptions().setDefaultHost(host).setDefaultPort(port).setMaxPoolSize(Integer.MAX_VALUE);
+			return vertx.createHttpClient(options);
+		});
+	}
+
+	/*
+	 * Connection shared with the node, the least used one of the pool.
+	 * Null if connections are not shared.
+	 */
+	private CompletableFuture<MuxConnection> muxAsync(String host, int port) {
+		String key = host + ":" + port;
+		synchronized (muxes) {
+			if (muxConnections == 0 || noMux.contains(key)) {
+				return CompletableFuture.completedFuture(null);
+			}
+			ArrayList<CompletableFuture<MuxConnection>> pool = muxes.computeIfAbsent(key, k -> new ArrayList<CompletableFuture<MuxConnection>>());
+			pool.removeIf(mux -> mux.isCompletedExceptionally() || (mux.isDone() && (mux.join() == null || mux.join().isClosed())));
+			if (pool.size() < muxConnections) {
+				CompletableFuture<MuxConnection> mux = MuxConnection.open(client(host, port)).thenApply(conn -> {
+					if (conn == null) {
+						log("Node " + key + " does not support shared connections");
+						synchronized (muxes) {
+							noMux.add(key);
+						}
+					}
+					return conn;
+				});
+				pool.add(mux);
+				return mux;
+			}
+			/* connections still opening are used only if none is open */
+			CompletableFuture<MuxConnection> best = pool.get(0);
+			for (CompletableFuture<MuxConnection> mux: pool) {
+				if (mux.isDone() && (!best.isDone() || mux.join().size() < best.join().size())) {
+					best = mux;
+				}
+			}
+			return best;
+		}
+	}
+
 	private void log(String msg) {
 		System.out.println("[CartagoInfraLayer] " + msg);
 	}
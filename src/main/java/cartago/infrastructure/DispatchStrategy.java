@@ -0,0 +1,40 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+/**
+ * Where the requests of remote agents - actions, joins - are executed.
+ *
+ * The requests of a session are executed in the order they are received
+ * with any strategy.
+ *
+ */
+public enum DispatchStrategy {
+
+	/* on the event loop of the connection: a slow request delays the other sessions of the loop */
+	INLINE,
+
+	/* on a pool of workers, each session bound to one: a slow request delays the sessions of its worker only */
+	WORKER_POOL,
+
+	/* on a shared pool, each session queued on its own: a slow request delays its session only */
+	PER_SESSION,
+
+	/* as PER_SESSION, on a virtual thread for each request: blocking requests do not hold a platform thread (Java 21) */
+	VIRTUAL
+}
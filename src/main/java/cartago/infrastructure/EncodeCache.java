@@ -0,0 +1,87 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the parts of the events shared by many remote sessions,
+ * such as the signals and the observable properties of an artifact
+ * sent to all its focusers.
+ * 
+ * Parts are identified by the object passed to the bodies, so a part
+ * is found only when the same instance is sent to several sessions.
+ * The first session encoding a part does it on its own, with its
+ * dictionary and deltas; from the second one on, the part is encoded
+ * once and shared.
+ * 
+ * The cache has a fixed number of slots, a part replacing the one in
+ * its slot: only the parts of recent events are kept.
+ * 
+ */
+class EncodeCache {
+
+	static final int DEFAULT_SIZE = 4096;
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+
+	EncodeCache(int size) {
+		int n = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+		slots = new AtomicReferenceArray<Entry>(n);
+		mask = n - 1;
+	}
+
+	/**
+	 * Get the shared encoding of a part
+	 * 
+	 * @param part the part of the event
+	 * @param encoder tree of the part, encoded without dictionary
+	 * @return the encoding or null if the part has not been seen before
+	 */
+	EncodedValue share(Object part, Supplier<Object> encoder) {
+		int index = System.identityHashCode(part) & mask;
+		Entry e = slots.get(index);
+		if (e == null || e.part != part) {
+			slots.set(index, new Entry(part));
+			return null;
+		}
+		EncodedValue v = e.value;
+		if (v == null) {
+			synchronized (e) {
+				v = e.value;
+				if (v == null) {
+					v = new EncodedValue(encoder.get());
+					e.value = v;
+				}
+			}
+		}
+		return v;
+	}
+
+	static private class Entry {
+
+		final Object part;
+		volatile EncodedValue value;
+
+		Entry(Object part) {
+			this.part = part;
+		}
+	}
+}
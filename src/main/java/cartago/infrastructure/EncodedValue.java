@@ -0,0 +1,69 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+/**
+ * A value of a frame already encoded, shared by the frames of
+ * many sessions.
+ * 
+ * The value is encoded without dictionary, so it can be sent on any
+ * connection, and at most once for each codec. The encoded forms are
+ * never changed afterwards: codecs copy them in the frames as they are.
+ * 
+ * Frames carry encoded values in their map, bypassing the type checks
+ * of JsonObject: they can only be written with a WireCodec.
+ * 
+ */
+final class EncodedValue {
+
+	/* JsonObject or JsonArray */
+	private final Object value;
+	private volatile Buffer binary;
+	private volatile String json;
+
+	EncodedValue(Object value) {
+		this.value = value;
+	}
+
+	/**
+	 * Binary encoding, tag included
+	 */
+	Buffer binary() {
+		Buffer b = binary;
+		if (b == null) {
+			b = BinaryWireCodec.encodeValue(value);
+			binary = b;
+		}
+		return b;
+	}
+
+	/**
+	 * JSON text
+	 */
+	String json() {
+		String s = json;
+		if (s == null) {
+			s = Json.encode(value);
+			json = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.ServerWebSocket;
+
+/**
+ * Liveness of the connection of remote agents.
+ *
+ * Any frame received, pongs included, shows the client is alive.
+ * A connection idle for the heartbeat interval is pinged - clients
+ * answer pings with pongs on their own - and a connection idle for
+ * the idle timeout is closed, as for a dropped connection.
+ *
+ * Pings are empty: the payload of control frames is passed to the
+ * data handler too, so both sides ignore empty frames.
+ *
+ * Checks are timeouts of the timer wheel of the service, one per
+ * connection, rescheduled only when they expire.
+ *
+ */
+class Heartbeat {
+
+	private static final Buffer PING = Buffer.buffer();
+
+	private final ServerWebSocket ws;
+	private final TimerWheel wheel;
+	private final long interval;
+	private final long idleTimeout;
+	private volatile long lastSeen;
+	private TimerWheel.Timeout check;
+	private boolean stopped;
+
+	/**
+	 *
+	 * @param ws connection
+	 * @param wheel timer wheel of the service
+	 * @param config configuration of the sessions
+	 */
+	Heartbeat(ServerWebSocket ws, TimerWheel wheel, RemoteSessionConfig config) {
+		this.ws = ws;
+		this.wheel = wheel;
+		this.interval = config.getHeartbeatInterval();
+		this.idleTimeout = config.getIdleTimeout();
+		lastSeen = System.currentTimeMillis();
+		if (idleTimeout > 0) {
+			ws.pongHandler(b -> seen());
+			schedule();
+		}
+	}
+
+	/**
+	 * A frame has been received from the client
+	 */
+	void seen() {
+		lastSeen = System.currentTimeMillis();
+	}
+
+	synchronized void stop() {
+		stopped = true;
+		if (check != null) {
+			check.cancel();
+			check = null;
+		}
+	}
+
+	private synchronized void schedule() {
+		if (!stopped) {
+			check = wheel.schedule(interval, this::check);
+		}
+	}
+
+	private void check() {
+		long idle = System.currentTimeMillis() - lastSeen;
+		try {
+			if (idle >= idleTimeout) {
+				log("No frame from " + ws.remoteAddress() + " for " + idle + " ms, closing the connection.");
+				stop();
+				ws.close();
+				return;
+			} else if (idle >= interval) {
+				ws.writePing(PING);
+			}
+		} catch (IllegalStateException ex) {
+			/* already closed */
+			stop();
+			return;
+		}
+		schedule();
+	}
+
+	private void log(String msg) {
+		System.out.println("[Heartbeat] " + msg);
+	}
+}
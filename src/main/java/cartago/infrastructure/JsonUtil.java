@@ -14,6 +14,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 
+import cartago.AgentCredential;
 import cartago.AgentId;
 import cartago.ArtifactId;
 import cartago.ArtifactObsProperty;
@@ -28,6 +29,8 @@ import io.vertx.core.json.JsonObject;
 public class JsonUtil {
 
     static private ObjectMapper objectMapper;
+    /* used to turn values into plain JSON trees: arrays must become lists */
+    static private ObjectMapper treeMapper;
     static private SimpleModule module;
 	static {
         objectMapper = new ObjectMapper();
@@ -35,6 +38,8 @@ public class JsonUtil {
         objectMapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
         objectMapper.configure(DeserializationFeature.FAIL_ON_NULL_FOR_PRIMITIVES, false);
         objectMapper.configure(DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY, true);
+        treeMapper = objectMapper.copy();
+        treeMapper.configure(DeserializationFeature.USE_JAVA_ARRAY_FOR_JSON_ARRAY, false);
         // module = new SimpleModule("cartago-module", new Version(1, 0, 0, null, null, null));
         // module.addSerializer(OpFeedbackParam.class, new OpFeedbackParamSerializer());
         // module.addDeserializer(OpFeedbackParam.class, new OpFeedbackParamDeserializer());
@@ -45,50 +50,35 @@ public class JsonUtil {
 	// ---
 
 	static public JsonObject toJson(Op op) {
+		return toJson(op, null, false);
+	}
+
+	/**
+	 * Encode an operation, compressing names and identifiers
+	 * 
+	 * @param op
+	 * @param dict outbound dictionary of the connection, null if not used
+	 * @param inline parameters stored inline, if agreed with the peer
+	 * @return
+	 */
+	static public JsonObject toJson(Op op, WireDictionary dict, boolean inline) {
+		/* the name first: entries are defined in the order they are decoded */
+		JsonObject opInfo = new JsonObject();
+		opInfo.put("name", toJsonString(op.getName(), dict));
 		JsonArray params = new JsonArray();
 		for (Object p: op.getParamValues()) {
 			if (p != null) {
-				JsonObject param = new JsonObject();
-				String paramClass = p.getClass().getName();
-				param.put("paramClass", paramClass);
-				if (!paramClass.equals("cartago.OpFeedbackParam")) {
-					if (paramClass.equals("cartago.ArtifactId")) {
-						JsonObject json = toJson((ArtifactId) p);
-						param.put("paramValue", json);
-						
-					} else if (paramClass.equals("cartago.infrastructure.InfrastructureWspId")) {
-						JsonObject json = toJson((WorkspaceId) p);
-						param.put("paramValue", json);
-					} else{
-						try {
-							String ser = objectMapper.writeValueAsString(p);
-							param.put("paramValue", ser);
-						} catch (Exception ex) {
-							ex.printStackTrace();
-						}
-					}
+				JsonObject param = null;
+				if (!(p instanceof OpFeedbackParam)) {
+					param = toJsonParam(p, dict, inline);
 				} else {
-					OpFeedbackParam opp = (OpFeedbackParam) p;
-					Object val = opp.get();
-					if (val != null) {
-						JsonObject varx = new JsonObject();
-						String pparamClass = val.getClass().getName();
-						varx.put("class", pparamClass);
-						if (pparamClass.equals("cartago.ArtifactId")) {
-							JsonObject json = toJson((ArtifactId) val);
-							varx.put("value", json);
-						} else if (pparamClass.equals("cartago.infrastructure.InfrastructureWspId")) {
-							JsonObject json = toJson((WorkspaceId) val);
-							varx.put("value", json);
-						} else {
-							try {
-								String ser = objectMapper.writeValueAsString(val);
-								varx.put("value", ser);
-							} catch (Exception ex) {
-								ex.printStackTrace();
-							}
-						}
-						param.put("paramValue", varx);
+					param = new JsonObject();
+					param.put("paramClass", "cartago.OpFeedbackParam");
+					Object val = ((OpFeedbackParam<?>) p).get();
+					if (val != null && inline) {
+						param.put("value", toJsonParam(val, dict, true));
+					} else if (val != null) {
+						param.put("paramValue", toLegacyFeedbackParam(val));
 					}
 				}
 				params.add(param);
@@ -97,68 +87,163 @@ public class JsonUtil {
 			}
 		}
 		
-		JsonObject opInfo = new JsonObject();
-		opInfo.put("name", op.getName());
 		opInfo.put("params", params);
 		return opInfo;
 	}
 	
 	static public Op toOp(JsonObject obj) {
-		String opName = obj.getString("name");
+		return toOp(obj, null);
+	}
+
+	/**
+	 * Decode an operation
+	 * 
+	 * @param obj
+	 * @param dict inbound dictionary of the connection, null if not used
+	 * @return
+	 */
+	static public Op toOp(JsonObject obj, WireDictionary dict) {
+		String opName = fromJsonString(obj.getValue("name"), dict);
 		JsonArray params = obj.getJsonArray("params");
 		Object[] par = new Object[params.size()];
 		for (int i = 0; i < params.size(); i++) {
 			JsonObject param = params.getJsonObject(i);
-			String paramClassName = param.getString("paramClass");
-			if (!paramClassName.equals("cartago.OpFeedbackParam")) {
-				try {
-					Object val = null;
-					if (paramClassName.equals("cartago.ArtifactId")) {
-						JsonObject pvalue = param.getJsonObject("paramValue");	      			  
-						// JsonObject value = pvalue.getJsonObject("value");
-						val = toArtifactId(pvalue);
-					} else if (paramClassName.equals("cartago.infrastructure.InfrastructureWspId")) {
-						JsonObject pvalue = param.getJsonObject("paramValue");	      			  
-						// JsonObject value = pvalue.getJsonObject("value");
-						val = toWorkspaceId(pvalue);
-					} else{
-						String value = param.getString("paramValue");
-						if (value != null) {
-							val = objectMapper.readValue(value, Class.forName(paramClassName));
-						}
-					}
-					par[i] = val;
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
+			if (!"cartago.OpFeedbackParam".equals(param.getValue("paramClass"))) {
+				par[i] = fromJsonParam(param, dict);
 			} else {
-					OpFeedbackParam opp = new OpFeedbackParam();
-					try {
-						JsonObject pvalue = param.getJsonObject("paramValue");	      			  
-						if (pvalue != null) {
-							String paramClass = pvalue.getString("class");
-							Object val = null;
-							if (paramClass.equals("cartago.ArtifactId")) {
-								JsonObject value = pvalue.getJsonObject("value");
-								val = toArtifactId(value);
-							} else if (paramClass.equals("cartago.infrastructure.InfrastructureWspId")) {
-								JsonObject value = pvalue.getJsonObject("value");
-								val = toWorkspaceId(value);
-							} else{
-								String paramValue = pvalue.getString("value");
-								val = objectMapper.readValue(paramValue, Class.forName(paramClass));
-							}
-							opp.set(val);
-						}
-					} catch (Exception ex) {
-						ex.printStackTrace();
-					}
-					par[i] = opp;
+				OpFeedbackParam<Object> opp = new OpFeedbackParam<Object>();
+				JsonObject pvalue = param.getJsonObject("value");
+				if (pvalue != null) {
+					opp.set(fromJsonParam(pvalue, dict));
+				} else if (param.getValue("paramValue") != null) {
+					opp.set(fromLegacyFeedbackParam(param.getJsonObject("paramValue")));
 				}
+				par[i] = opp;
+			}
 		}			    			
 		return new Op(opName, par);
 	}
 
+	// --
+	
+	/**
+	 * Encode a parameter value.
+	 * 
+	 * Inline, the value is stored as a JSON tree in the frame, so that
+	 * it is encoded and parsed once together with the frame. Otherwise
+	 * it is stored as a JSON string, as older peers expect.
+	 * 
+	 * @param p non null value
+	 * @param dict outbound dictionary, null if not used
+	 * @param inline value stored inline, if agreed with the peer
+	 * @return
+	 */
+	static JsonObject toJsonParam(Object p, WireDictionary dict, boolean inline) {
+		JsonObject param = new JsonObject();
+		Class<?> paramClass = p.getClass();
+		param.put("paramClass", toJsonString(paramClass.getName(), dict));
+		try {
+			if (!inline) {
+				param.put("paramValue", toLegacyJsonParam(p));
+			} else if (dict != null && paramClass == ArtifactId.class) {
+				param.put("value", toJson((ArtifactId) p, dict));
+			} else {
+				param.put("value", ParamCodecRegistry.forClass(paramClass).encode(p));
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		return param;
+	}
+
+	/**
+	 * Decode a parameter value, either in the inline or in the
+	 * legacy (JSON string) representation
+	 * 
+	 * @param param
+	 * @param dict inbound dictionary, null if not used
+	 * @return
+	 */
+	static Object fromJsonParam(JsonObject param, WireDictionary dict) {
+		String paramClassName = fromJsonString(param.getValue("paramClass"), dict);
+		try {
+			if (param.containsKey("value")) {
+				Object value = param.getValue("value");
+				if (value == null) {
+					return null;
+				} else if (dict != null && paramClassName.equals("cartago.ArtifactId")) {
+					return toArtifactId(value, dict);
+				} else {
+					return ParamCodecRegistry.forClassName(paramClassName).decode(value);
+				}
+			} else {
+				return fromLegacyJsonParam(paramClassName, param.getValue("paramValue"));
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	static private Object toJsonString(String s, WireDictionary dict) {
+		return dict == null ? s : dict.encodeString(s);
+	}
+
+	static private String fromJsonString(Object wire, WireDictionary dict) {
+		return dict == null ? (String) wire : dict.decodeString(wire);
+	}
+
+	/* values serialized as JSON strings, for older peers */
+	static private Object toLegacyJsonParam(Object p) throws Exception {
+		if (p instanceof ArtifactId) {
+			return toJson((ArtifactId) p);
+		} else if (p instanceof InfrastructureWspId) {
+			return toJson((WorkspaceId) p);
+		} else {
+			return objectMapper.writeValueAsString(p);
+		}
+	}
+
+	static private JsonObject toLegacyFeedbackParam(Object val) {
+		JsonObject pvalue = new JsonObject();
+		pvalue.put("class", val.getClass().getName());
+		try {
+			pvalue.put("value", toLegacyJsonParam(val));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		return pvalue;
+	}
+
+	static private Object fromLegacyJsonParam(String paramClassName, Object value) throws Exception {
+		if (value == null) {
+			return null;
+		} else if (paramClassName.equals("cartago.ArtifactId")) {
+			return toArtifactId((JsonObject) value);
+		} else if (paramClassName.equals("cartago.infrastructure.InfrastructureWspId")) {
+			return toWorkspaceId((JsonObject) value);
+		} else {
+			return objectMapper.readValue((String) value, Class.forName(paramClassName));
+		}
+	}
+	
+	static private Object fromLegacyFeedbackParam(JsonObject pvalue) {
+		try {
+			return fromLegacyJsonParam(pvalue.getString("class"), pvalue.getValue("value"));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	static ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+
+	static ObjectMapper getTreeMapper() {
+		return treeMapper;
+	}
+
 	// ---
 	
 	static public  JsonObject toJson(AgentId id) {
@@ -172,6 +257,22 @@ public class JsonUtil {
 		return obj;
 	}
 	
+	/* credential of an agent joining a workspace, as sent by the join handshakes */
+	static public JsonObject toJson(AgentCredential cred) {
+		JsonObject obj = new JsonObject();
+		obj.put("userName", cred.getId());
+		obj.put("roleName", cred.getRoleName());
+		return obj;
+	}
+
+	static public List<String> toStringList(JsonArray array) {
+		List<String> list = new ArrayList<String>(array.size());
+		for (int i = 0; i < array.size(); i++) {
+			list.add(array.getString(i));
+		}
+		return list;
+	}
+
 	static public AgentId toAgentId(JsonObject obj) throws CartagoException {
 		String agentName = obj.getString("agentName");
 		String agentRole = obj.getString("agentRole");
@@ -210,6 +311,37 @@ public class JsonUtil {
 		return obj;
 	}
 	
+	/**
+	 * Encode an artifact identifier using the dictionary of the connection
+	 * 
+	 * @param id
+	 * @param dict outbound dictionary, null if not used
+	 * @return the full JSON representation or a dictionary reference
+	 */
+	static public Object toJson(ArtifactId id, WireDictionary dict) {
+		if (dict == null || id == null) {
+			return id == null ? null : toJson(id);
+		} else {
+			return dict.encode(id, JsonUtil::toJson);
+		}
+	}
+
+	/**
+	 * Decode an artifact identifier encoded with toJson(ArtifactId, WireDictionary)
+	 * 
+	 * @param json
+	 * @param dict inbound dictionary, null if not used
+	 * @return
+	 * @throws CartagoException
+	 */
+	static public ArtifactId toArtifactId(Object json, WireDictionary dict) throws CartagoException {
+		if (dict == null) {
+			return toArtifactId((JsonObject) json);
+		} else {
+			return dict.decode(json, v -> toArtifactId((JsonObject) v));
+		}
+	}
+	
 	static public ArtifactId toArtifactId(JsonObject obj) throws CartagoException {
 		if (obj != null) {
 			String name = obj.getString("name");
@@ -232,43 +364,33 @@ public class JsonUtil {
 	// --
 
 	static public  JsonObject toJson(Tuple t) {
+		return toJson(t, null, false);
+	}
+
+	static public  JsonObject toJson(Tuple t, WireDictionary dict, boolean inline) {
 		JsonObject obj = new JsonObject();
-		obj.put("name", t.getLabel());
+		obj.put("name", toJsonString(t.getLabel(), dict));
 		JsonArray params = new JsonArray();
 		for (Object p: t.getContents()) {
 			if (p != null) {
-				JsonObject param = new JsonObject();
-				param.put("paramClass", p.getClass().getName());
-				try {
-					String ser = objectMapper.writeValueAsString(p);
-					param.put("paramValue", ser);
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-				params.add(param);
+				params.add(toJsonParam(p, dict, inline));
 			}
 		}
 		obj.put("params", params);
 		return obj;
 	}
 	
-	
 	static public Tuple toTuple(JsonObject obj) {
+		return toTuple(obj, null);
+	}
+	
+	static public Tuple toTuple(JsonObject obj, WireDictionary dict) {
 		if (obj != null) {
-			String name = obj.getString("name");
+			String name = fromJsonString(obj.getValue("name"), dict);
 			JsonArray params = obj.getJsonArray("params");
 			Object[] par = new Object[params.size()];
 			for (int i = 0; i < params.size(); i++) {
-				JsonObject param = params.getJsonObject(i);
-				String paramClassName = param.getString("paramClass");
-				String value = param.getString("paramValue");	      			  
-				try {
-					if (value != null) {
-						par[i] = objectMapper.readValue(value, Class.forName(paramClassName));
-					} 
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
+				par[i] = fromJsonParam(params.getJsonObject(i), dict);
 			} 			    			
 			return new Tuple(name, par);
 		} else {
@@ -276,104 +398,123 @@ public class JsonUtil {
 		}
 	}
 	
+	// --
+
+	static public JsonObject toJson(PerceptFilter filter) {
+		JsonObject obj = new JsonObject();
+		if (filter.getSignals() != null) {
+			obj.put("signals", new JsonArray(new ArrayList<Object>(filter.getSignals())));
+		}
+		if (filter.getProperties() != null) {
+			obj.put("properties", new JsonArray(new ArrayList<Object>(filter.getProperties())));
+		}
+		if (filter.getArtifactTypes() != null) {
+			obj.put("types", new JsonArray(new ArrayList<Object>(filter.getArtifactTypes())));
+		}
+		JsonArray conditions = new JsonArray();
+		for (PerceptFilter.Condition c: filter.getConditions()) {
+			JsonObject cond = new JsonObject();
+			cond.put("name", c.name);
+			cond.put("index", c.index);
+			cond.put("op", c.comparison.name());
+			cond.put("value", c.value);
+			conditions.add(cond);
+		}
+		obj.put("where", conditions);
+		return obj;
+	}
+
+	static public PerceptFilter toPerceptFilter(JsonObject obj) {
+		if (obj == null) {
+			return null;
+		}
+		PerceptFilter filter = new PerceptFilter();
+		if (obj.getJsonArray("signals") != null) {
+			filter.acceptSignals(toStringArray(obj.getJsonArray("signals")));
+		}
+		if (obj.getJsonArray("properties") != null) {
+			filter.acceptProperties(toStringArray(obj.getJsonArray("properties")));
+		}
+		if (obj.getJsonArray("types") != null) {
+			filter.acceptArtifactTypes(toStringArray(obj.getJsonArray("types")));
+		}
+		JsonArray conditions = obj.getJsonArray("where");
+		if (conditions != null) {
+			for (int i = 0; i < conditions.size(); i++) {
+				JsonObject cond = conditions.getJsonObject(i);
+				filter.where(cond.getString("name"), cond.getInteger("index"),
+						PerceptFilter.Comparison.valueOf(cond.getString("op")), cond.getValue("value"));
+			}
+		}
+		return filter;
+	}
+
+	static private String[] toStringArray(JsonArray array) {
+		String[] elems = new String[array.size()];
+		for (int i = 0; i < elems.length; i++) {
+			elems[i] = array.getString(i);
+		}
+		return elems;
+	}
+
 	// --
 	
 	static public  JsonObject toJson(ArtifactObsProperty prop) {
+		return toJson(prop, null, false);
+	}
+
+	static public  JsonObject toJson(ArtifactObsProperty prop, WireDictionary dict, boolean inline) {
 		JsonObject obj = new JsonObject();
-		obj.put("name", prop.getName());
+		obj.put("name", toJsonString(prop.getName(), dict));
 		obj.put("id", prop.getId());
-		obj.put("fullId", prop.getFullId());		
+		obj.put("fullId", toJsonString(prop.getFullId(), dict));		
 		JsonArray params = new JsonArray();
 		for (Object p: prop.getValues()) {
-			JsonObject param = new JsonObject();
-			String paramClass = p.getClass().getName();
-			param.put("paramClass", paramClass);
-			if (paramClass.equals("cartago.ArtifactId")) {
-				JsonObject json = toJson((ArtifactId) p);
-				param.put("paramValue", json);	
-			} else if (paramClass.equals("cartago.infrastructure.InfrastructureWspId")) {
-				JsonObject json = toJson((WorkspaceId) p);
-				param.put("paramValue", json);
-			} else{
-				try {
-					String ser = objectMapper.writeValueAsString(p);
-					param.put("paramValue", ser);
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
-			}
-			params.add(param);
+			params.add(toJsonParam(p, dict, inline));
 		}
 		obj.put("params", params);
 		return obj;
 	}
 	
 	static public ArtifactObsProperty toArtifactObsProperty(JsonObject obj) {
-		String name = obj.getString("name");
+		return toArtifactObsProperty(obj, null);
+	}
+
+	static public ArtifactObsProperty toArtifactObsProperty(JsonObject obj, WireDictionary dict) {
+		String name = fromJsonString(obj.getValue("name"), dict);
 		long id = obj.getLong("id");
-		String fullId = obj.getString("fullId");
+		String fullId = fromJsonString(obj.getValue("fullId"), dict);
 		JsonArray params = obj.getJsonArray("params");
 		Object[] par = new Object[params.size()];
 		for (int i = 0; i < params.size(); i++) {
-			JsonObject param = params.getJsonObject(i);
-			String paramClassName = param.getString("paramClass");
-		
-			try {
-				Object val = null;
-				if (paramClassName.equals("cartago.ArtifactId")) {
-					JsonObject pvalue = param.getJsonObject("paramValue");	      			  
-					// JsonObject value = pvalue.getJsonObject("value");
-					val = toArtifactId(pvalue);
-				} else if (paramClassName.equals("cartago.infrastructure.InfrastructureWspId")) {
-					JsonObject pvalue = param.getJsonObject("paramValue");	      			  
-					// JsonObject value = pvalue.getJsonObject("value");
-					val = toWorkspaceId(pvalue);
-				} else{
-					String value = param.getString("paramValue");
-					if (value != null) {
-						val = objectMapper.readValue(value, Class.forName(paramClassName));
-					}
-				}
-				par[i] = val;
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
-			
-			/*
-		
-			String value = param.getString("paramValue");	      			  
-			try {
-				if (value != null) {
-					par[i] = objectMapper.readValue(value, Class.forName(paramClassName));
-				} 
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
-			
-			*/
-		
+			par[i] = fromJsonParam(params.getJsonObject(i), dict);
 		}
-			
-			
-				
 		return new ArtifactObsProperty(fullId, id, name, par);
 	}
 
 	// --
 	
 	static public  JsonArray toJson(ArtifactObsProperty[] props) {
+		return toJson(props, null, false);
+	}
+
+	static public  JsonArray toJson(ArtifactObsProperty[] props, WireDictionary dict, boolean inline) {
 		JsonArray obj = new JsonArray();
 		for (ArtifactObsProperty prop: props) {
-			obj.add(toJson(prop));
+			obj.add(toJson(prop, dict, inline));
 		}
 		return obj;
 	}
 		
 	static public ArtifactObsProperty[] toArtifactObsPropertyArray(JsonArray obj) {
+		return toArtifactObsPropertyArray(obj, null);
+	}
+
+	static public ArtifactObsProperty[] toArtifactObsPropertyArray(JsonArray obj, WireDictionary dict) {
 		if (obj != null) {
 			ArtifactObsProperty[] elems = new ArtifactObsProperty[obj.size()];
 			for (int i = 0; i < elems.length; i++) {
-				elems[i] = toArtifactObsProperty(obj.getJsonObject(i));
+				elems[i] = toArtifactObsProperty(obj.getJsonObject(i), dict);
 			}
 			return elems;
 		} else {
@@ -385,18 +526,26 @@ public class JsonUtil {
 	
 	
 	static public  JsonArray toJson(Collection<ArtifactObsProperty> props) {
+		return toJson(props, null, false);
+	}
+
+	static public  JsonArray toJson(Collection<ArtifactObsProperty> props, WireDictionary dict, boolean inline) {
 		JsonArray obj = new JsonArray();
 		for (ArtifactObsProperty prop: props) {
-			obj.add(toJson(prop));
+			obj.add(toJson(prop, dict, inline));
 		}
 		return obj;
 	}
 
 	static public List<ArtifactObsProperty> toArtifactObsPropertyList(JsonArray obj) {
+		return toArtifactObsPropertyList(obj, null);
+	}
+
+	static public List<ArtifactObsProperty> toArtifactObsPropertyList(JsonArray obj, WireDictionary dict) {
 		if (obj != null) {
 			List<ArtifactObsProperty> elems = new ArrayList<ArtifactObsProperty>();
 			for (int i = 0; i < obj.size(); i++) {
-				elems.add(toArtifactObsProperty(obj.getJsonObject(i)));
+				elems.add(toArtifactObsProperty(obj.getJsonObject(i), dict));
 			}
 			return elems;
 		} else {
@@ -0,0 +1,160 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from long keys to objects, with open addressing:
+ * keys are not boxed and no entry is allocated per mapping.
+ *
+ * Not thread safe. Null values are not allowed.
+ *
+ */
+class LongObjectHashMap<V> {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int resizeAt;
+
+	LongObjectHashMap(int expected) {
+		int n = Integer.highestOneBit(Math.max(4, (int) (expected / LOAD_FACTOR) - 1)) << 1;
+		alloc(n);
+	}
+
+	private void alloc(int n) {
+		keys = new long[n];
+		values = new Object[n];
+		mask = n - 1;
+		resizeAt = (int) (n * LOAD_FACTOR);
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param value not null
+	 * @return the previous value, if any
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				shiftBack(i);
+				size--;
+				return old;
+			}
+		}
+		return null;
+	}
+
+	/* fill the hole left by a removal with the entries of the same run, no tombstones */
+	private void shiftBack(int hole) {
+		int i = hole;
+		while (true) {
+			i = (i + 1) & mask;
+			if (values[i] == null) {
+				break;
+			}
+			int home = slot(keys[i]);
+			/* the entry can move to the hole if its home is not between the hole and its slot */
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		values[hole] = null;
+	}
+
+	private void rehash(int n) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		alloc(n);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != null) {
+					j = (j + 1) & mask;
+				}
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all the mappings
+	 *
+	 * @return the values removed
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> clear() {
+		List<V> removed = new ArrayList<V>(size);
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				removed.add((V) values[i]);
+				values[i] = null;
+			}
+		}
+		size = 0;
+		return removed;
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cartago.*;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.http.WebsocketRejectedException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Client side of a connection shared by many agent sessions
+ * with the same workspace node.
+ * 
+ * The frames of a session are tagged with its id (<code>sid</code>),
+ * each session keeps its own codec, dictionaries and credits.
+ * The join handshakes are requests tagged with an id (<code>rid</code>)
+ * the node uses in its reply.
+ *
+ */
+class MuxConnection {
+
+	static final String PATH = "/cartago/api/mux";
+
+	private final WebSocket ws;
+	private final ConcurrentHashMap<String, AgentBodyProxy> sessions;
+	private final ConcurrentHashMap<Long, Handler<JsonObject>> replies;
+	private final AtomicLong requestIds;
+	private volatile boolean closed;
+
+	private MuxConnection(WebSocket ws) {
+		this.ws = ws;
+		sessions = new ConcurrentHashMap<String, AgentBodyProxy>();
+		replies = new ConcurrentHashMap<Long, Handler<JsonObject>>();
+		requestIds = new AtomicLong();
+		ws.handler(this::handleFrame);
+		ws.closeHandler(v -> handleClose());
+	}
+
+	/**
+	 * Open a connection
+	 * 
+	 * @param client client of the workspace node
+	 * @return the connection, null if the node does not support shared connections
+	 */
+	static CompletableFuture<MuxConnection> open(HttpClient client) {
+		CompletableFuture<MuxConnection> res = new CompletableFuture<MuxConnection>();
+		client.websocket(PATH, (WebSocket ws) -> {
+			res.complete(new MuxConnection(ws));
+		}, err -> {
+			/* old nodes reject the upgrade */
+			if (err instanceof WebsocketRejectedException) {
+				res.complete(null);
+			} else {
+				log("Connection failed: " + err);
+				res.completeExceptionally(new CartagoInfrastructureLayerException());
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Request to join a workspace
+	 * 
+	 * @param cred agent credential
+	 * @return session id
+	 */
+	CompletableFuture<String> requestToJoin(AgentCredential cred) {
+		JsonObject req = new JsonObject();
+		req.put("reqType", "requestToJoin");
+		req.put("agent-cred", JsonUtil.toJson(cred));
+		return request(req, null).thenApply(reply -> reply.getString("session-id"));
+	}
+
+	/**
+	 * Request to join a workspace for a batch of agents
+	 * 
+	 * @param creds agent credentials
+	 * @return session ids, null for the agents not admitted
+	 */
+	CompletableFuture<List<String>> requestToJoin(List<AgentCredential> creds) {
+		JsonObject req = new JsonObject();
+		req.put("reqType", "requestToJoin");
+		JsonArray list = new JsonArray();
+		for (AgentCredential cred: creds) {
+			list.add(JsonUtil.toJson(cred));
+		}
+		req.put("agent-creds", list);
+		return request(req, null).thenApply(reply -> JsonUtil.toStringList(reply.getJsonArray("session-ids")));
+	}
+
+	/**
+	 * Join a workspace with a session id: the proxy is ready to be used on completion
+	 * 
+	 * @return session id
+	 */
+	CompletableFuture<String> join(AgentBodyProxy proxy, String sessionId, WorkspaceId wspId, ICartagoCallback eventListener) {
+		JsonObject req = new JsonObject();
+		req.put("session-id", sessionId);
+		return join(proxy, req, wspId, eventListener);
+	}
+
+	/**
+	 * Join a workspace with the credential of the agent, in a single round trip
+	 * 
+	 * @return session id
+	 */
+	CompletableFuture<String> join(AgentBodyProxy proxy, AgentCredential cred, WorkspaceId wspId, ICartagoCallback eventListener) {
+		JsonObject req = new JsonObject();
+		req.put("agent-cred", JsonUtil.toJson(cred));
+		return join(proxy, req, wspId, eventListener);
+	}
+
+	private CompletableFuture<String> join(AgentBodyProxy proxy, JsonObject req, WorkspaceId wspId, ICartagoCallback eventListener) {
+		req.put("reqType", "join");
+		WireProtocol.offer(req);
+		/* ready before any event of the session is dispatched */
+		return request(req, reply -> {
+			String sessionId = reply.getString("session-id");
+			sessions.put(sessionId, proxy);
+			proxy.setSessionToken(reply.getString("session-token"));
+			proxy.init(this, sessionId, wspId, eventListener, WireProtocol.accepted(reply));
+		}).thenApply(reply -> reply.getString("session-id"));
+	}
+
+	/**
+	 * Resume a session whose connection dropped, from the last event received
+	 * 
+	 * @return false if the node cannot resume the session, failed if it has to be tried again
+	 */
+	CompletableFuture<Boolean> resume(AgentBodyProxy proxy) {
+		JsonObject req = new JsonObject();
+		req.put("reqType", "join");
+		req.put("session-id", proxy.getSessionId());
+		req.put("session-token", proxy.getSessionToken());
+		req.put("resume", proxy.getLastSeq());
+		WireProtocol.offer(req);
+		/* ready before the events sent again are dispatched */
+		return request(req, reply -> {
+			if ("resumed".equals(reply.getString("state"))) {
+				sessions.put(proxy.getSessionId(), proxy);
+				proxy.resumed(this);
+			}
+		}).thenApply(reply -> {
+			if ("busy".equals(reply.getString("state"))) {
+				/* the node has not seen the connection drop yet */
+				throw new CompletionException(new CartagoInfrastructureLayerException());
+			}
+			return "resumed".equals(reply.getString("state"));
+		});
+	}
+
+	/**
+	 * Write a frame of a session
+	 */
+	void write(WireCodec codec, String sessionId, JsonObject frame) {
+		frame.put("sid", sessionId);
+		codec.write(ws, frame);
+	}
+
+	void remove(String sessionId) {
+		sessions.remove(sessionId);
+	}
+
+	int size() {
+		return sessions.size();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	void close() {
+		try {
+			ws.close();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private CompletableFuture<JsonObject> request(JsonObject req, Handler<JsonObject> onReply) {
+		long rid = requestIds.incrementAndGet();
+		CompletableFuture<JsonObject> res = new CompletableFuture<JsonObject>();
+		replies.put(rid, reply -> {
+			if (reply.containsKey("error")) {
+				log("Request failed: " + reply.getString("error"));
+				res.completeExceptionally(new CartagoInfrastructureLayerException());
+				return;
+			}
+			try {
+				if (onReply != null) {
+					onReply.handle(reply);
+				}
+				res.complete(reply);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				res.completeExceptionally(new CartagoInfrastructureLayerException());
+			}
+		});
+		req.put("rid", rid);
+		ws.writeTextMessage(req.encode());
+		if (closed) {
+			handleClose();
+		}
+		return res;
+	}
+
+	private void handleFrame(Buffer buffer) {
+		if (buffer.length() == 0) {
+			/* ping, answered by vertx */
+			return;
+		}
+		try {
+			JsonObject frame = WireCodec.decode(buffer);
+			String sessionId = frame.getString("sid");
+			if (sessionId != null) {
+				AgentBodyProxy proxy = sessions.get(sessionId);
+				if (proxy != null) {
+					proxy.handleFrame(frame);
+				}
+			} else {
+				Long rid = frame.getLong("rid");
+				Handler<JsonObject> handler = rid != null ? replies.remove(rid) : null;
+				if (handler != null) {
+					handler.handle(frame);
+				}
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private void handleClose() {
+		closed = true;
+		for (AgentBodyProxy proxy: sessions.values()) {
+			proxy.connectionLost(this);
+		}
+		sessions.clear();
+		for (Long rid: replies.keySet()) {
+			Handler<JsonObject> handler = replies.remove(rid);
+			if (handler != null) {
+				handler.handle(new JsonObject().put("error", "connection closed"));
+			}
+		}
+	}
+
+	static private void log(String msg) {
+		System.out.println("[MuxConnection] " + msg);
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Service side of a connection shared by many agent sessions,
+ * see MuxConnection.
+ *
+ */
+class MuxServerConnection {
+
+	private final ServerWebSocket ws;
+	private final WorkspaceService service;
+	private final ConcurrentHashMap<String, AgentBodyRemote> sessions;
+	private final Heartbeat heartbeat;
+
+	MuxServerConnection(ServerWebSocket ws, WorkspaceService service) {
+		this.ws = ws;
+		this.service = service;
+		sessions = new ConcurrentHashMap<String, AgentBodyRemote>();
+		heartbeat = new Heartbeat(ws, service.getTimerWheel(), service.getSessionConfig());
+		ws.handler(this::handleFrame);
+		ws.drainHandler(v -> sessions.values().forEach(AgentBodyRemote::drained));
+		ws.closeHandler(v -> {
+			heartbeat.stop();
+			sessions.values().forEach(rbody -> rbody.closed(ws));
+		});
+	}
+
+	ServerWebSocket getWebSocket() {
+		return ws;
+	}
+
+	void remove(String sessionId) {
+		sessions.remove(sessionId);
+	}
+
+	private void handleFrame(Buffer buffer) {
+		heartbeat.seen();
+		if (buffer.length() == 0) {
+			/* pong */
+			return;
+		}
+		try {
+			JsonObject req = WireCodec.decode(buffer);
+			String reqType = req.getString("reqType");
+			String sessionId = req.getString("sid");
+			if (sessionId != null) {
+				AgentBodyRemote rbody = sessions.get(sessionId);
+				if (rbody != null) {
+					rbody.received(req);
+					if (reqType.equals("quit")) {
+						sessions.remove(sessionId);
+					}
+				}
+			} else if (reqType.equals("requestToJoin")) {
+				service.executeJoin(() -> handleRequestToJoin(req));
+			} else if (reqType.equals("join")) {
+				service.executeJoin(() -> handleJoin(req));
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/* joins are executed by the dispatcher of the service */
+
+	private void handleRequestToJoin(JsonObject req) {
+		JsonObject reply = new JsonObject();
+		reply.put("rid", req.getLong("rid"));
+		if (req.containsKey("agent-creds")) {
+			/* a batch of agents */
+			reply.put("session-ids", service.createSessions(req.getJsonArray("agent-creds")));
+		} else {
+			try {
+				reply.put("session-id", service.createSession(req.getJsonObject("agent-cred")));
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				reply.put("error", "request to join refused");
+			}
+		}
+		ws.writeTextMessage(reply.encode());
+	}
+
+	private void handleJoin(JsonObject req) {
+		JsonObject reply = new JsonObject();
+		reply.put("rid", req.getLong("rid"));
+		String joinId = req.getString("session-id");
+		if (joinId == null && req.containsKey("agent-cred")) {
+			/* request to join and join in a single round trip: connected before joining */
+			WireProtocol protocol = WireProtocol.negotiate(req);
+			try {
+				joinId = service.createSession(req.getJsonObject("agent-cred"), (id, body) -> {
+					body.connect(this, id, service, protocol);
+					sessions.put(id, body);
+				});
+				AgentBodyRemote rbody = service.getRemoteSession(joinId);
+				reply.put("session-id", joinId);
+				reply.put("state", "connected");
+				WorkspaceService.putToken(reply, rbody);
+				protocol.writeTo(reply);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				reply.put("error", "join refused");
+			}
+			ws.writeTextMessage(reply.encode());
+			return;
+		}
+		AgentBodyRemote rbody = joinId != null ? service.getRemoteSession(joinId) : null;
+		if (req.containsKey("resume")) {
+			/* the session continues from the last event received by the agent */
+			String resumedId = joinId;
+			String token = req.getString("session-token");
+			if (rbody != null && rbody.isToken(token) && !rbody.isDetached()) {
+				/* the dropped connection is not closed yet: the agent tries again */
+				reply.put("state", "busy");
+				ws.writeTextMessage(reply.encode());
+				return;
+			} else if (rbody == null || !rbody.resume(this, joinId, token, req.getLong("resume"), () -> {
+				sessions.put(resumedId, rbody);
+				reply.put("session-id", resumedId);
+				reply.put("state", "resumed");
+				rbody.getProtocol().writeTo(reply);
+				ws.writeTextMessage(reply.encode());
+			})) {
+				reply.put("state", "refused");
+				ws.writeTextMessage(reply.encode());
+			}
+			return;
+		} else if (rbody != null) {
+			WireProtocol protocol = WireProtocol.negotiate(req);
+			if (!rbody.connect(this, joinId, service, protocol)) {
+				/* already connected or closing: a connection is replaced only by resuming */
+				reply.put("error", "join refused");
+			} else {
+				sessions.put(joinId, rbody);
+				reply.put("session-id", joinId);
+				reply.put("state", "connected");
+				WorkspaceService.putToken(reply, rbody);
+				protocol.writeTo(reply);
+			}
+		} else {
+			reply.put("error", "join refused");
+		}
+		ws.writeTextMessage(reply.encode());
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.function.Function;
+
+import cartago.ArtifactId;
+import cartago.ArtifactObsProperty;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Delta encoding of the observable properties changed by an artifact.
+ *
+ * Both sides of a connection keep the last known copy of the observable
+ * properties they exchanged, keyed by the full id of the property,
+ * updating it with the same rules: properties are known after a focus
+ * or after being added or changed, they are forgotten after a stop
+ * focus, after being removed and when the artifact is disposed.
+ *
+ * A changed property already known by the receiver with the same number
+ * of values is sent as the list of the values that differ, each one
+ * with its position: <code>{"fullId": .., "id": .., "delta": [..]}</code>.
+ * The receiver rebuilds the full property from its last known copy.
+ * Only immutable values (strings, boxed primitives, enums, artifact ids)
+ * are left out when unchanged: arrays and other objects can be updated
+ * in place by the artifact, so they are always sent.
+ *
+ */
+class ObsPropertyDeltas {
+
+	private final HashMap<String, ArtifactObsProperty> known;
+
+	ObsPropertyDeltas() {
+		known = new HashMap<String, ArtifactObsProperty>();
+	}
+
+	/**
+	 * Encode the changed properties - sender side
+	 *
+	 * @param props
+	 * @param dict outbound dictionary, null if not used
+	 * @param inline parameters stored inline
+	 * @param shared shared encoding of a property, sent in place of the delta if not null
+	 * @return
+	 */
+	JsonArray encodeChanged(ArtifactObsProperty[] props, WireDictionary dict, boolean inline, Function<ArtifactObsProperty, EncodedValue> shared) {
+		JsonArray array = new JsonArray();
+		for (ArtifactObsProperty prop: props) {
+			EncodedValue encoded = shared != null ? shared.apply(prop) : null;
+			if (encoded != null) {
+				array.getList().add(encoded);
+				remember(prop);
+				continue;
+			}
+			Object[] values = prop.getValues();
+			ArtifactObsProperty last = known.get(prop.getFullId());
+			JsonObject obj = null;
+			JsonArray delta = null;
+			if (last != null && last.getValues().length == values.length) {
+				/* positions are selected before encoding anything, since encoding updates the dictionary */
+				Object[] lastValues = last.getValues();
+				int[] changed = new int[values.length];
+				int nChanged = 0;
+				boolean hasNull = false;
+				for (int i = 0; i < values.length; i++) {
+					/* values that can be updated in place are compared with themselves: always sent */
+					if (!isImmutable(values[i]) || !Objects.equals(values[i], lastValues[i])) {
+						changed[nChanged++] = i;
+						/* null values are not supported as parameters */
+						hasNull |= values[i] == null;
+					}
+				}
+				if (nChanged < values.length && !hasNull) {
+					/* the id first: entries are defined in the order they are decoded */
+					obj = new JsonObject();
+					obj.put("fullId", dict == null ? prop.getFullId() : dict.encodeString(prop.getFullId()));
+					obj.put("id", prop.getId());
+					delta = new JsonArray();
+					for (int k = 0; k < nChanged; k++) {
+						int pos = changed[k];
+						delta.add(JsonUtil.toJsonParam(values[pos], dict, inline).put("pos", pos));
+					}
+				}
+			}
+			if (delta != null) {
+				obj.put("delta", delta);
+				array.add(obj);
+			} else {
+				array.add(JsonUtil.toJson(prop, dict, inline));
+			}
+			remember(prop);
+		}
+		return array;
+	}
+
+	/**
+	 * Decode the changed properties - receiver side
+	 *
+	 * @param array
+	 * @param dict inbound dictionary, null if not used
+	 * @return
+	 */
+	ArtifactObsProperty[] decodeChanged(JsonArray array, WireDictionary dict) {
+		if (array == null) {
+			return null;
+		}
+		ArtifactObsProperty[] props = new ArtifactObsProperty[array.size()];
+		for (int i = 0; i < props.length; i++) {
+			JsonObject obj = array.getJsonObject(i);
+			JsonArray delta = obj.getJsonArray("delta");
+			if (delta != null) {
+				String fullId = dict == null ? obj.getString("fullId") : dict.decodeString(obj.getValue("fullId"));
+				ArtifactObsProperty last = known.get(fullId);
+				if (last == null) {
+					throw new IllegalStateException("Delta for unknown observable property " + fullId);
+				}
+				Object[] values = last.getValues().clone();
+				for (int j = 0; j < delta.size(); j++) {
+					JsonObject param = delta.getJsonObject(j);
+					values[param.getInteger("pos")] = JsonUtil.fromJsonParam(param, dict);
+				}
+				props[i] = new ArtifactObsProperty(fullId, obj.getLong("id"), last.getName(), values);
+			} else {
+				props[i] = JsonUtil.toArtifactObsProperty(obj, dict);
+			}
+			remember(props[i]);
+		}
+		return props;
+	}
+
+	void remember(ArtifactObsProperty[] props) {
+		if (props != null) {
+			for (ArtifactObsProperty prop: props) {
+				remember(prop);
+			}
+		}
+	}
+
+	void remember(Collection<ArtifactObsProperty> props) {
+		if (props != null) {
+			for (ArtifactObsProperty prop: props) {
+				remember(prop);
+			}
+		}
+	}
+
+	void forget(ArtifactObsProperty[] props) {
+		if (props != null) {
+			for (ArtifactObsProperty prop: props) {
+				known.remove(prop.getFullId());
+			}
+		}
+	}
+
+	void forget(Collection<ArtifactObsProperty> props) {
+		if (props != null) {
+			for (ArtifactObsProperty prop: props) {
+				known.remove(prop.getFullId());
+			}
+		}
+	}
+
+	static private boolean isImmutable(Object v) {
+		return v == null || v instanceof String || v instanceof Integer || v instanceof Long
+				|| v instanceof Double || v instanceof Float || v instanceof Boolean
+				|| v instanceof Character || v instanceof Short || v instanceof Byte
+				|| v instanceof Enum || v instanceof ArtifactId;
+	}
+
+	/* a copy is kept, the values array of the event could be reused */
+	private void remember(ArtifactObsProperty prop) {
+		known.put(prop.getFullId(), new ArtifactObsProperty(prop.getFullId(), prop.getId(), prop.getName(), prop.getValues().clone()));
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+/**
+ * What to do when the events to be sent to a remote agent pile up
+ * because the agent does not keep up.
+ *
+ */
+public enum OverflowPolicy {
+
+	/* block the producer of the events until some are sent, the default: no event is lost */
+	BLOCK,
+
+	/* drop the oldest observations, signals included */
+	DROP_OLDEST,
+
+	/* keep only the newest value of the observable properties, then block as BLOCK: signals are never dropped */
+	CONFLATE,
+
+	/* close the connection with the agent */
+	DISCONNECT
+}
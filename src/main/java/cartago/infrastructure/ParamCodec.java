@@ -0,0 +1,49 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+/**
+ * Codec for the values of a given type used as parameters of
+ * operations, signals and observable properties.
+ *
+ * Values are encoded into JSON trees (null, Boolean, Number, String,
+ * JsonObject, JsonArray, Map or List) that are then put in the frame.
+ *
+ * @see ParamCodecRegistry
+ */
+public interface ParamCodec {
+
+	/**
+	 * Encode a value
+	 *
+	 * @param value non null value
+	 * @return JSON tree representing the value
+	 * @throws Exception
+	 */
+	Object encode(Object value) throws Exception;
+
+	/**
+	 * Decode a value
+	 *
+	 * @param json non null JSON tree produced by encode
+	 * @return
+	 * @throws Exception
+	 */
+	Object decode(Object json) throws Exception;
+
+}
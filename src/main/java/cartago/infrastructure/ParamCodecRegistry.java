@@ -0,0 +1,242 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import cartago.ArtifactId;
+import cartago.WorkspaceId;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Registry of the codecs used for parameter values.
+ *
+ * Codecs are looked up by class when encoding and by class name
+ * when decoding; in both cases the class is resolved once and then
+ * cached. Basic types, their arrays and the CArtAgO identifiers have
+ * dedicated codecs, any other type is managed by Jackson.
+ *
+ */
+public class ParamCodecRegistry {
+
+	static private final ConcurrentHashMap<Class<?>, ParamCodec> byClass = new ConcurrentHashMap<>();
+	static private final ConcurrentHashMap<String, ParamCodec> byName = new ConcurrentHashMap<>();
+
+	static {
+		register(Integer.class, new ParamCodec() {
+			public Object encode(Object value) { return value; }
+			public Object decode(Object json) { return ((Number) json).intValue(); }
+		});
+		register(Long.class, new ParamCodec() {
+			public Object encode(Object value) { return value; }
+			public Object decode(Object json) { return ((Number) json).longValue(); }
+		});
+		register(Double.class, new ParamCodec() {
+			public Object encode(Object value) { return value; }
+			public Object decode(Object json) { return ((Number) json).doubleValue(); }
+		});
+		register(Boolean.class, new ParamCodec() {
+			public Object encode(Object value) { return value; }
+			public Object decode(Object json) { return json; }
+		});
+		register(String.class, new ParamCodec() {
+			public Object encode(Object value) { return value; }
+			public Object decode(Object json) { return json; }
+		});
+
+		register(int[].class, new ParamCodec() {
+			public Object encode(Object value) {
+				JsonArray array = new JsonArray();
+				for (int v: (int[]) value) {
+					array.add(v);
+				}
+				return array;
+			}
+			public Object decode(Object json) {
+				JsonArray array = asArray(json);
+				int[] values = new int[array.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = ((Number) array.getValue(i)).intValue();
+				}
+				return values;
+			}
+		});
+		register(long[].class, new ParamCodec() {
+			public Object encode(Object value) {
+				JsonArray array = new JsonArray();
+				for (long v: (long[]) value) {
+					array.add(v);
+				}
+				return array;
+			}
+			public Object decode(Object json) {
+				JsonArray array = asArray(json);
+				long[] values = new long[array.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = ((Number) array.getValue(i)).longValue();
+				}
+				return values;
+			}
+		});
+		register(double[].class, new ParamCodec() {
+			public Object encode(Object value) {
+				JsonArray array = new JsonArray();
+				for (double v: (double[]) value) {
+					array.add(v);
+				}
+				return array;
+			}
+			public Object decode(Object json) {
+				JsonArray array = asArray(json);
+				double[] values = new double[array.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = ((Number) array.getValue(i)).doubleValue();
+				}
+				return values;
+			}
+		});
+		register(boolean[].class, new ParamCodec() {
+			public Object encode(Object value) {
+				JsonArray array = new JsonArray();
+				for (boolean v: (boolean[]) value) {
+					array.add(v);
+				}
+				return array;
+			}
+			public Object decode(Object json) {
+				JsonArray array = asArray(json);
+				boolean[] values = new boolean[array.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = array.getBoolean(i);
+				}
+				return values;
+			}
+		});
+		register(String[].class, new ParamCodec() {
+			public Object encode(Object value) {
+				JsonArray array = new JsonArray();
+				for (String v: (String[]) value) {
+					array.add(v);
+				}
+				return array;
+			}
+			public Object decode(Object json) {
+				JsonArray array = asArray(json);
+				String[] values = new String[array.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = array.getString(i);
+				}
+				return values;
+			}
+		});
+
+		register(ArtifactId.class, new ParamCodec() {
+			public Object encode(Object value) { return JsonUtil.toJson((ArtifactId) value); }
+			public Object decode(Object json) throws Exception { return JsonUtil.toArtifactId(asObject(json)); }
+		});
+		register(InfrastructureWspId.class, new ParamCodec() {
+			public Object encode(Object value) { return JsonUtil.toJson((WorkspaceId) value); }
+			public Object decode(Object json) throws Exception { return JsonUtil.toWorkspaceId(asObject(json)); }
+		});
+	}
+
+	/**
+	 * Register the codec to be used for a type, replacing the
+	 * current one if any.
+	 *
+	 * The same codec must be registered on both sides of the connection.
+	 *
+	 * @param type
+	 * @param codec
+	 */
+	static public void register(Class<?> type, ParamCodec codec) {
+		byClass.put(type, codec);
+		byName.put(type.getName(), codec);
+	}
+
+	/**
+	 * Get the codec for the type of a value to be encoded
+	 *
+	 * @param type
+	 * @return
+	 */
+	static public ParamCodec forClass(Class<?> type) {
+		ParamCodec codec = byClass.get(type);
+		if (codec == null) {
+			codec = byClass.computeIfAbsent(type, t -> new JacksonCodec(t));
+		}
+		return codec;
+	}
+
+	/**
+	 * Get the codec for the type of a value to be decoded
+	 *
+	 * @param className name of the type, as specified in the frame
+	 * @return
+	 * @throws ClassNotFoundException
+	 */
+	static public ParamCodec forClassName(String className) throws ClassNotFoundException {
+		ParamCodec codec = byName.get(className);
+		if (codec == null) {
+			codec = forClass(Class.forName(className));
+			byName.putIfAbsent(className, codec);
+		}
+		return codec;
+	}
+
+	//
+
+	static private JsonArray asArray(Object json) {
+		return json instanceof JsonArray ? (JsonArray) json : new JsonArray((java.util.List<?>) json);
+	}
+
+	@SuppressWarnings("unchecked")
+	static private JsonObject asObject(Object json) {
+		return json instanceof JsonObject ? (JsonObject) json : new JsonObject((java.util.Map<String, Object>) json);
+	}
+
+	/**
+	 * General purpose codec, based on Jackson.
+	 */
+	static class JacksonCodec implements ParamCodec {
+
+		private final Class<?> type;
+
+		JacksonCodec(Class<?> type) {
+			this.type = type;
+		}
+
+		public Object encode(Object value) {
+			return JsonUtil.getTreeMapper().convertValue(value, Object.class);
+		}
+
+		public Object decode(Object json) {
+			ObjectMapper mapper = JsonUtil.getObjectMapper();
+			if (json instanceof JsonObject) {
+				return mapper.convertValue(((JsonObject) json).getMap(), type);
+			} else if (json instanceof JsonArray) {
+				return mapper.convertValue(((JsonArray) json).getList(), type);
+			} else {
+				return mapper.convertValue(json, type);
+			}
+		}
+	}
+}
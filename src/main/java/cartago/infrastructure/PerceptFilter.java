@@ -0,0 +1,204 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import cartago.ArtifactObsProperty;
+import cartago.Tuple;
+
+/**
+ * Declarative filter of the observations sent to a remote agent,
+ * evaluated by the workspace before encoding the events.
+ * 
+ * A filter can restrict the accepted signal names, property names and
+ * artifact types, and specify conditions on the values of the signals
+ * and properties with a given name. What is not restricted is accepted.
+ * 
+ * <pre>
+ * new PerceptFilter().acceptSignals("alarm").acceptProperties("temperature")
+ *     .where("temperature", 0, Comparison.GT, 30)
+ * </pre>
+ * 
+ */
+public class PerceptFilter {
+
+	public enum Comparison { EQ, NE, LT, LE, GT, GE }
+
+	/* null for no restrictions */
+	private Set<String> signals;
+	private Set<String> properties;
+	private Set<String> artifactTypes;
+	private List<Condition> conditions;
+
+	public PerceptFilter() {
+		conditions = new ArrayList<Condition>();
+	}
+
+	/**
+	 * Accept only the signals with the given names
+	 * 
+	 * @param names
+	 * @return
+	 */
+	public PerceptFilter acceptSignals(String... names) {
+		signals = add(signals, names);
+		return this;
+	}
+
+	/**
+	 * Accept only the observable properties with the given names
+	 * 
+	 * @param names
+	 * @return
+	 */
+	public PerceptFilter acceptProperties(String... names) {
+		properties = add(properties, names);
+		return this;
+	}
+
+	/**
+	 * Accept only the observations of artifacts with the given types
+	 * 
+	 * @param types
+	 * @return
+	 */
+	public PerceptFilter acceptArtifactTypes(String... types) {
+		artifactTypes = add(artifactTypes, types);
+		return this;
+	}
+
+	/**
+	 * Accept the signals and property updates with the given name
+	 * only if the value at the given position satisfies the comparison
+	 * 
+	 * @param name signal or property name
+	 * @param index position of the value
+	 * @param comparison
+	 * @param value a number, a string or a boolean
+	 * @return
+	 */
+	public PerceptFilter where(String name, int index, Comparison comparison, Object value) {
+		conditions.add(new Condition(name, index, comparison, value));
+		return this;
+	}
+
+	Set<String> getSignals() {
+		return signals;
+	}
+
+	Set<String> getProperties() {
+		return properties;
+	}
+
+	Set<String> getArtifactTypes() {
+		return artifactTypes;
+	}
+
+	List<Condition> getConditions() {
+		return conditions;
+	}
+
+	boolean acceptsArtifactType(String type) {
+		return artifactTypes == null || artifactTypes.contains(type);
+	}
+
+	boolean acceptsSignal(Tuple signal) {
+		return (signals == null || signals.contains(signal.getLabel()))
+				&& satisfies(signal.getLabel(), signal.getContents());
+	}
+
+	boolean acceptsProperty(String name) {
+		return properties == null || properties.contains(name);
+	}
+
+	boolean acceptsPropertyValue(ArtifactObsProperty prop) {
+		return acceptsProperty(prop.getName()) && satisfies(prop.getName(), prop.getValues());
+	}
+
+	private boolean satisfies(String name, Object[] values) {
+		for (Condition c: conditions) {
+			if (c.name.equals(name) && !c.test(values)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static private Set<String> add(Set<String> set, String[] names) {
+		if (set == null) {
+			set = new HashSet<String>();
+		}
+		set.addAll(Arrays.asList(names));
+		return set;
+	}
+
+	public String toString() {
+		return "signals " + signals + " properties " + properties + " types " + artifactTypes + " where " + conditions;
+	}
+
+	static class Condition {
+
+		final String name;
+		final int index;
+		final Comparison comparison;
+		final Object value;
+
+		Condition(String name, int index, Comparison comparison, Object value) {
+			this.name = name;
+			this.index = index;
+			this.comparison = comparison;
+			this.value = value;
+		}
+
+		boolean test(Object[] values) {
+			if (values == null || index < 0 || index >= values.length || values[index] == null) {
+				return false;
+			}
+			Object v = values[index];
+			int cmp;
+			if (v instanceof Number && value instanceof Number) {
+				cmp = Double.compare(((Number) v).doubleValue(), ((Number) value).doubleValue());
+			} else if (v instanceof String && value instanceof String) {
+				cmp = ((String) v).compareTo((String) value);
+			} else if (comparison == Comparison.EQ) {
+				return v.equals(value);
+			} else if (comparison == Comparison.NE) {
+				return !v.equals(value);
+			} else {
+				return false;
+			}
+			switch (comparison) {
+			case EQ: return cmp == 0;
+			case NE: return cmp != 0;
+			case LT: return cmp < 0;
+			case LE: return cmp <= 0;
+			case GT: return cmp > 0;
+			default: return cmp >= 0;
+			}
+		}
+
+		public String toString() {
+			return name + "[" + index + "] " + comparison + " " + value;
+		}
+	}
+}
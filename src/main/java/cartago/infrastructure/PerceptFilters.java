@@ -0,0 +1,154 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cartago.ArtifactId;
+import cartago.ArtifactObsProperty;
+import cartago.Tuple;
+import cartago.events.*;
+
+/**
+ * Filters registered by a remote agent: one for the whole session
+ * and one for each focused artifact, both applied to the observations.
+ * 
+ * The filter of a focus is dropped when the focus is stopped or the
+ * artifact is disposed. The property snapshot sent on focus is
+ * restricted to the accepted property names, so the agent does not
+ * keep properties that would not be updated.
+ *
+ */
+class PerceptFilters {
+
+	private volatile PerceptFilter sessionFilter;
+	private final ConcurrentHashMap<ArtifactId, PerceptFilter> focusFilters;
+
+	PerceptFilters() {
+		focusFilters = new ConcurrentHashMap<ArtifactId, PerceptFilter>();
+	}
+
+	/**
+	 * Set or remove a filter
+	 * 
+	 * @param aid focused artifact, null for the session filter
+	 * @param filter the filter, null to remove it
+	 */
+	void set(ArtifactId aid, PerceptFilter filter) {
+		if (aid == null) {
+			sessionFilter = filter;
+		} else if (filter == null) {
+			focusFilters.remove(aid);
+		} else {
+			focusFilters.put(aid, filter);
+		}
+	}
+
+	/**
+	 * Apply the filters to an event
+	 * 
+	 * @param ev
+	 * @return the event, a new one with the accepted part only, or null if nothing is accepted
+	 */
+	CartagoEvent apply(CartagoEvent ev) {
+		PerceptFilter session = sessionFilter;
+		if (ev instanceof FocussedArtifactDisposedEvent) {
+			focusFilters.remove(((FocussedArtifactDisposedEvent) ev).getArtifactId());
+		} else if (ev instanceof StopFocusSucceededEvent) {
+			focusFilters.remove(((StopFocusSucceededEvent) ev).getTargetArtifact());
+		} else if (ev instanceof FocusSucceededEvent) {
+			FocusSucceededEvent focusEv = (FocusSucceededEvent) ev;
+			PerceptFilter focus = focusFilters.get(focusEv.getTargetArtifact());
+			if ((session != null || focus != null) && focusEv.getObsProperties() != null) {
+				List<ArtifactObsProperty> props = new ArrayList<ArtifactObsProperty>();
+				for (ArtifactObsProperty prop: focusEv.getObsProperties()) {
+					if ((session == null || session.acceptsProperty(prop.getName())) && (focus == null || focus.acceptsProperty(prop.getName()))) {
+						props.add(prop);
+					}
+				}
+				if (props.size() < focusEv.getObsProperties().size()) {
+					return new FocusSucceededEvent(ev.getId(), focusEv.getActionId(), focusEv.getOp(), focusEv.getArtifactId(),
+							focusEv.getTargetArtifact(), props, ev.getTimestamp());
+				}
+			}
+		} else if (ev instanceof ArtifactObsEvent) {
+			ArtifactObsEvent obsEv = (ArtifactObsEvent) ev;
+			ArtifactId src = obsEv.getArtifactId();
+			PerceptFilter focus = focusFilters.isEmpty() ? null : focusFilters.get(src);
+			if (session == null && focus == null) {
+				return ev;
+			}
+			if ((session != null && !session.acceptsArtifactType(src.getArtifactType()))
+					|| (focus != null && !focus.acceptsArtifactType(src.getArtifactType()))) {
+				return null;
+			}
+			Tuple signal = obsEv.getSignal();
+			if (signal != null && ((session != null && !session.acceptsSignal(signal)) || (focus != null && !focus.acceptsSignal(signal)))) {
+				signal = null;
+			}
+			ArtifactObsProperty[] changed = filter(obsEv.getChangedProperties(), session, focus, true);
+			ArtifactObsProperty[] added = filter(obsEv.getAddedProperties(), session, focus, false);
+			ArtifactObsProperty[] removed = filter(obsEv.getRemovedProperties(), session, focus, false);
+			if (signal == null && changed == null && added == null && removed == null) {
+				return null;
+			} else if (signal == obsEv.getSignal() && changed == obsEv.getChangedProperties()
+					&& added == obsEv.getAddedProperties() && removed == obsEv.getRemovedProperties()) {
+				return ev;
+			} else {
+				return new ArtifactObsEvent(ev.getId(), src, signal, changed, added, removed, ev.getTimestamp());
+			}
+		}
+		return ev;
+	}
+
+	/*
+	 * The same array if all the properties are accepted, null if none is.
+	 * Conditions on values are checked for the changed properties only:
+	 * added and removed properties are filtered by name.
+	 */
+	private static ArtifactObsProperty[] filter(ArtifactObsProperty[] props, PerceptFilter session, PerceptFilter focus, boolean checkValues) {
+		if (props == null) {
+			return null;
+		}
+		ArrayList<ArtifactObsProperty> accepted = new ArrayList<ArtifactObsProperty>(props.length);
+		for (ArtifactObsProperty prop: props) {
+			if (accepts(session, prop, checkValues) && accepts(focus, prop, checkValues)) {
+				accepted.add(prop);
+			}
+		}
+		if (accepted.isEmpty()) {
+			return null;
+		} else if (accepted.size() == props.length) {
+			return props;
+		} else {
+			return accepted.toArray(new ArtifactObsProperty[accepted.size()]);
+		}
+	}
+
+	private static boolean accepts(PerceptFilter filter, ArtifactObsProperty prop, boolean checkValues) {
+		if (filter == null) {
+			return true;
+		} else if (checkValues) {
+			return filter.acceptsPropertyValue(prop);
+		} else {
+			return filter.acceptsProperty(prop.getName());
+		}
+	}
+}
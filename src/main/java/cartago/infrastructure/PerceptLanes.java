@@ -0,0 +1,248 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import cartago.events.*;
+
+/**
+ * Percepts of an agent, kept in separate lanes: action feedback,
+ * focus and workspace lifecycle events, observations.
+ * 
+ * Each lane is a bounded PerceptQueue. Only the observation lane
+ * applies the configured overflow policy: the other lanes block their
+ * producers when full, since an agent cannot miss the result of an
+ * action or a change of its focus - except the event loops, whose
+ * events are kept aside until there is room (see PerceptQueue).
+ * 
+ * Events are stamped on arrival, so lanes can be merged back in arrival
+ * order. How lanes are merged depends on the dequeue policy.
+ * 
+ */
+public class PerceptLanes {
+
+	public enum Lane {
+		ACTION,
+		LIFECYCLE,
+		OBSERVATION;
+
+		static public Lane of(CartagoEvent ev) {
+			if (ev instanceof FocusSucceededEvent || ev instanceof StopFocusSucceededEvent
+					|| ev instanceof JoinWSPSucceededEvent || ev instanceof JoinWSPRequestSucceededEvent
+					|| ev instanceof QuitWSPSucceededEvent || ev instanceof FocussedArtifactDisposedEvent) {
+				return LIFECYCLE;
+			} else if (ev instanceof CartagoActionEvent) {
+				return ACTION;
+			} else {
+				return OBSERVATION;
+			}
+		}
+	}
+
+	public enum Policy {
+		/* all the events in arrival order, as a single queue */
+		FIFO,
+		/* action feedback first, the other events in arrival order */
+		ACTIONS_FIRST,
+		/* action feedback first, then lifecycle events, then observations -
+		   observations of an artifact can be handed out after it is no more focused */
+		PRIORITY
+	}
+
+	/* capacity of the action and lifecycle lanes */
+	static private final int MAX_CONTROL_CAPACITY = 1024;
+
+	private final PerceptQueue[] lanes;
+	private final AtomicLong stamp;
+	private volatile Policy policy;
+
+	/**
+	 * 
+	 * @param capacity capacity of the observation lane
+	 * @param overflow overflow policy of the observation lane
+	 * @param policy dequeue policy
+	 */
+	public PerceptLanes(int capacity, PerceptQueue.Overflow overflow, Policy policy) {
+		int controlCapacity = Math.min(capacity, MAX_CONTROL_CAPACITY);
+		lanes = new PerceptQueue[Lane.values().length];
+		lanes[Lane.ACTION.ordinal()] = new PerceptQueue(controlCapacity, PerceptQueue.Overflow.BLOCK);
+		lanes[Lane.LIFECYCLE.ordinal()] = new PerceptQueue(controlCapacity, PerceptQueue.Overflow.BLOCK);
+		lanes[Lane.OBSERVATION.ordinal()] = new PerceptQueue(capacity, overflow);
+		stamp = new AtomicLong();
+		this.policy = policy;
+	}
+
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Add an event to its lane
+	 * 
+	 * @param ev
+	 * @return false if the event has been dropped
+	 */
+	public boolean offer(CartagoEvent ev) {
+		return lanes[Lane.of(ev).ordinal()].offer(ev, stamp.incrementAndGet());
+	}
+
+	/**
+	 * Remove the next event according to the dequeue policy
+	 * 
+	 * @return the event or null if there are none
+	 */
+	public CartagoEvent poll() {
+		switch (policy) {
+		case PRIORITY:
+			for (PerceptQueue lane: lanes) {
+				CartagoEvent ev = lane.poll();
+				if (ev != null) {
+					return ev;
+				}
+			}
+			return null;
+		case ACTIONS_FIRST:
+			CartagoEvent ev = lanes[Lane.ACTION.ordinal()].poll();
+			return ev != null ? ev : pollOldest(Lane.LIFECYCLE.ordinal());
+		default:
+			return pollOldest(0);
+		}
+	}
+
+	/* remove the oldest event among the lanes starting from the given one */
+	private CartagoEvent pollOldest(int from) {
+		for (;;) {
+			PerceptQueue oldest = null;
+			long min = Long.MAX_VALUE;
+			for (int i = from; i < lanes.length; i++) {
+				long s = lanes[i].peekStamp();
+				if (s < min) {
+					min = s;
+					oldest = lanes[i];
+				}
+			}
+			if (oldest == null) {
+				return null;
+			}
+			CartagoEvent ev = oldest.poll();
+			if (ev != null) {
+				return ev;
+			}
+			/* dropped meanwhile by a producer, try again */
+		}
+	}
+
+	/**
+	 * Remove the next event, waiting for it if there are none
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the event or null if the timeout expired
+	 * @throws InterruptedException
+	 */
+	public CartagoEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		CartagoEvent ev = poll();
+		if (ev != null || timeout <= 0) {
+			return ev;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		setWaiter(Thread.currentThread());
+		try {
+			while ((ev = poll()) == null) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			setWaiter(null);
+		}
+		return ev;
+	}
+
+	private void setWaiter(Thread waiter) {
+		for (PerceptQueue lane: lanes) {
+			lane.setWaiter(waiter);
+		}
+	}
+
+	/**
+	 * Remove the available events, up to a max number
+	 * 
+	 * @param target collection where to add the events
+	 * @param max
+	 * @return the number of events removed
+	 */
+	public int drainTo(Collection<? super CartagoEvent> target, int max) {
+		int n = 0;
+		CartagoEvent ev;
+		while (n < max && (ev = poll()) != null) {
+			target.add(ev);
+			n++;
+		}
+		return n;
+	}
+
+	public int size() {
+		int size = 0;
+		for (PerceptQueue lane: lanes) {
+			size += lane.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Number of events in a lane
+	 * 
+	 * @param lane
+	 * @return
+	 */
+	public int size(Lane lane) {
+		return lanes[lane.ordinal()].size();
+	}
+
+	/**
+	 * Capacity of a lane
+	 * 
+	 * @param lane
+	 * @return
+	 */
+	public int capacity(Lane lane) {
+		return lanes[lane.ordinal()].capacity();
+	}
+
+	public int capacity() {
+		int capacity = 0;
+		for (PerceptQueue lane: lanes) {
+			capacity += lane.capacity();
+		}
+		return capacity;
+	}
+}
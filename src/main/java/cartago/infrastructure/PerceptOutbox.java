@@ -0,0 +1,629 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import cartago.ArtifactId;
+import cartago.ArtifactObsProperty;
+import cartago.events.*;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Outbound queue of the events to be sent to a remote agent.
+ *
+ * Events produced within a short time window are sent together in a
+ * single <code>batch</code> frame. An event arriving after a quiet period
+ * is sent at once, so batching adds no latency at low load; otherwise it
+ * waits at most the configured delay, or less if the batch gets full.
+ *
+ * Events are encoded when they are sent, in the same order, under the
+ * lock of the outbox: this keeps dictionaries and deltas consistent.
+ * Frames are written without holding the lock, since writing takes the
+ * lock of the connection, held by the handlers of the connection that
+ * call the outbox: one thread at a time writes, in encoding order.
+ *
+ * The updates of the observable properties the agent asked to conflate
+ * are held apart, keeping only the newest value of each property. They
+ * are sent when the socket is not full and, if a max rate is specified,
+ * when the min interval from the previous update has passed. Any other
+ * event of the same artifact - signals, added or removed properties,
+ * stop focus, disposal - sends the held updates of the artifact first,
+ * while events of other artifacts and action completions can overtake
+ * them.
+ *
+ * Events are sent only while the socket is not full and, if the client
+ * agreed on credit based flow control, only as many events as the credit
+ * granted by the client. When more than the max number of events are
+ * pending, the overflow policy of the session is applied.
+ *
+ * If the client agreed on resumption, the events sent are numbered
+ * (<code>seq</code>) and the last ones are kept until the client
+ * acknowledges them. While the connection is down the events are
+ * queued; when the client resumes the session with the number of the
+ * last event it got, the following ones are sent again as they were
+ * encoded the first time, then the queued ones. With credits, the events
+ * sent again count against the window granted by the client after resuming.
+ *
+ */
+class PerceptOutbox {
+
+	private final AgentBodyRemote body;
+	private final Vertx vertx;
+	private final int maxBatchEvents;
+	private final long maxBatchDelay;
+	private final int maxPendingEvents;
+	private final OverflowPolicy overflowPolicy;
+
+	private final ArrayDeque<CartagoEvent> pending;
+	private long lastFlush;
+	private long flushTimer;
+	/* number of events that can be sent, unlimited if credits are not agreed */
+	private final boolean creditFlow;
+	private long credit;
+	private boolean closed;
+	/* sent events not acknowledged yet, null if resumption is not agreed */
+	private final ArrayDeque<JsonObject> replay;
+	private final int maxReplayEvents;
+	private long seq;
+	/* the connection is down, waiting for the client to resume */
+	private boolean detached;
+
+	/* frames to be written before the pending events: replies and events sent again */
+	private final ArrayDeque<Object> outgoing;
+	/* a thread is writing the frames, another one asked to flush meanwhile */
+	private boolean writing;
+	private boolean again;
+
+	/* min interval (ms) of the conflated properties, by artifact and name - null name for all */
+	private final HashMap<ArtifactId, HashMap<String, Long>> conflated;
+	/* state of the conflated properties, by full id */
+	private final HashMap<String, ConflatedProperty> states;
+	/* conflated properties with an update not sent yet, in arrival order */
+	private final LinkedHashMap<String, ConflatedProperty> held;
+	private long releaseTimer;
+
+	/* rule used for all the artifacts when overflowing with the conflate policy */
+	private static final HashMap<String, Long> CONFLATE_ALL = new HashMap<String, Long>();
+	static {
+		CONFLATE_ALL.put(null, 0L);
+	}
+
+	/**
+	 *
+	 * @param body body encoding and writing the frames
+	 * @param vertx
+	 * @param config configuration of the session
+	 * @param protocol protocol agreed with the client
+	 */
+	PerceptOutbox(AgentBodyRemote body, Vertx vertx, RemoteSessionConfig config, WireProtocol protocol) {
+		this.body = body;
+		this.vertx = vertx;
+		/* old clients cannot unpack batches */
+		this.maxBatchEvents = protocol.has(WireProtocol.BATCH) ? config.getMaxBatchEvents() : 1;
+		this.maxBatchDelay = config.getMaxBatchDelay();
+		this.maxPendingEvents = config.getMaxPendingEvents();
+		this.overflowPolicy = config.getOverflowPolicy();
+		/* clients using credits grant the first ones when connected */
+		creditFlow = protocol.has(WireProtocol.CREDIT);
+		credit = creditFlow ? 0 : Long.MAX_VALUE;
+		replay = protocol.has(WireProtocol.RESUME) ? new ArrayDeque<JsonObject>() : null;
+		maxReplayEvents = config.getMaxReplayEvents();
+		pending = new ArrayDeque<CartagoEvent>();
+		outgoing = new ArrayDeque<Object>();
+		flushTimer = -1;
+		conflated = new HashMap<ArtifactId, HashMap<String, Long>>();
+		states = new HashMap<String, ConflatedProperty>();
+		held = new LinkedHashMap<String, ConflatedProperty>();
+		releaseTimer = -1;
+	}
+
+	void offer(CartagoEvent ev) {
+		boolean now = false;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (!conflated.isEmpty() || isOverflowing(OverflowPolicy.CONFLATE)) {
+				ev = conflate(ev);
+			}
+			if (ev != null) {
+				pending.add(ev);
+			}
+			if (pending.size() >= maxBatchEvents) {
+				now = true;
+			} else if (flushTimer == -1) {
+				if (System.currentTimeMillis() - lastFlush >= maxBatchDelay) {
+					now = true;
+				} else {
+					flushTimer = vertx.setTimer(maxBatchDelay, id -> {
+						synchronized (this) {
+							flushTimer = -1;
+						}
+						flush();
+					});
+				}
+			}
+		}
+		if (now) {
+			flush();
+		}
+		boolean disconnect = false;
+		synchronized (this) {
+			if (pending.size() > maxPendingEvents) {
+				disconnect = overflow();
+			}
+		}
+		if (disconnect) {
+			body.disconnect();
+		}
+	}
+
+	/**
+	 * Add the credit granted by the client
+	 *
+	 * @param n number of events
+	 */
+	void grant(long n) {
+		synchronized (this) {
+			/* the credit is below zero after a resume */
+			credit = credit > 0 && n > Long.MAX_VALUE - credit ? Long.MAX_VALUE : credit + n;
+		}
+		flush();
+	}
+
+	/**
+	 * Send the pending events and the held updates that are due,
+	 * as far as credit and socket allow.
+	 * 
+	 * Not to be called holding the lock of the outbox.
+	 */
+	void flush() {
+		synchronized (this) {
+			if (writing) {
+				/* sent by the thread writing */
+				again = true;
+				return;
+			}
+			writing = true;
+		}
+		while (true) {
+			boolean full = body.isWriteQueueFull();
+			Object next;
+			synchronized (this) {
+				next = nextFrame(full);
+				if (next == null) {
+					if (!held.isEmpty()) {
+						scheduleRelease(full);
+					}
+					/* producers blocked by the overflow policy */
+					notifyAll();
+					if (!again) {
+						writing = false;
+						return;
+					}
+					again = false;
+					continue;
+				}
+			}
+			if (next instanceof Runnable) {
+				((Runnable) next).run();
+			} else {
+				body.writeFrame((JsonObject) next);
+			}
+		}
+	}
+
+	/* encode the next frame to be written, null if none can be sent now */
+	private Object nextFrame(boolean full) {
+		if (flushTimer != -1) {
+			vertx.cancelTimer(flushTimer);
+			flushTimer = -1;
+		}
+		if (closed) {
+			return null;
+		} else if (!outgoing.isEmpty()) {
+			return outgoing.poll();
+		}
+		lastFlush = System.currentTimeMillis();
+		if (!held.isEmpty() && !full) {
+			releaseDue(lastFlush);
+		}
+		while (!pending.isEmpty() && credit > 0 && !detached && !full) {
+			int n = (int) Math.min(Math.min(pending.size(), maxBatchEvents), credit);
+			if (n == 1) {
+				JsonObject frame = sequence(body.encodeEvent(pending.poll()));
+				if (frame != null) {
+					if (creditFlow) {
+						credit--;
+					}
+					return frame;
+				}
+			} else {
+				JsonArray events = new JsonArray();
+				for (int i = 0; i < n; i++) {
+					JsonObject evo = sequence(body.encodeEvent(pending.poll()));
+					if (evo != null) {
+						events.add(evo);
+					}
+				}
+				if (!events.isEmpty()) {
+					if (creditFlow) {
+						credit -= events.size();
+					}
+					return batch(events);
+				}
+			}
+		}
+		return null;
+	}
+
+	private JsonObject batch(JsonArray events) {
+		JsonObject frame = new JsonObject();
+		frame.put("evType", "batch");
+		frame.put("events", events);
+		return frame;
+	}
+
+	/* number a sent event and keep it for replay */
+	private JsonObject sequence(JsonObject evo) {
+		if (replay != null && evo != null) {
+			evo.put("seq", ++seq);
+			replay.add(evo);
+			if (replay.size() > maxReplayEvents) {
+				replay.poll();
+			}
+		}
+		return evo;
+	}
+
+	/**
+	 * Forget the events the client acknowledged
+	 *
+	 * @param lastSeq number of the last event received by the client
+	 */
+	synchronized void ack(long lastSeq) {
+		while (!replay.isEmpty() && replay.peek().getLong("seq") <= lastSeq) {
+			replay.poll();
+		}
+	}
+
+	/**
+	 * The connection is down: events are queued until the client resumes
+	 */
+	synchronized void detach() {
+		detached = true;
+	}
+
+	synchronized boolean isDetached() {
+		return detached;
+	}
+
+	/**
+	 * The client resumed the session on a new connection: send again the
+	 * events it did not get, then the queued ones.
+	 *
+	 * Frames are sent by the next flush, not holding the lock.
+	 *
+	 * @param lastSeq number of the last event received by the client
+	 * @param accepted called before sending the events, to reply to the client
+	 * @return false if some of the events to send again have been forgotten
+	 */
+	synchronized boolean resume(long lastSeq, Runnable accepted) {
+		long first = replay.isEmpty() ? seq + 1 : replay.peek().getLong("seq");
+		if (closed || lastSeq < first - 1 || lastSeq > seq) {
+			return false;
+		}
+		detached = false;
+		/* frames left by the previous connection are in the replay window too */
+		outgoing.clear();
+		outgoing.add(accepted);
+		JsonArray events = new JsonArray();
+		for (JsonObject evo: replay) {
+			if (evo.getLong("seq") > lastSeq) {
+				events.add(evo);
+				if (events.size() == maxBatchEvents) {
+					addReplayed(events);
+					events = new JsonArray();
+				}
+			}
+		}
+		if (!events.isEmpty()) {
+			addReplayed(events);
+		}
+		if (creditFlow) {
+			/*
+			 * The client counts the events sent again against the new window
+			 * it grants after resuming, as it does for any event it gets:
+			 * the credit starts below zero by their number, so that, once the
+			 * grant arrives, no more than the window is in flight. New events
+			 * wait for that grant, one round trip after the resume.
+			 */
+			credit = lastSeq - seq;
+		}
+		return true;
+	}
+
+	private void addReplayed(JsonArray events) {
+		outgoing.add(events.size() == 1 ? events.getJsonObject(0) : batch(events));
+	}
+
+	/**
+	 * Drop everything, the session is closed
+	 */
+	synchronized void close() {
+		closed = true;
+		pending.clear();
+		outgoing.clear();
+		if (replay != null) {
+			replay.clear();
+		}
+		held.clear();
+		states.clear();
+		if (flushTimer != -1) {
+			vertx.cancelTimer(flushTimer);
+			flushTimer = -1;
+		}
+		if (releaseTimer != -1) {
+			vertx.cancelTimer(releaseTimer);
+			releaseTimer = -1;
+		}
+		notifyAll();
+	}
+
+	private boolean isOverflowing(OverflowPolicy policy) {
+		return overflowPolicy == policy && pending.size() >= maxPendingEvents;
+	}
+
+	/* true if the agent must be disconnected, once the lock is released */
+	private boolean overflow() {
+		switch (overflowPolicy) {
+		case BLOCK:
+		case CONFLATE:
+			/* the event loop must never be blocked */
+			if (!Context.isOnEventLoopThread()) {
+				while (!closed && pending.size() > maxPendingEvents) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+				}
+			}
+			break;
+		case DROP_OLDEST:
+			dropOldest();
+			break;
+		case DISCONNECT:
+			log("Too many pending events, disconnecting the agent.");
+			close();
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Drop the oldest observation that does not change the set of
+	 * observable properties: action and focus results are always kept.
+	 */
+	private void dropOldest() {
+		Iterator<CartagoEvent> it = pending.iterator();
+		while (it.hasNext()) {
+			CartagoEvent ev = it.next();
+			if (ev instanceof ArtifactObsEvent && !(ev instanceof FocussedArtifactDisposedEvent)) {
+				ArtifactObsEvent obsEv = (ArtifactObsEvent) ev;
+				if (isEmpty(obsEv.getAddedProperties()) && isEmpty(obsEv.getRemovedProperties())) {
+					it.remove();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Conflate the updates of an observable property
+	 *
+	 * @param aid artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 * @param minInterval min interval (ms) between two updates, 0 for no limit
+	 */
+	synchronized void conflate(ArtifactId aid, String propName, long minInterval) {
+		HashMap<String, Long> rules = conflated.get(aid);
+		if (rules == null) {
+			rules = new HashMap<String, Long>();
+			conflated.put(aid, rules);
+		}
+		rules.put(propName, Math.max(0, minInterval));
+	}
+
+	/**
+	 * Stop conflating the updates of an observable property
+	 *
+	 * @param aid artifact
+	 * @param propName property name, null for all the properties of the artifact
+	 */
+	void stopConflating(ArtifactId aid, String propName) {
+		synchronized (this) {
+			HashMap<String, Long> rules = conflated.get(aid);
+			if (rules == null) {
+				return;
+			}
+			rules.remove(propName);
+			if (rules.isEmpty()) {
+				conflated.remove(aid);
+			}
+			/* the updates held so far are sent anyway */
+			releaseAll(aid);
+		}
+		flush();
+	}
+
+	/*
+	 * Hold the conflated property updates of the event.
+	 * 
+	 * Returns the event to be queued, possibly without the held
+	 * properties, or null if there is nothing left to queue.
+	 */
+	private CartagoEvent conflate(CartagoEvent ev) {
+		ArtifactId src = null;
+		if (ev instanceof FocussedArtifactDisposedEvent) {
+			src = ((FocussedArtifactDisposedEvent) ev).getArtifactId();
+		} else if (ev instanceof ArtifactObsEvent) {
+			ArtifactObsEvent obsEv = (ArtifactObsEvent) ev;
+			HashMap<String, Long> rules = conflated.get(obsEv.getArtifactId());
+			if (rules == null && isOverflowing(OverflowPolicy.CONFLATE)) {
+				rules = CONFLATE_ALL;
+			}
+			ArtifactObsProperty[] changed = obsEv.getChangedProperties();
+			if (rules != null && changed != null && obsEv.getSignal() == null
+					&& isEmpty(obsEv.getAddedProperties()) && isEmpty(obsEv.getRemovedProperties())) {
+				ArrayList<ArtifactObsProperty> others = new ArrayList<ArtifactObsProperty>();
+				for (ArtifactObsProperty prop: changed) {
+					Long minInterval = rules.containsKey(prop.getName()) ? rules.get(prop.getName()) : rules.get(null);
+					if (minInterval != null) {
+						hold(obsEv, prop, minInterval);
+					} else {
+						others.add(prop);
+					}
+				}
+				if (others.isEmpty()) {
+					return null;
+				} else if (others.size() == changed.length) {
+					return ev;
+				} else {
+					return new ArtifactObsEvent(ev.getId(), obsEv.getArtifactId(), null,
+							others.toArray(new ArtifactObsProperty[others.size()]), null, null, ev.getTimestamp());
+				}
+			}
+			src = obsEv.getArtifactId();
+		} else if (ev instanceof StopFocusSucceededEvent) {
+			src = ((StopFocusSucceededEvent) ev).getTargetArtifact();
+		}
+		if (src != null) {
+			releaseAll(src);
+			/* conflation is set per focus */
+			if (ev instanceof StopFocusSucceededEvent || ev instanceof FocussedArtifactDisposedEvent) {
+				forget(src);
+			}
+		}
+		return ev;
+	}
+
+	private void forget(ArtifactId aid) {
+		conflated.remove(aid);
+		states.values().removeIf(state -> state.src.equals(aid));
+	}
+
+	private void hold(ArtifactObsEvent ev, ArtifactObsProperty prop, long minInterval) {
+		ConflatedProperty state = states.get(prop.getFullId());
+		if (state == null) {
+			state = new ConflatedProperty(ev.getArtifactId());
+			states.put(prop.getFullId(), state);
+		}
+		state.minInterval = minInterval;
+		state.latest = prop;
+		state.id = ev.getId();
+		state.timestamp = ev.getTimestamp();
+		/* an update replacing a held one keeps its place */
+		held.putIfAbsent(prop.getFullId(), state);
+	}
+
+	/* queue the held updates of an artifact, whatever the rate */
+	private void releaseAll(ArtifactId src) {
+		long now = System.currentTimeMillis();
+		Iterator<ConflatedProperty> it = held.values().iterator();
+		while (it.hasNext()) {
+			ConflatedProperty state = it.next();
+			if (state.src.equals(src)) {
+				it.remove();
+				pending.add(state.release(now));
+			}
+		}
+	}
+
+	/* queue the held updates that are due, if they can be sent now */
+	private void releaseDue(long now) {
+		if (detached) {
+			return;
+		}
+		Iterator<ConflatedProperty> it = held.values().iterator();
+		while (it.hasNext() && credit > pending.size()) {
+			ConflatedProperty state = it.next();
+			if (now - state.lastSent >= state.minInterval) {
+				it.remove();
+				pending.add(state.release(now));
+			}
+		}
+	}
+
+	/* a full socket is handled by the drain handler of the body, no credit by the next grant */
+	private void scheduleRelease(boolean full) {
+		if (releaseTimer != -1 || detached || full || credit <= pending.size()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long delay = Long.MAX_VALUE;
+		for (ConflatedProperty state: held.values()) {
+			delay = Math.min(delay, state.lastSent + state.minInterval - now);
+		}
+		releaseTimer = vertx.setTimer(Math.max(1, delay), id -> {
+			synchronized (this) {
+				releaseTimer = -1;
+			}
+			flush();
+		});
+	}
+
+	private static boolean isEmpty(ArtifactObsProperty[] props) {
+		return props == null || props.length == 0;
+	}
+
+	static class ConflatedProperty {
+
+		final ArtifactId src;
+		long minInterval;
+		long lastSent;
+		/* newest update not sent yet */
+		ArtifactObsProperty latest;
+		long id;
+		long timestamp;
+
+		ConflatedProperty(ArtifactId src) {
+			this.src = src;
+		}
+
+		ArtifactObsEvent release(long now) {
+			ArtifactObsEvent ev = new ArtifactObsEvent(id, src, null, new ArtifactObsProperty[] { latest }, null, null, timestamp);
+			latest = null;
+			lastSent = now;
+			return ev;
+		}
+	}
+
+	private void log(String msg) {
+		System.out.println("[PerceptOutbox] " + msg);
+	}
+}
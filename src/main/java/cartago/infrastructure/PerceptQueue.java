@@ -0,0 +1,322 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import cartago.events.CartagoEvent;
+import io.vertx.core.Context;
+
+/**
+ * Bounded queue of the percepts of an agent.
+ * 
+ * A lock-free ring buffer, with a sequence number for each slot, that
+ * does not allocate anything when events are added or removed. Any
+ * thread can add events; a thread waiting for events is parked until
+ * an event arrives.
+ * 
+ * When the queue is full the overflow policy is applied. A blocking
+ * queue never makes a Vert.x event loop wait: its events are kept aside,
+ * in order, and moved into the queue as soon as there is room.
+ * 
+ */
+public class PerceptQueue {
+
+	public enum Overflow {
+		/* wait until there is room, except when the consumer itself or an event loop adds an event */
+		BLOCK,
+		/* drop the oldest event in the queue */
+		DROP_OLDEST,
+		/* drop the event to be added */
+		DROP_NEWEST
+	}
+
+	static public final int DEFAULT_CAPACITY = 4096;
+
+	/* time (ns) a blocked producer waits before retrying */
+	static private final long BLOCK_PARK_NANOS = 100000;
+
+	private final CartagoEvent[] buffer;
+	/* arrival stamps, used to merge queues */
+	private final long[] stamps;
+	private final AtomicLongArray sequence;
+	private final int mask;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	private final Overflow overflow;
+
+	/* thread waiting for events, if any */
+	private volatile Thread waiter;
+	/* last thread that removed events */
+	private volatile Thread consumer;
+	/* events of the event loops that found the queue full, with their stamps */
+	private final ArrayDeque<Object[]> spill;
+	private final AtomicInteger spilled;
+
+	/**
+	 * 
+	 * @param capacity max number of events, rounded up to a power of two
+	 * @param overflow policy applied when the queue is full
+	 */
+	public PerceptQueue(int capacity, Overflow overflow) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		buffer = new CartagoEvent[size];
+		stamps = new long[size];
+		sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequence.set(i, i);
+		}
+		mask = size - 1;
+		head = new AtomicLong();
+		tail = new AtomicLong();
+		this.overflow = overflow;
+		spill = new ArrayDeque<Object[]>();
+		spilled = new AtomicInteger();
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Number of events in the queue - an estimate while events are being added or removed
+	 * 
+	 * @return
+	 */
+	public int size() {
+		long h = head.get();
+		long size = tail.get() - h;
+		return (int) Math.max(0, Math.min(size, buffer.length)) + spilled.get();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Add an event, applying the overflow policy if the queue is full
+	 * 
+	 * @param ev
+	 * @return false if the event has been dropped
+	 */
+	public boolean offer(CartagoEvent ev) {
+		return offer(ev, 0);
+	}
+
+	/**
+	 * Add an event with its arrival stamp
+	 * 
+	 * @param ev
+	 * @param stamp
+	 * @return false if the event has been dropped
+	 */
+	boolean offer(CartagoEvent ev, long stamp) {
+		if (overflow == Overflow.BLOCK && spilled.get() > 0 && Context.isOnEventLoopThread()) {
+			/* behind the events already kept aside */
+			spill(ev, stamp);
+		} else {
+			while (!tryOffer(ev, stamp)) {
+				if (overflow == Overflow.BLOCK && Context.isOnEventLoopThread()) {
+					/* the event loop must never be blocked */
+					spill(ev, stamp);
+					break;
+				}
+				switch (overflow) {
+				case DROP_NEWEST:
+					return false;
+				case BLOCK:
+					if (Thread.currentThread() != consumer) {
+						LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+						break;
+					}
+					/* the consumer would wait for itself: drop the oldest instead */
+				case DROP_OLDEST:
+					poll();
+					break;
+				}
+			}
+		}
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+		return true;
+	}
+
+	private void spill(CartagoEvent ev, long stamp) {
+		synchronized (spill) {
+			spill.add(new Object[] { ev, stamp });
+			spilled.incrementAndGet();
+		}
+		/* the consumer may have made room meanwhile */
+		moveSpilled();
+	}
+
+	/* move the events kept aside into the queue, while there is room */
+	private void moveSpilled() {
+		synchronized (spill) {
+			Object[] e;
+			while ((e = spill.peek()) != null && tryOffer((CartagoEvent) e[0], (Long) e[1])) {
+				spill.poll();
+				spilled.decrementAndGet();
+			}
+		}
+	}
+
+	private boolean tryOffer(CartagoEvent ev, long stamp) {
+		long pos = tail.get();
+		for (;;) {
+			int index = (int) pos & mask;
+			long diff = sequence.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer[index] = ev;
+					stamps[index] = stamp;
+					/* volatile write: ordered with the read of the waiter */
+					sequence.set(index, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest event
+	 * 
+	 * @return the event or null if the queue is empty
+	 */
+	public CartagoEvent poll() {
+		Thread current = Thread.currentThread();
+		if (consumer != current) {
+			consumer = current;
+		}
+		CartagoEvent ev = take();
+		if (spilled.get() > 0) {
+			moveSpilled();
+			if (ev == null) {
+				ev = take();
+			}
+		}
+		return ev;
+	}
+
+	private CartagoEvent take() {
+		long pos = head.get();
+		for (;;) {
+			int index = (int) pos & mask;
+			long diff = sequence.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					CartagoEvent ev = buffer[index];
+					buffer[index] = null;
+					sequence.lazySet(index, pos + mask + 1);
+					return ev;
+				}
+				pos = head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * Arrival stamp of the oldest event
+	 * 
+	 * @return the stamp or Long.MAX_VALUE if the queue is empty
+	 */
+	long peekStamp() {
+		if (spilled.get() > 0) {
+			moveSpilled();
+		}
+		long pos = head.get();
+		int index = (int) pos & mask;
+		if (sequence.get(index) == pos + 1) {
+			return stamps[index];
+		} else {
+			return Long.MAX_VALUE;
+		}
+	}
+
+	/* thread to be unparked when an event is added */
+	void setWaiter(Thread waiter) {
+		this.waiter = waiter;
+	}
+
+	/**
+	 * Remove the oldest event, waiting for it if the queue is empty
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the event or null if the timeout expired
+	 * @throws InterruptedException
+	 */
+	public CartagoEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+		CartagoEvent ev = poll();
+		if (ev != null || timeout <= 0) {
+			return ev;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try {
+			/* the waiter is set before checking again, so an event added meanwhile is not missed */
+			while ((ev = poll()) == null) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiter = null;
+		}
+		return ev;
+	}
+
+	/**
+	 * Remove the events in the queue, up to a max number
+	 * 
+	 * @param target collection where to add the events
+	 * @param max
+	 * @return the number of events removed
+	 */
+	public int drainTo(Collection<? super CartagoEvent> target, int max) {
+		int n = 0;
+		CartagoEvent ev;
+		while (n < max && (ev = poll()) != null) {
+			target.add(ev);
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+/**
+ * Configuration of the sessions of remote agents served by a WorkspaceService.
+ *
+ */
+public class RemoteSessionConfig {
+
+	private int maxBatchEvents = 64;
+	private long maxBatchDelay = 2;
+	private int maxPendingEvents = 10000;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private boolean sharedEncoding = true;
+	private int maxReplayEvents = 1024;
+	private long resumeTimeout = 30000;
+	private long heartbeatInterval = 10000;
+	private long idleTimeout = 30000;
+	private DispatchStrategy dispatchStrategy = VirtualThreads.isEnabled() ? DispatchStrategy.VIRTUAL : DispatchStrategy.PER_SESSION;
+	private int dispatchThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Max number of events sent in a single frame
+	 *
+	 * @return
+	 */
+	public int getMaxBatchEvents() {
+		return maxBatchEvents;
+	}
+
+	public RemoteSessionConfig setMaxBatchEvents(int maxBatchEvents) {
+		this.maxBatchEvents = Math.max(1, maxBatchEvents);
+		return this;
+	}
+
+	/**
+	 * Max time (ms) an event can wait to be batched with the next ones.
+	 *
+	 * An event produced after a quiet period longer than this delay
+	 * is sent immediately.
+	 *
+	 * @return
+	 */
+	public long getMaxBatchDelay() {
+		return maxBatchDelay;
+	}
+
+	public RemoteSessionConfig setMaxBatchDelay(long maxBatchDelay) {
+		this.maxBatchDelay = Math.max(1, maxBatchDelay);
+		return this;
+	}
+
+	/**
+	 * Max number of events waiting to be sent to an agent
+	 * before applying the overflow policy
+	 *
+	 * @return
+	 */
+	public int getMaxPendingEvents() {
+		return maxPendingEvents;
+	}
+
+	public RemoteSessionConfig setMaxPendingEvents(int maxPendingEvents) {
+		this.maxPendingEvents = Math.max(1, maxPendingEvents);
+		return this;
+	}
+
+	/**
+	 * Policy applied when an agent does not keep up with its events,
+	 * BLOCK by default: no event is lost
+	 *
+	 * @return
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public RemoteSessionConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	/**
+	 * Whether the signals and properties sent to many sessions
+	 * are encoded once and shared
+	 *
+	 * @return
+	 */
+	public boolean isSharedEncoding() {
+		return sharedEncoding;
+	}
+
+	public RemoteSessionConfig setSharedEncoding(boolean sharedEncoding) {
+		this.sharedEncoding = sharedEncoding;
+		return this;
+	}
+
+	/**
+	 * Max number of sent events kept to be replayed to an agent
+	 * resuming its session after a dropped connection.
+	 *
+	 * Events acknowledged by the agent are not kept.
+	 *
+	 * @return
+	 */
+	public int getMaxReplayEvents() {
+		return maxReplayEvents;
+	}
+
+	public RemoteSessionConfig setMaxReplayEvents(int maxReplayEvents) {
+		this.maxReplayEvents = Math.max(0, maxReplayEvents);
+		return this;
+	}
+
+	/**
+	 * Time (ms) a session waits for its agent to connect, or to resume
+	 * it after the connection dropped, before the agent quits the
+	 * workspace and the session is closed
+	 *
+	 * @return
+	 */
+	public long getResumeTimeout() {
+		return resumeTimeout;
+	}
+
+	public RemoteSessionConfig setResumeTimeout(long resumeTimeout) {
+		this.resumeTimeout = Math.max(0, resumeTimeout);
+		return this;
+	}
+
+	/**
+	 * Time (ms) a connection can be idle before it is pinged
+	 *
+	 * @return
+	 */
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	public RemoteSessionConfig setHeartbeatInterval(long heartbeatInterval) {
+		this.heartbeatInterval = Math.max(1, heartbeatInterval);
+		return this;
+	}
+
+	/**
+	 * Time (ms) a connection can be idle, pings not answered, before
+	 * it is considered dead and closed; 0 for no limit
+	 *
+	 * @return
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public RemoteSessionConfig setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = Math.max(0, idleTimeout);
+		return this;
+	}
+
+	/**
+	 * Where the actions and the joins of remote agents are executed.
+	 *
+	 * Set before the service starts, later changes are ignored.
+	 *
+	 * @return
+	 */
+	public DispatchStrategy getDispatchStrategy() {
+		return dispatchStrategy;
+	}
+
+	public RemoteSessionConfig setDispatchStrategy(DispatchStrategy dispatchStrategy) {
+		this.dispatchStrategy = dispatchStrategy;
+		return this;
+	}
+
+	/**
+	 * Number of threads executing the requests of remote agents,
+	 * if not executed inline or on virtual threads
+	 *
+	 * @return
+	 */
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+
+	public RemoteSessionConfig setDispatchThreads(int dispatchThreads) {
+		this.dispatchThreads = Math.max(1, dispatchThreads);
+		return this;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the sessions of the remote agents served by a WorkspaceService.
+ *
+ * A session is JOINED when its agent joins the workspace, CONNECTED while
+ * a connection is attached to it - back to JOINED if the connection drops,
+ * waiting to be resumed - and QUITTING when its agent quits, asks to quit
+ * or its connection is not resumed in time. Once the body has left the
+ * workspace the session is CLOSED: it is removed from the registry and
+ * its resources released.
+ *
+ */
+class RemoteSessions {
+
+	enum State { JOINED, CONNECTED, QUITTING, CLOSED }
+
+	private final ConcurrentHashMap<String, AgentBodyRemote> sessions;
+	private final AtomicLong closed;
+
+	RemoteSessions() {
+		sessions = new ConcurrentHashMap<String, AgentBodyRemote>();
+		closed = new AtomicLong();
+	}
+
+	/**
+	 * Add the session of an agent that joined the workspace
+	 *
+	 * @param sessionId
+	 * @param rbody
+	 */
+	void add(String sessionId, AgentBodyRemote rbody) {
+		sessions.put(sessionId, rbody);
+	}
+
+	AgentBodyRemote get(String sessionId) {
+		return sessionId != null ? sessions.get(sessionId) : null;
+	}
+
+	/* the session has been closed */
+	void remove(String sessionId) {
+		if (sessionId != null && sessions.remove(sessionId) != null) {
+			closed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Number of sessions not closed yet
+	 */
+	int getLiveCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Number of sessions with a connection attached
+	 */
+	int getConnectedCount() {
+		int n = 0;
+		for (AgentBodyRemote rbody: sessions.values()) {
+			if (rbody.getState() == State.CONNECTED) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Number of sessions closed since the service started
+	 */
+	long getClosedCount() {
+		return closed.get();
+	}
+}
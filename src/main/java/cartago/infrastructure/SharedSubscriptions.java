@@ -0,0 +1,413 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cartago.*;
+import cartago.events.*;
+
+/**
+ * Focus on remote artifacts shared by the agents of this node.
+ * 
+ * The first agent focusing an artifact of a workspace makes a session of
+ * the infrastructure layer, the subscriber, focus it on behalf of all the
+ * local agents: the observations are then received and decoded once and
+ * delivered to every local agent focusing the artifact. Further focus and
+ * stop focus actions on the artifact are completed locally, using the last
+ * known observable properties. The subscriber stops its focus when the
+ * last local agent does.
+ * 
+ * Only plain focus actions are shared, i.e. with no event filter. Signals
+ * sent by the artifact to specific agents are not delivered to the agents
+ * of a shared focus, since the workspace sees the subscriber only.
+ * 
+ * No lock is held while joining, sending the actions of the subscriber or
+ * delivering the events to the local agents: they are queued in order under
+ * the lock and run by one thread at a time once the lock is released.
+ *
+ */
+class SharedSubscriptions implements ICartagoCallback {
+
+	static final String SUBSCRIBER = "shared-subscriptions";
+
+	private final CartagoInfrastructureLayerImpl layer;
+	private final WorkspaceId wspId;
+	/* session of the subscriber, joined with the first focus */
+	private volatile AgentBodyProxy upstream;
+	private final Object joinLock;
+	private boolean closed;
+	/* actions of the subscriber and deliveries to the local agents, in order */
+	private final ArrayDeque<Runnable> tasks;
+	private boolean running;
+	private final HashMap<ArtifactId, Subscription> byArtifact;
+	/* subscriptions waiting for the result of the upstream focus */
+	private final HashMap<Long, Subscription> byAction;
+	private final AtomicLong actionIds;
+	private final AtomicLong eventIds;
+
+	SharedSubscriptions(CartagoInfrastructureLayerImpl layer, WorkspaceId wspId) {
+		this.layer = layer;
+		this.wspId = wspId;
+		byArtifact = new HashMap<ArtifactId, Subscription>();
+		byAction = new HashMap<Long, Subscription>();
+		joinLock = new Object();
+		tasks = new ArrayDeque<Runnable>();
+		actionIds = new AtomicLong();
+		eventIds = new AtomicLong();
+	}
+
+	/**
+	 * Focus action of a local agent
+	 * 
+	 * @param proxy context of the agent
+	 * @param actionId action id of the agent
+	 * @param op focus operation
+	 * @param target focused artifact
+	 * @throws CartagoException
+	 */
+	void focus(AgentBodyProxy proxy, long actionId, Op op, ArtifactId target) throws CartagoException {
+		AgentBodyProxy upstream = upstream();
+		synchronized (this) {
+			Subscription sub = byArtifact.get(target);
+			PendingFocus focus = new PendingFocus(proxy, actionId, op);
+			if (sub == null) {
+				sub = new Subscription(target);
+				long id = actionIds.incrementAndGet();
+				byArtifact.put(target, sub);
+				byAction.put(id, sub);
+				sub.waiting.add(focus);
+				Subscription created = sub;
+				tasks.add(() -> upstreamFocus(upstream, id, created));
+			} else if (sub.waiting != null) {
+				sub.waiting.add(focus);
+			} else {
+				follow(sub, focus);
+			}
+		}
+		runTasks();
+	}
+
+	private void upstreamFocus(AgentBodyProxy upstream, long id, Subscription sub) {
+		try {
+			upstream.doAction(id, new Op("focus", sub.target), null, -1);
+		} catch (CartagoException ex) {
+			synchronized (this) {
+				if (byAction.remove(id) != null) {
+					byArtifact.remove(sub.target);
+					for (PendingFocus focus: sub.waiting) {
+						deliver(focus.proxy, new ActionFailedEvent(eventIds.incrementAndGet(), focus.actionId, focus.op,
+								ex.getMessage(), new Tuple("focus_failed"), System.currentTimeMillis()));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop focus action of a local agent
+	 * 
+	 * @return false if the agent is not focusing the artifact through the subscriber
+	 * @throws CartagoException
+	 */
+	boolean stopFocus(AgentBodyProxy proxy, long actionId, Op op, ArtifactId target) throws CartagoException {
+		synchronized (this) {
+			Subscription sub = byArtifact.get(target);
+			if (sub == null || !sub.followers.remove(proxy)) {
+				return false;
+			}
+			deliver(proxy, new StopFocusSucceededEvent(eventIds.incrementAndGet(), actionId, op, sub.wspArtifact, target,
+					new ArrayList<ArtifactObsProperty>(sub.props.values()), System.currentTimeMillis()));
+			if (sub.followers.isEmpty()) {
+				release(sub);
+			}
+		}
+		runTasks();
+		return true;
+	}
+
+	/**
+	 * A local agent quits the workspace
+	 * 
+	 * @param proxy
+	 */
+	void leave(AgentBodyProxy proxy) {
+		synchronized (this) {
+			for (Subscription sub: new ArrayList<Subscription>(byArtifact.values())) {
+				sub.followers.remove(proxy);
+				if (sub.waiting != null) {
+					Iterator<PendingFocus> it = sub.waiting.iterator();
+					while (it.hasNext()) {
+						if (it.next().proxy == proxy) {
+							it.remove();
+						}
+					}
+				} else if (sub.followers.isEmpty()) {
+					release(sub);
+				}
+			}
+		}
+		runTasks();
+	}
+
+	/**
+	 * Whether some local agent does not keep up with the shared observations:
+	 * the subscriber stops granting credits to the workspace until it does.
+	 */
+	synchronized boolean isBacklogged() {
+		for (Subscription sub: byArtifact.values()) {
+			for (AgentBodyProxy proxy: sub.followers) {
+				if (proxy.isBacklogged()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	void perceptsDrained() {
+		AgentBodyProxy upstream;
+		synchronized (this) {
+			upstream = this.upstream;
+		}
+		if (upstream != null && !isBacklogged()) {
+			upstream.perceptsDrained();
+		}
+	}
+
+	/**
+	 * Events received by the subscriber
+	 */
+	@Override
+	public void notifyCartagoEvent(CartagoEvent ev) {
+		synchronized (this) {
+			received(ev);
+		}
+		runTasks();
+	}
+
+	private void received(CartagoEvent ev) {
+		if (ev instanceof FocusSucceededEvent) {
+			FocusSucceededEvent focusEv = (FocusSucceededEvent) ev;
+			Subscription sub = byAction.remove(focusEv.getActionId());
+			if (sub != null) {
+				sub.wspArtifact = focusEv.getArtifactId();
+				if (focusEv.getObsProperties() != null) {
+					for (ArtifactObsProperty prop: focusEv.getObsProperties()) {
+						sub.props.put(prop.getFullId(), prop);
+					}
+				}
+				List<PendingFocus> waiting = sub.waiting;
+				sub.waiting = null;
+				for (PendingFocus focus: waiting) {
+					follow(sub, focus);
+				}
+				/* all the agents have quit meanwhile */
+				if (sub.followers.isEmpty()) {
+					release(sub);
+				}
+			}
+		} else if (ev instanceof ActionFailedEvent) {
+			ActionFailedEvent failEv = (ActionFailedEvent) ev;
+			Subscription sub = byAction.remove(failEv.getActionId());
+			if (sub != null) {
+				byArtifact.remove(sub.target);
+				for (PendingFocus focus: sub.waiting) {
+					deliver(focus.proxy, new ActionFailedEvent(eventIds.incrementAndGet(), focus.actionId, focus.op,
+							failEv.getFailureMsg(), failEv.getFailureDescr(), ev.getTimestamp()));
+				}
+			}
+		} else if (ev instanceof FocussedArtifactDisposedEvent) {
+			Subscription sub = byArtifact.get(((FocussedArtifactDisposedEvent) ev).getArtifactId());
+			if (sub != null && sub.waiting == null) {
+				byArtifact.remove(sub.target);
+				for (AgentBodyProxy proxy: sub.followers) {
+					deliver(proxy, ev);
+				}
+			}
+		} else if (ev instanceof ArtifactObsEvent) {
+			ArtifactObsEvent obsEv = (ArtifactObsEvent) ev;
+			Subscription sub = byArtifact.get(obsEv.getArtifactId());
+			/* events of a previous focus still in flight are dropped */
+			if (sub != null && sub.waiting == null) {
+				sub.update(obsEv);
+				for (AgentBodyProxy proxy: sub.followers) {
+					deliver(proxy, ev);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Quit the session of the subscriber
+	 */
+	void close() {
+		AgentBodyProxy upstream;
+		synchronized (joinLock) {
+			synchronized (this) {
+				closed = true;
+				upstream = this.upstream;
+				this.upstream = null;
+				byArtifact.clear();
+				byAction.clear();
+				tasks.clear();
+			}
+		}
+		if (upstream != null) {
+			try {
+				upstream.quit();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	/* the subscriber joins the workspace holding the join lock only, not the lock of the subscriptions */
+	private AgentBodyProxy upstream() throws CartagoException {
+		AgentBodyProxy current = upstream;
+		if (current != null) {
+			return current;
+		}
+		synchronized (joinLock) {
+			if (upstream == null) {
+				if (closed) {
+					throw new CartagoException("Join " + wspId + " failed: subscriptions closed");
+				}
+				try {
+					String sid = layer.requestToJoinWorkspace(((InfrastructureWspId) wspId).getURI(), new AgentIdCredential(SUBSCRIBER));
+					upstream = layer.connect(wspId, sid, this);
+				} catch (CartagoInfrastructureLayerException ex) {
+					ex.printStackTrace();
+					throw new CartagoException("Join " + wspId + " failed ");
+				}
+			}
+			return upstream;
+		}
+	}
+
+	private void follow(Subscription sub, PendingFocus focus) {
+		if (!sub.followers.contains(focus.proxy)) {
+			sub.followers.add(focus.proxy);
+		}
+		deliver(focus.proxy, new FocusSucceededEvent(eventIds.incrementAndGet(), focus.actionId, focus.op, sub.wspArtifact, sub.target,
+				new ArrayList<ArtifactObsProperty>(sub.props.values()), System.currentTimeMillis()));
+	}
+
+	private void release(Subscription sub) {
+		byArtifact.remove(sub.target);
+		AgentBodyProxy upstream = this.upstream;
+		if (upstream == null) {
+			return;
+		}
+		long id = actionIds.incrementAndGet();
+		tasks.add(() -> {
+			try {
+				upstream.doAction(id, new Op("stopFocus", sub.target), null, -1);
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		});
+	}
+
+	/* queue the delivery of an event to a local agent, holding the lock */
+	private void deliver(AgentBodyProxy proxy, CartagoEvent ev) {
+		tasks.add(() -> proxy.deliver(ev));
+	}
+
+	/* run the queued tasks in order, not holding the lock */
+	private void runTasks() {
+		synchronized (this) {
+			if (running) {
+				/* run by the thread already running them */
+				return;
+			}
+			running = true;
+		}
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				task = tasks.poll();
+				if (task == null) {
+					running = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	static class PendingFocus {
+
+		final AgentBodyProxy proxy;
+		final long actionId;
+		final Op op;
+
+		PendingFocus(AgentBodyProxy proxy, long actionId, Op op) {
+			this.proxy = proxy;
+			this.actionId = actionId;
+			this.op = op;
+		}
+	}
+
+	static class Subscription {
+
+		final ArtifactId target;
+		/* artifact that executed the upstream focus */
+		ArtifactId wspArtifact;
+		/* last known observable properties, by full id */
+		final LinkedHashMap<String, ArtifactObsProperty> props;
+		final ArrayList<AgentBodyProxy> followers;
+		/* focus actions waiting for the upstream focus, null once done */
+		ArrayList<PendingFocus> waiting;
+
+		Subscription(ArtifactId target) {
+			this.target = target;
+			props = new LinkedHashMap<String, ArtifactObsProperty>();
+			followers = new ArrayList<AgentBodyProxy>();
+			waiting = new ArrayList<PendingFocus>();
+		}
+
+		void update(ArtifactObsEvent ev) {
+			put(ev.getChangedProperties());
+			put(ev.getAddedProperties());
+			if (ev.getRemovedProperties() != null) {
+				for (ArtifactObsProperty prop: ev.getRemovedProperties()) {
+					props.remove(prop.getFullId());
+				}
+			}
+		}
+
+		private void put(ArtifactObsProperty[] list) {
+			if (list != null) {
+				for (ArtifactObsProperty prop: list) {
+					props.put(prop.getFullId(), prop);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayList;
+
+import io.vertx.core.Vertx;
+
+/**
+ * Hashed timer wheel, for the many timeouts of the sessions.
+ *
+ * Time is split in ticks and each timeout is kept in the slot of the
+ * tick it expires in, so scheduling and cancelling cost the same
+ * whatever the number of timeouts and a single periodic timer drives
+ * them all. Timeouts expire up to a tick later than their delay.
+ *
+ */
+class TimerWheel {
+
+	private final long tick;
+	private final Timeout[] slots;
+	private final int mask;
+	private final long start;
+	/* last tick processed */
+	private long current;
+	private long periodic = -1;
+
+	/**
+	 *
+	 * @param tick duration of a tick (ms)
+	 * @param size number of slots, rounded up to a power of 2
+	 */
+	TimerWheel(long tick, int size) {
+		this.tick = Math.max(1, tick);
+		int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		slots = new Timeout[n];
+		mask = n - 1;
+		start = System.currentTimeMillis();
+	}
+
+	/**
+	 * Start advancing the wheel with a periodic timer of the vertx instance
+	 *
+	 * @param vertx
+	 */
+	synchronized void start(Vertx vertx) {
+		if (periodic == -1) {
+			periodic = vertx.setPeriodic(tick, id -> advance(System.currentTimeMillis()));
+		}
+	}
+
+	synchronized void stop(Vertx vertx) {
+		if (periodic != -1) {
+			vertx.cancelTimer(periodic);
+			periodic = -1;
+		}
+	}
+
+	/**
+	 * Schedule a task
+	 *
+	 * @param delay delay (ms)
+	 * @param task task, executed by the thread advancing the wheel
+	 * @return the timeout, to cancel it
+	 */
+	synchronized Timeout schedule(long delay, Runnable task) {
+		long deadline = (System.currentTimeMillis() - start + Math.max(0, delay) + tick - 1) / tick;
+		Timeout timeout = new Timeout(this, task, Math.max(deadline, current + 1));
+		int slot = (int) (timeout.deadline & mask);
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		return timeout;
+	}
+
+	/**
+	 * Run the tasks expired up to a time
+	 *
+	 * @param now
+	 */
+	void advance(long now) {
+		ArrayList<Runnable> expired = new ArrayList<Runnable>();
+		synchronized (this) {
+			long target = (now - start) / tick;
+			/* after a long pause each slot is visited once */
+			long from = Math.max(current + 1, target - mask);
+			for (long t = from; t <= target; t++) {
+				Timeout timeout = slots[(int) (t & mask)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadline <= target) {
+						unlink(timeout);
+						expired.add(timeout.task);
+					}
+					timeout = next;
+				}
+			}
+			current = Math.max(current, target);
+		}
+		for (Runnable task: expired) {
+			try {
+				task.run();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		int slot = (int) (timeout.deadline & mask);
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else if (slots[slot] == timeout) {
+			slots[slot] = timeout.next;
+		} else {
+			/* already expired or cancelled */
+			return;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+	}
+
+	static class Timeout {
+
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private Timeout prev;
+		private Timeout next;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		void cancel() {
+			synchronized (wheel) {
+				wheel.unlink(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+
+/**
+ * Vert.x runtime shared by the infrastructure layers and the
+ * workspace services of the process.
+ *
+ * It is created on first use: the settings must be defined before,
+ * e.g. by the launcher of the workspace.
+ *
+ */
+public final class VertxRuntime {
+
+	static private int eventLoops = VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE;
+	static private int workerPoolSize = VertxOptions.DEFAULT_WORKER_POOL_SIZE;
+	static private boolean preferNativeTransport = false;
+	static private int serviceInstances = Runtime.getRuntime().availableProcessors();
+
+	static private Vertx vertx;
+
+	private VertxRuntime() {
+	}
+
+	/**
+	 * The shared runtime, created if needed
+	 *
+	 * @return
+	 */
+	static public synchronized Vertx get() {
+		if (vertx == null) {
+			vertx = Vertx.vertx(new VertxOptions()
+					.setEventLoopPoolSize(eventLoops)
+					.setWorkerPoolSize(workerPoolSize)
+					.setPreferNativeTransport(preferNativeTransport)
+					.setBlockedThreadCheckInterval(10000));
+			if (preferNativeTransport && !vertx.isNativeTransportEnabled()) {
+				log("Native transport not available, using NIO.");
+			}
+		}
+		return vertx;
+	}
+
+	static public synchronized boolean isStarted() {
+		return vertx != null;
+	}
+
+	/**
+	 * Number of event loops
+	 *
+	 * @param n
+	 */
+	static public synchronized void setEventLoops(int n) {
+		checkNotStarted();
+		eventLoops = Math.max(1, n);
+	}
+
+	static public synchronized int getEventLoops() {
+		return eventLoops;
+	}
+
+	/**
+	 * Number of threads executing blocking code on behalf of the event loops
+	 *
+	 * @param n
+	 */
+	static public synchronized void setWorkerPoolSize(int n) {
+		checkNotStarted();
+		workerPoolSize = Math.max(1, n);
+	}
+
+	static public synchronized int getWorkerPoolSize() {
+		return workerPoolSize;
+	}
+
+	/**
+	 * Use the native transport (epoll, kqueue) if available on the platform
+	 *
+	 * @param prefer
+	 */
+	static public synchronized void setPreferNativeTransport(boolean prefer) {
+		checkNotStarted();
+		preferNativeTransport = prefer;
+	}
+
+	static public synchronized boolean isPreferNativeTransport() {
+		return preferNativeTransport;
+	}
+
+	/**
+	 * Number of instances of a workspace service sharing its port,
+	 * each one serving its connections on its own event loop
+	 *
+	 * @param n
+	 */
+	static public synchronized void setServiceInstances(int n) {
+		serviceInstances = Math.max(1, n);
+	}
+
+	static public synchronized int getServiceInstances() {
+		return serviceInstances;
+	}
+
+	static private void checkNotStarted() {
+		if (vertx != null) {
+			throw new IllegalStateException("Vert.x runtime already started");
+		}
+	}
+
+	static private void log(String msg) {
+		System.out.println("[VertxRuntime] " + msg);
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used by the infrastructure to execute blocking tasks:
+ * virtual threads when enabled and supported by the runtime (Java 21),
+ * platform daemon threads otherwise.
+ *
+ * Virtual threads are enabled by the java21 build profile, or by the
+ * cartago.virtualThreads system property.
+ *
+ */
+public final class VirtualThreads {
+
+	static public final String PROPERTY = "cartago.virtualThreads";
+
+	/* Thread.ofVirtual(), null if not supported */
+	static private final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+	static private final boolean ENABLED = OF_VIRTUAL != null && Boolean.parseBoolean(System.getProperty(PROPERTY, buildSetting()));
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Whether the runtime supports virtual threads
+	 *
+	 * @return
+	 */
+	static public boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Whether the blocking tasks are executed on virtual threads
+	 *
+	 * @return
+	 */
+	static public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * Factory of threads for blocking tasks
+	 *
+	 * @param prefix name of the threads
+	 * @return
+	 */
+	static public ThreadFactory factory(String prefix) {
+		if (ENABLED) {
+			return virtualFactory(prefix);
+		}
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * Executor starting a new virtual thread for each task
+	 *
+	 * @param prefix name of the threads
+	 * @return null if virtual threads are not supported
+	 */
+	static public ExecutorService newThreadPerTaskExecutor(String prefix) {
+		if (OF_VIRTUAL == null) {
+			return null;
+		}
+		try {
+			Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) m.invoke(null, virtualFactory(prefix));
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Start a thread executing a blocking task
+	 *
+	 * @param name
+	 * @param task
+	 * @return
+	 */
+	static public Thread start(String name, Runnable task) {
+		Thread t = factory(name).newThread(task);
+		t.start();
+		return t;
+	}
+
+	static private ThreadFactory virtualFactory(String prefix) {
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	static private Method lookup(Class<?> c, String name) {
+		try {
+			return c.getMethod(name);
+		} catch (NoSuchMethodException ex) {
+			return null;
+		}
+	}
+
+	/* value set by the build profile */
+	static private String buildSetting() {
+		try (InputStream in = VirtualThreads.class.getResourceAsStream("/cartago-infra.properties")) {
+			if (in != null) {
+				Properties props = new Properties();
+				props.load(in);
+				return props.getProperty("virtual-threads", "false");
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+		return "false";
+	}
+}
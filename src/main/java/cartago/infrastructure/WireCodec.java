@@ -0,0 +1,179 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.WebSocketBase;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Codec used to put on the wire the frames exchanged between
+ * AgentBodyProxy and AgentBodyRemote.
+ *
+ * The codec is agreed during the join handshake: the client lists
+ * the codecs it supports, the service picks the first one it knows.
+ * Peers that do not take part in the negotiation keep using JSON.
+ *
+ * Decoding does not depend on the negotiated codec: binary frames
+ * are recognised by their first byte, so a peer can always read
+ * what the other side sends.
+ *
+ */
+public abstract class WireCodec {
+
+	static public final WireCodec JSON = new JsonWireCodec();
+	static public final WireCodec BINARY = new BinaryWireCodec();
+
+	/* codecs offered by this peer, in order of preference */
+	static private final WireCodec[] SUPPORTED = { BINARY, JSON };
+
+	/**
+	 * Name used to identify the codec in the handshake
+	 *
+	 * @return
+	 */
+	public abstract String getName();
+
+	/**
+	 * Encode a frame
+	 *
+	 * @param frame
+	 * @return
+	 */
+	public abstract Buffer encode(JsonObject frame);
+
+	/**
+	 * Encode a frame and write it on the websocket
+	 *
+	 * @param ws
+	 * @param frame
+	 */
+	public abstract void write(WebSocketBase ws, JsonObject frame);
+
+	/**
+	 * Decode a frame, whatever codec has been used to encode it
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	static public JsonObject decode(Buffer buffer) {
+		if (BinaryWireCodec.isBinaryFrame(buffer)) {
+			return BinaryWireCodec.decodeFrame(buffer);
+		} else {
+			return buffer.toJsonObject();
+		}
+	}
+
+	/**
+	 * Codecs to be offered in the handshake
+	 *
+	 * @return
+	 */
+	static public JsonArray supportedCodecs() {
+		JsonArray list = new JsonArray();
+		for (WireCodec c: SUPPORTED) {
+			list.add(c.getName());
+		}
+		return list;
+	}
+
+	/**
+	 * Select the codec to be used given the ones offered by the peer.
+	 *
+	 * @param offered list of codec names, null for old peers
+	 * @return
+	 */
+	static public WireCodec negotiate(JsonArray offered) {
+		if (offered != null) {
+			for (int i = 0; i < offered.size(); i++) {
+				WireCodec codec = forName(offered.getString(i));
+				if (codec != null) {
+					return codec;
+				}
+			}
+		}
+		return JSON;
+	}
+
+	/**
+	 * Get a codec by name
+	 *
+	 * @param name
+	 * @return the codec or null if it is unknown
+	 */
+	static public WireCodec forName(String name) {
+		for (WireCodec c: SUPPORTED) {
+			if (c.getName().equals(name)) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	public String toString() {
+		return getName();
+	}
+
+	//
+
+	static class JsonWireCodec extends WireCodec {
+
+		/* the mapper of vert.x, also writing the encoded values as they are */
+		static private final ObjectMapper mapper = Json.mapper.copy();
+		static {
+			SimpleModule module = new SimpleModule();
+			module.addSerializer(EncodedValue.class, new JsonSerializer<EncodedValue>() {
+				public void serialize(EncodedValue value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+					gen.writeRawValue(value.json());
+				}
+			});
+			mapper.registerModule(module);
+		}
+
+		public String getName() {
+			return "json";
+		}
+
+		public Buffer encode(JsonObject frame) {
+			return Buffer.buffer(encodeToString(frame));
+		}
+
+		public void write(WebSocketBase ws, JsonObject frame) {
+			ws.writeTextMessage(encodeToString(frame));
+		}
+
+		private String encodeToString(JsonObject frame) {
+			try {
+				return mapper.writeValueAsString(frame);
+			} catch (Exception ex) {
+				throw new EncodeException("Failed to encode frame: " + ex.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.Function;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Dictionary used to compress the values that are repeated in the frames
+ * of a connection (identifiers, operation and property names, class names).
+ *
+ * There is one dictionary for each direction of a connection: the sender
+ * assigns the indexes, the receiver records the entries as they are
+ * defined. The first occurrence of a value is sent as a definition
+ * <code>{"@": index, "v": value}</code>, the next ones as the bare index.
+ * Since frames are delivered in order, both sides agree on the content
+ * without further synchronization; frames of a connection must be
+ * encoded in the same order as they are written.
+ *
+ * When the dictionary is full values are sent in full. Definitions
+ * out of order or beyond the size of the dictionary, and references to
+ * undefined entries, are refused with an IllegalArgumentException.
+ *
+ */
+public class WireDictionary {
+
+	static final int DEFAULT_MAX_ENTRIES = 4096;
+
+	static private final String INDEX = "@";
+	static private final String VALUE = "v";
+
+	private final int maxEntries;
+
+	/* sender side */
+	private final HashMap<Object, Integer> refs;
+
+	/* receiver side */
+	private final ArrayList<Object> entries;
+
+	public WireDictionary() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public WireDictionary(int maxEntries) {
+		this.maxEntries = maxEntries;
+		refs = new HashMap<Object, Integer>();
+		entries = new ArrayList<Object>();
+	}
+
+	/**
+	 * Encode a value
+	 *
+	 * @param key value to be encoded, used as dictionary key
+	 * @param encoder function to fully encode the value, used on the first occurrence only
+	 * @return wire representation
+	 */
+	public <T> Object encode(T key, Function<T, Object> encoder) {
+		Integer index = refs.get(key);
+		if (index != null) {
+			return index;
+		} else if (refs.size() < maxEntries) {
+			index = refs.size();
+			refs.put(key, index);
+			JsonObject def = new JsonObject();
+			def.put(INDEX, index);
+			def.put(VALUE, encoder.apply(key));
+			return def;
+		} else {
+			return encoder.apply(key);
+		}
+	}
+
+	public Object encodeString(String s) {
+		return s == null ? null : encode(s, Function.identity());
+	}
+
+	/**
+	 * Decode a value
+	 *
+	 * @param wire wire representation
+	 * @param decoder function to decode full values
+	 * @return
+	 * @throws E
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T decode(Object wire, Decoder<T, E> decoder) throws E {
+		if (wire instanceof Number) {
+			long index = ((Number) wire).longValue();
+			if (index < 0 || index >= entries.size()) {
+				throw new IllegalArgumentException("Undefined dictionary index " + index);
+			}
+			return (T) entries.get((int) index);
+		} else if (wire instanceof JsonObject && ((JsonObject) wire).containsKey(INDEX)) {
+			JsonObject def = (JsonObject) wire;
+			/* the sender assigns the indexes in order, up to the size of the dictionary */
+			Object index = def.getValue(INDEX);
+			if (!(index instanceof Number) || ((Number) index).longValue() != entries.size() || entries.size() >= maxEntries) {
+				throw new IllegalArgumentException("Bad dictionary definition " + index);
+			}
+			T value = decoder.decode(def.getValue(VALUE));
+			entries.add(value);
+			return value;
+		} else if (wire == null) {
+			return null;
+		} else {
+			return decoder.decode(wire);
+		}
+	}
+
+	public String decodeString(Object wire) {
+		return decode(wire, v -> (String) v);
+	}
+
+	/**
+	 * Decoder of full values
+	 */
+	public interface Decoder<T, E extends Exception> {
+		T decode(Object wire) throws E;
+	}
+}
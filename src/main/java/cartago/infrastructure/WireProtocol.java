@@ -0,0 +1,148 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Wire protocol agreed by the two sides of an agent connection
+ * during the join handshake: the codec and the optional features.
+ *
+ * The client offers what it supports, the service keeps what it
+ * supports too and reports the result in the reply. Features that
+ * have not been agreed are not used, so old peers keep working.
+ *
+ */
+public class WireProtocol {
+
+	/* parameter values stored inline as JSON trees, not as JSON strings */
+	static public final String INLINE = "inline";
+
+	/* per-connection dictionary of identifiers and names */
+	static public final String DICTIONARY = "dict";
+
+	/* changed observable properties sent as deltas */
+	static public final String DELTA = "delta";
+
+	/* events sent in batches */
+	static public final String BATCH = "batch";
+
+	/* conflation of observable property updates */
+	static public final String CONFLATION = "conflate";
+
+	/* credit based flow control of the events */
+	static public final String CREDIT = "credit";
+
+	/* percept filters evaluated by the workspace */
+	static public final String FILTER = "filter";
+
+	/* sessions resumed after a dropped connection, replaying the events missed */
+	static public final String RESUME = "resume";
+
+	/* connections pinged by the service, empty frames ignored */
+	static public final String HEARTBEAT = "ping";
+
+	/* features supported by this peer */
+	static private final String[] FEATURES = { INLINE, DICTIONARY, DELTA, BATCH, CONFLATION, CREDIT, FILTER, RESUME, HEARTBEAT };
+
+	static public final WireProtocol LEGACY = new WireProtocol(WireCodec.JSON, Collections.<String>emptySet());
+
+	private final WireCodec codec;
+	private final Set<String> features;
+
+	private WireProtocol(WireCodec codec, Set<String> features) {
+		this.codec = codec;
+		this.features = features;
+	}
+
+	public WireCodec getCodec() {
+		return codec;
+	}
+
+	public boolean has(String feature) {
+		return features.contains(feature);
+	}
+
+	/**
+	 * Add the offer of this peer to the handshake request
+	 *
+	 * @param req
+	 */
+	static public void offer(JsonObject req) {
+		req.put("codecs", WireCodec.supportedCodecs());
+		JsonArray list = new JsonArray();
+		for (String f: FEATURES) {
+			list.add(f);
+		}
+		req.put("features", list);
+	}
+
+	/**
+	 * Service side: select the protocol given the offer of the client.
+	 *
+	 * @param req handshake request
+	 * @return
+	 */
+	static public WireProtocol negotiate(JsonObject req) {
+		WireCodec codec = WireCodec.negotiate(req.getJsonArray("codecs"));
+		return new WireProtocol(codec, select(req.getJsonArray("features")));
+	}
+
+	/**
+	 * Client side: protocol selected by the service
+	 *
+	 * @param reply handshake reply
+	 * @return
+	 */
+	static public WireProtocol accepted(JsonObject reply) {
+		/* services not aware of codecs and features do not specify them in the reply */
+		WireCodec codec = WireCodec.forName(reply.getString("codec"));
+		return new WireProtocol(codec != null ? codec : WireCodec.JSON, select(reply.getJsonArray("features")));
+	}
+
+	/**
+	 * Add the selected protocol to the handshake reply
+	 *
+	 * @param reply
+	 */
+	public void writeTo(JsonObject reply) {
+		reply.put("codec", codec.getName());
+		reply.put("features", new JsonArray(new java.util.ArrayList<Object>(features)));
+	}
+
+	static private Set<String> select(JsonArray offered) {
+		Set<String> selected = new HashSet<String>();
+		if (offered != null) {
+			for (String f: FEATURES) {
+				if (offered.contains(f)) {
+					selected.add(f);
+				}
+			}
+		}
+		return selected;
+	}
+
+	public String toString() {
+		return codec + " " + features;
+	}
+}
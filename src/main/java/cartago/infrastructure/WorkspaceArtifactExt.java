@@ -30,6 +30,9 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Artifact providing basic functionalities to manage the workspace, including
@@ -88,18 +91,28 @@ public class WorkspaceArtifactExt extends Artifact {
 			ProcessBuilder builder = new ProcessBuilder("java", "-cp", cp, "cartago.Workspace", "-name", wspName, "-port", ""+port );	
 			Process p = builder.start();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			boolean ok = false;
+			CompletableFuture<Boolean> ready = new CompletableFuture<Boolean>();
 			
-			long t0 = System.currentTimeMillis();
-			while (System.currentTimeMillis() - t0 < 100000) {
-				if (reader.ready()) {
-					var msg = reader.readLine();
-					if (msg.startsWith(cartago.infrastructure.CartagoDistributedEnvironment.READY_MSG)) {
-						ok = true;
-						break;
+			/* the output of the workspace is read by a blocking thread, completing when it is ready */
+			VirtualThreads.start("cartago-linked-" + wspName, () -> {
+				try {
+					String msg;
+					while ((msg = reader.readLine()) != null) {
+						if (msg.startsWith(cartago.infrastructure.CartagoDistributedEnvironment.READY_MSG)) {
+							ready.complete(true);
+							return;
+						}
 					}
-				} 
-				Thread.sleep(100);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+				ready.complete(false);
+			});
+			
+			boolean ok = false;
+			try {
+				ok = ready.get(100000, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException ex) {
 			}
 			
 			if (ok) {
@@ -18,17 +18,22 @@
 package cartago.infrastructure;
 
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import cartago.*;
-import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
-import io.vertx.core.VertxOptions;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -40,39 +45,54 @@ import io.vertx.ext.web.handler.CorsHandler;
 
 /**
  * Class representing a CArtAgO node service, serving remote requests
+ * 
+ * The service is deployed as many verticles sharing its port, each one
+ * serving its connections on its own event loop: the state of the
+ * sessions is kept here and shared by them.
  *  
  * @author aricci
  *
  */
-public class WorkspaceService extends AbstractVerticle  {
+public class WorkspaceService  {
 
 	private String fullAddress;
 	private int port;
 		
-	private Router router;
-	private HttpServer server;
+	private Vertx vertx;
+	/* verticles serving the connections */
+	private final List<String> deployments = new CopyOnWriteArrayList<String>();
 		
 	private Logger logger = LoggerFactory.getLogger(WorkspaceService.class);
 	
 	private static final String API_BASE_PATH = "/cartago/api";
 
-	private ConcurrentHashMap<String, AgentBodyRemote> remoteCtxs;
-	// private GarbageBodyCollectorAgent garbageCollector;
+	private RemoteSessions remoteCtxs;
+	/* timeouts of the sessions: heartbeats and expiry of dropped sessions */
+	private TimerWheel timerWheel;
+	/* executes the requests of the remote agents */
+	private ActionDispatcher dispatcher;
 	private ConcurrentHashMap<String, AgentBody> pendingBodies;
 	private AtomicLong agentSessionId;
 
 	private AtomicBoolean isReady;
 	private AtomicBoolean initFailed;
+	/* completed when the server is listening, or failed */
+	private CompletableFuture<Boolean> started;
+	
+	private RemoteSessionConfig sessionConfig;
+	private EncodeCache encodeCache;
 	
 	
 	public WorkspaceService() throws Exception {
-		remoteCtxs = new ConcurrentHashMap<String, AgentBodyRemote>();	
-		// garbageCollector = new GarbageBodyCollectorAgent(remoteCtxs,1000,10000);
-		// garbageCollector.start();
+		remoteCtxs = new RemoteSessions();
+		timerWheel = new TimerWheel(100, 512);
 		pendingBodies = new  ConcurrentHashMap<String, AgentBody>();
 		agentSessionId = new AtomicLong(0);
 		isReady = new AtomicBoolean(false);
 		initFailed = new AtomicBoolean(false);
+		started = new CompletableFuture<Boolean>();
+		sessionConfig = new RemoteSessionConfig();
+		encodeCache = new EncodeCache(EncodeCache.DEFAULT_SIZE);
 	}	
 		
 	public void deploy(URI wsp) throws CartagoInfrastructureLayerException {
@@ -83,16 +103,71 @@ public class WorkspaceService extends AbstractVerticle  {
 		//
 		this.port = wsp.getPort();
 		
-		Vertx vertx = Vertx.vertx(new VertxOptions().setBlockedThreadCheckInterval(10000));
-		vertx.deployVerticle(this);
+		vertx = VertxRuntime.get();
+		timerWheel.start(vertx);
+		dispatcher = new ActionDispatcher(sessionConfig.getDispatchStrategy(), sessionConfig.getDispatchThreads());
+		
+		int instances = VertxRuntime.getServiceInstances();
+		if (port == 0) {
+			/* the port is bound by the first instance, then shared by the others */
+			WorkspaceServiceVerticle first = new WorkspaceServiceVerticle(this, 0);
+			vertx.deployVerticle(first, res -> {
+				if (res.failed()) {
+					failed(res.cause());
+				} else {
+					deployments.add(res.result());
+					port = first.getActualPort();
+					try {
+						var wspId = (InfrastructureWspId) CartagoDistributedEnvironment.getInstance().getWorkspace().getId();
+						URI newURI = URI.create("http://" + wspId.getURI().getHost() + ":" + port + "/" + wspId.getURI().getPath());
+						wspId.finalizeURI(newURI);
+					} catch (Exception ex) {
+						failed(ex);
+						return;
+					}
+					deployInstances(instances - 1, instances);
+				}
+			});
+		} else {
+			deployInstances(instances, instances);
+		}
 	}	
 
-	 
-	
-	@Override
-	public void start() {
-		
-		router = Router.router(vertx);
+	private void deployInstances(int n, int instances) {
+		if (n == 0) {
+			ready(instances);
+			return;
+		}
+		vertx.deployVerticle(() -> new WorkspaceServiceVerticle(this, port), new DeploymentOptions().setInstances(n), res -> {
+			if (res.failed()) {
+				failed(res.cause());
+			} else {
+				deployments.add(res.result());
+				ready(instances);
+			}
+		});
+	}
+
+	private void ready(int instances) {
+		log("Ready (" + instances + " instances).");
+		isReady.set(true);
+		started.complete(true);
+	}
+
+	private void failed(Throwable cause) {
+		log("Failed: " + cause);
+		initFailed.set(true);
+		started.complete(false);
+	}
+
+	/**
+	 * Create the server of a verticle of the service
+	 * 
+	 * @param vertx
+	 * @return
+	 */
+	HttpServer createServer(Vertx vertx) {
+		Router router = Router.router(vertx);
 		
 		router.route().handler(CorsHandler.create("*")
 				.allowedMethod(io.vertx.core.http.HttpMethod.GET)
@@ -109,34 +184,25 @@ public class WorkspaceService extends AbstractVerticle  {
 		router.route().handler(BodyHandler.create());
 		
 		router.get(API_BASE_PATH + "/version").handler(this::handleGetVersion);
+		router.post(API_BASE_PATH + "/quit").handler(this::handleQuitWSP);
 		 
-		server = vertx.createHttpServer()
+		return vertx.createHttpServer()
 		.requestHandler(router)
 		.websocketHandler(ws -> {
 			 if (ws.path().equals(API_BASE_PATH + "/request-to-join")) {
 				 this.handleRequestToJoinWSP(ws);
+			 } else if (ws.path().equals(API_BASE_PATH + "/bulk-request-to-join")) {
+				 this.handleBulkRequestToJoinWSP(ws);
 			 } else if (ws.path().equals(API_BASE_PATH + "/join")) {
 				 this.handleJoinWSP(ws);
+			 } else if (ws.path().equals(API_BASE_PATH + "/connect")) {
+				 this.handleConnectWSP(ws);
+			 } else if (ws.path().equals(API_BASE_PATH + "/mux")) {
+				 log("New shared connection from " + ws.remoteAddress());
+				 new MuxServerConnection(ws, this);
 			 }  else {
 				 ws.reject();
 			 }
-		})
-		.listen(port, result -> {
-			if (result.succeeded()) {
-				/* the port could have been defined dynamically */
-				
-				if (port == 0) {
-					port = server.actualPort();
-					var wspId = (InfrastructureWspId) CartagoDistributedEnvironment.getInstance().getWorkspace().getId();
-					URI newURI = URI.create("http://" + wspId.getURI().getHost() + ":" + port + "/" + wspId.getURI().getPath());
-					wspId.finalizeURI(newURI);
-				}
-				log("Ready.");
-				isReady.set(true);
-			} else {
-				log("Failed: "+result.cause());
-				initFailed.set(true);
-			}
 		});
 	}
 
@@ -147,6 +213,61 @@ public class WorkspaceService extends AbstractVerticle  {
 	public boolean isFailed() {
 		return initFailed.get();
 	}
+
+	/**
+	 * Wait for the service to be ready, parking the thread instead of polling
+	 * 
+	 * @param timeout (ms)
+	 * @return false if the service failed or is not ready in time
+	 */
+	public boolean awaitReady(long timeout) {
+		try {
+			return started.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Configuration used for the sessions of remote agents.
+	 * 
+	 * Changes affect the sessions connected afterwards.
+	 * 
+	 * @return
+	 */
+	public RemoteSessionConfig getSessionConfig() {
+		return sessionConfig;
+	}
+
+	public Vertx getVertx() {
+		return vertx;
+	}
+
+	TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * Dispatcher of the requests of remote agents, with its metrics
+	 * 
+	 * @return
+	 */
+	public ActionDispatcher getActionDispatcher() {
+		return dispatcher;
+	}
+
+	/* joins are executed by the dispatcher, not to block the event loop */
+	void executeJoin(Runnable join) {
+		dispatcher.execute(dispatcher.forJoins(), join);
+	}
+
+	/* parts of the events shared by the sessions */
+	EncodeCache getEncodeCache() {
+		return encodeCache;
+	}
 	
 	
 	private  void log(String msg) {
@@ -154,8 +275,13 @@ public class WorkspaceService extends AbstractVerticle  {
 	}
 
 	public void shutdownService(){
-		// garbageCollector.stopActivity();		
-		server.close();		
+		timerWheel.stop(vertx);
+		dispatcher.shutdown();
+		/* the servers are closed with their verticles */
+		for (String id: deployments) {
+			vertx.undeploy(id);
+		}
+		deployments.clear();
 	}
 
 
@@ -171,35 +297,35 @@ public class WorkspaceService extends AbstractVerticle  {
 				// String wspName = joinParams.getString("wspFullName");
 				JsonObject agentCred = joinParams.getJsonObject("agent-cred");
 				
-				String userName = agentCred.getString("userName");
-				String roleName = agentCred.getString("roleName");
-		
-				AgentCredential cred = 	new AgentIdCredential(userName, roleName);
-						
-				try {
-					Workspace wsp = CartagoDistributedEnvironment.getInstance().getWorkspace();			
-					log("Remote request to join: " + roleName + " " + cred);
-						
-				    AgentBodyRemote rbody = new AgentBodyRemote();			
-					ICartagoContext ctx = wsp.joinWorkspace(cred, rbody);
+				executeJoin(() -> {
+					try {
+						String agentSessionId = createSession(agentCred);
 					
-					long value = agentSessionId.incrementAndGet();
-					String agentSessionId = "sid-" + value;
+						JsonObject res = new JsonObject();
+						res.put("session-id", agentSessionId);
 					
-					remoteCtxs.put(agentSessionId, rbody);
-		
-					rbody.init((AgentBody) ctx);	
+						ws.writeTextMessage(res.encode());
 					
-					JsonObject res = new JsonObject();
-					res.put("session-id", agentSessionId);
 					
+					} catch (Exception ex) {
+						ex.printStackTrace();
+						ws.reject();
+					}
+				});
+			});
+	}
+	
+	/* a batch of agents in one request: a session id for each credential, null if refused */
+	private void handleBulkRequestToJoinWSP(ServerWebSocket ws) {
+		log("Handling Bulk Request to Join WSP from "+ws.remoteAddress() + " - " + ws.path());
+		
+		ws.handler(buffer -> {
+				JsonObject joinParams = buffer.toJsonObject();
+				executeJoin(() -> {
+					JsonObject res = new JsonObject();
+					res.put("session-ids", createSessions(joinParams.getJsonArray("agent-creds")));
 					ws.writeTextMessage(res.encode());
-					
-					
-				} catch (Exception ex) {
-					ex.printStackTrace();
-					ws.reject();
-				}
+				});
 			});
 	}
 	
@@ -214,12 +340,40 @@ public class WorkspaceService extends AbstractVerticle  {
 				
 				AgentBodyRemote rbody = remoteCtxs.get(agentSessionId);
 				
-				if (rbody != null) {
+				if (joinParams.containsKey("resume")) {
+					/* the session continues from the last event received by the agent */
+					JsonObject reply = new JsonObject();
+					String token = joinParams.getString("session-token");
+					if (rbody != null && rbody.isToken(token) && !rbody.isDetached()) {
+						/* the dropped connection is not closed yet: the agent tries again */
+						reply.put("state", "busy");
+						ws.writeTextMessage(reply.encode());
+						ws.close();
+					} else if (rbody == null || !rbody.resume(ws, token, joinParams.getLong("resume"), () -> {
+						reply.put("state", "resumed");
+						rbody.getProtocol().writeTo(reply);
+						ws.writeTextMessage(reply.encode());
+					})) {
+						reply.put("state", "refused");
+						ws.writeTextMessage(reply.encode());
+						ws.close();
+					}
+				} else if (rbody != null) {
 			
-					rbody.connect(ws, service);	
-					
+					/* old clients do not offer anything and keep using plain JSON */
+					WireProtocol protocol = WireProtocol.negotiate(joinParams);
 					JsonObject reply = new JsonObject();
+					if (!rbody.connect(ws, service, protocol)) {
+						/* already connected or closing: a connection is replaced only by resuming */
+						reply.put("error", "join refused");
+						ws.writeTextMessage(reply.encode());
+						ws.close();
+						return;
+					}
+					
 					reply.put("state", "connected");
+					putToken(reply, rbody);
+					protocol.writeTo(reply);
 					ws.writeTextMessage(reply.encode());
 					
 				} else {
@@ -228,16 +382,177 @@ public class WorkspaceService extends AbstractVerticle  {
 			});
 	}	
 	
+	/*
+	 * Request to join and join in a single round trip: the credential is
+	 * sent on the connection used then for the session
+	 */
+	private void handleConnectWSP(ServerWebSocket ws) {
+		log("Handling Connect WSP from "+ws.remoteAddress() + " - " + ws.path());
+		WorkspaceService service = this;
+		
+		ws.handler(buffer -> {
+				JsonObject joinParams = buffer.toJsonObject();
+				
+				executeJoin(() -> {
+					try {
+						WireProtocol protocol = WireProtocol.negotiate(joinParams);
+						/* connected before joining: the events raised by the join are sent */
+						String agentSessionId = createSession(joinParams.getJsonObject("agent-cred"), (id, body) -> body.connect(ws, service, protocol));
+						AgentBodyRemote rbody = remoteCtxs.get(agentSessionId);
+					
+						JsonObject reply = new JsonObject();
+						reply.put("session-id", agentSessionId);
+						reply.put("state", "connected");
+						putToken(reply, rbody);
+						protocol.writeTo(reply);
+						ws.writeTextMessage(reply.encode());
+					
+					} catch (Exception ex) {
+						ex.printStackTrace();
+						ws.writeTextMessage(new JsonObject().put("error", "join refused").encode());
+						ws.close();
+					}
+				});
+			});
+	}
+
+	/* the secret of the session is sent with the first connection only */
+	static void putToken(JsonObject reply, AgentBodyRemote rbody) {
+		String token = rbody.takeToken();
+		if (token != null) {
+			reply.put("session-token", token);
+		}
+	}
+
+	/**
+	 * Join the workspace with the credential of a remote agent
+	 * 
+	 * @param agentCred
+	 * @return session id
+	 * @throws CartagoException
+	 */
+	String createSession(JsonObject agentCred) throws CartagoException {
+		return createSession(agentCred, null);
+	}
+
+	/**
+	 * Join the workspace with the credential of a remote agent, whose
+	 * session is wired - and connected, if a connection is given - before
+	 * joining, so that the events raised by the join reach the agent
+	 * 
+	 * @param agentCred
+	 * @param connect connects the new session, given its id; null if the agent connects later
+	 * @return session id
+	 * @throws CartagoException
+	 */
+	String createSession(JsonObject agentCred, BiConsumer<String, AgentBodyRemote> connect) throws CartagoException {
+		String userName = agentCred.getString("userName");
+		String roleName = agentCred.getString("roleName");
+
+		AgentCredential cred = 	new AgentIdCredential(userName, roleName);
+				
+		Workspace wsp = CartagoDistributedEnvironment.getInstance().getWorkspace();			
+		log("Remote request to join: " + roleName + " " + cred);
+			
+	    AgentBodyRemote rbody = new AgentBodyRemote();			
+		long value = agentSessionId.incrementAndGet();
+		String agentSessionId = "sid-" + value;
+		rbody.init(agentSessionId, this);
+		if (connect != null) {
+			connect.accept(agentSessionId, rbody);
+		}
+		
+		ICartagoContext ctx;
+		try {
+			ctx = wsp.joinWorkspace(cred, rbody);
+		} catch (CartagoException | RuntimeException ex) {
+			rbody.refused();
+			throw ex;
+		}
+		rbody.joined((AgentBody) ctx);
+		
+		remoteCtxs.add(agentSessionId, rbody);
+		return agentSessionId;
+	}
+
+	/**
+	 * Join the workspace with the credentials of a batch of remote agents
+	 * 
+	 * @param agentCreds
+	 * @return the session ids, null for the agents not admitted
+	 */
+	JsonArray createSessions(JsonArray agentCreds) {
+		JsonArray ids = new JsonArray();
+		for (int i = 0; i < agentCreds.size(); i++) {
+			try {
+				ids.add(createSession(agentCreds.getJsonObject(i)));
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				ids.addNull();
+			}
+		}
+		return ids;
+	}
+
+	AgentBodyRemote getRemoteSession(String agentSessionId) {
+		return remoteCtxs.get(agentSessionId);
+	}
+
+	/* the session has been closed and its resources released */
+	void removeRemoteSession(String agentSessionId) {
+		remoteCtxs.remove(agentSessionId);
+	}
+
+	/**
+	 * Number of sessions of remote agents not closed yet
+	 * 
+	 * @return
+	 */
+	public int getLiveSessions() {
+		return remoteCtxs.getLiveCount();
+	}
+
+	/**
+	 * Number of sessions of remote agents with a connection
+	 * 
+	 * @return
+	 */
+	public int getConnectedSessions() {
+		return remoteCtxs.getConnectedCount();
+	}
+
+	/**
+	 * Number of sessions of remote agents closed so far
+	 * 
+	 * @return
+	 */
+	public long getClosedSessions() {
+		return remoteCtxs.getClosedCount();
+	}
+
 	public void registerNewJoin(String bodyId, AgentBody body) {
 		this.pendingBodies.put(bodyId, body);
 	}
+
+	void unregisterJoin(String bodyId) {
+		this.pendingBodies.remove(bodyId);
+	}
 	
 	/* QUIT */
 	
+	/* the agent quits, with the secret of its session given in the reply to the join */
 	private void handleQuitWSP(RoutingContext routingContext) {
-		log("Handling Quit WSP from "+routingContext.request().absoluteURI());
+		log("Handling Quit WSP from "+routingContext.request().remoteAddress() + " - " + routingContext.request().path());
 		HttpServerResponse response = routingContext.response();
-		response.putHeader("content-type", "application/text").end("Not implemented.");
+		AgentBodyRemote rbody = remoteCtxs.get(routingContext.request().getParam("session-id"));
+		if (rbody != null && !rbody.isToken(routingContext.request().getParam("session-token"))) {
+			response.setStatusCode(403).putHeader("content-type", "application/text").end("Invalid session token.");
+		} else if (rbody != null) {
+			rbody.quit();
+			response.putHeader("content-type", "application/text").end("Quit.");
+		} else {
+			response.setStatusCode(404).putHeader("content-type", "application/text").end("Unknown session.");
+		}
 	}
 	
 	/*
@@ -0,0 +1,56 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServer;
+
+/**
+ * Verticle serving the connections of a workspace service on its event loop.
+ *
+ * Many instances share the port of the service.
+ *
+ */
+class WorkspaceServiceVerticle extends AbstractVerticle {
+
+	private final WorkspaceService service;
+	private final int port;
+	private HttpServer server;
+
+	WorkspaceServiceVerticle(WorkspaceService service, int port) {
+		this.service = service;
+		this.port = port;
+	}
+
+	@Override
+	public void start(Future<Void> startFuture) {
+		server = service.createServer(vertx).listen(port, res -> {
+			if (res.succeeded()) {
+				startFuture.complete();
+			} else {
+				startFuture.fail(res.cause());
+			}
+		});
+	}
+
+	/* the port bound, if dynamic */
+	int getActualPort() {
+		return server.actualPort();
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.io.Serializable;
+
+/**
+ * Immutable key of a workspace, used to index the contexts of the agents.
+ *
+ * Keys are interned by the name of the workspace - the URI for the
+ * infrastructure workspaces - in the WspKeys of a session, so they are
+ * mostly compared by identity and their hash is computed once.
+ * Workspace ids are mutable instead: see WspKeys.
+ *
+ */
+final class WspKey implements Serializable {
+
+	private final String name;
+	private final int hash;
+
+	WspKey(String name) {
+		this.name = name;
+		this.hash = name.hashCode();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj == this || (obj instanceof WspKey && ((WspKey) obj).name.equals(name));
+	}
+
+	public String toString() {
+		return name;
+	}
+}
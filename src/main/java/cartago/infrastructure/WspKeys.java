@@ -0,0 +1,87 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cartago.WorkspaceId;
+
+/**
+ * Keys of the workspaces of an agent, interned by name.
+ *
+ * The URI of a workspace with a dynamic port is finalized later: then
+ * both the names lead to the same key. The names of a key are removed
+ * when the agent quits the workspace.
+ *
+ */
+final class WspKeys implements Serializable {
+
+	private final ConcurrentHashMap<String, WspKey> keys = new ConcurrentHashMap<String, WspKey>();
+
+	/**
+	 * Key of a workspace, created if needed
+	 *
+	 * @param wspId
+	 * @return
+	 */
+	WspKey of(WorkspaceId wspId) {
+		return of(wspId.getName());
+	}
+
+	WspKey of(String wspName) {
+		return keys.computeIfAbsent(wspName, WspKey::new);
+	}
+
+	/**
+	 * Key of a workspace given its name
+	 *
+	 * @param wspName
+	 * @return null if no workspace with that name has a key
+	 */
+	WspKey lookup(String wspName) {
+		return keys.get(wspName);
+	}
+
+	/**
+	 * The name of a workspace changed: the new name leads to its key as well
+	 *
+	 * @param key
+	 * @param newName
+	 * @throws IllegalStateException if the new name leads to another workspace
+	 */
+	void rename(WspKey key, String newName) {
+		WspKey other = keys.putIfAbsent(newName, key);
+		if (other != null && !other.equals(key)) {
+			throw new IllegalStateException("Workspace " + key + " renamed " + newName + ", the name of " + other);
+		}
+	}
+
+	/**
+	 * Remove a key with all its names
+	 *
+	 * @param key
+	 */
+	void remove(WspKey key) {
+		keys.values().removeIf(key::equals);
+	}
+
+	int size() {
+		return keys.size();
+	}
+}
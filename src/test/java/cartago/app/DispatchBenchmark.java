@@ -0,0 +1,80 @@
+package cartago.app;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import cartago.infrastructure.ActionDispatcher;
+import cartago.infrastructure.DispatchStrategy;
+import cartago.infrastructure.VirtualThreads;
+
+/**
+ * Compares the dispatch of the actions of remote agents on platform threads
+ * (PER_SESSION) and on virtual threads (VIRTUAL), with actions blocking
+ * for a while as remote calls do.
+ *
+ * Usage: DispatchBenchmark [-sessions n] [-actions n] [-block ms] [-threads n]
+ *
+ * Virtual threads need Java 21: on older runtimes VIRTUAL falls back to PER_SESSION.
+ */
+public class DispatchBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sessions = intParam(args, "-sessions", 2000);
+		int actions = intParam(args, "-actions", 10);
+		int block = intParam(args, "-block", 10);
+		int threads = intParam(args, "-threads", Math.max(4, Runtime.getRuntime().availableProcessors()));
+
+		System.out.println("sessions " + sessions + ", actions per session " + actions + ", blocking " + block + " ms, pool threads " + threads);
+		if (!VirtualThreads.isSupported()) {
+			System.out.println("virtual threads not supported by this runtime: VIRTUAL runs as PER_SESSION");
+		}
+
+		/* warm up */
+		run(DispatchStrategy.PER_SESSION, Math.min(sessions, 100), actions, block, threads);
+		run(DispatchStrategy.VIRTUAL, Math.min(sessions, 100), actions, block, threads);
+
+		for (DispatchStrategy strategy: new DispatchStrategy[] { DispatchStrategy.PER_SESSION, DispatchStrategy.VIRTUAL }) {
+			long[] res = run(strategy, sessions, actions, block, threads);
+			System.out.println(String.format("%-12s %8d ms %10.0f actions/s  queue mean %8.2f ms max %8.2f ms  platform threads %d",
+					strategy, res[0], sessions * actions * 1000.0 / Math.max(1, res[0]), res[1] / 1e3, res[2] / 1e3, res[3]));
+		}
+	}
+
+	/* elapsed (ms), mean and max queue time (us), live platform threads */
+	private static long[] run(DispatchStrategy strategy, int sessions, int actions, int block, int threads) throws Exception {
+		ActionDispatcher dispatcher = new ActionDispatcher(strategy, threads);
+		Executor[] executors = new Executor[sessions];
+		for (int i = 0; i < sessions; i++) {
+			executors[i] = dispatcher.forSession("sid-" + i);
+		}
+		CountDownLatch done = new CountDownLatch(sessions * actions);
+		long t0 = System.currentTimeMillis();
+		/* the requests arrive interleaved, as from many connections */
+		for (int j = 0; j < actions; j++) {
+			for (int i = 0; i < sessions; i++) {
+				dispatcher.execute(executors[i], () -> {
+					try {
+						Thread.sleep(block);
+					} catch (InterruptedException ex) {
+					}
+					done.countDown();
+				});
+			}
+		}
+		int liveThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		done.await();
+		long elapsed = System.currentTimeMillis() - t0;
+		dispatcher.shutdown();
+		return new long[] { elapsed, (long) (dispatcher.getMeanQueueTime() * 1e3), (long) (dispatcher.getMaxQueueTime() * 1e3), liveThreads };
+	}
+
+	private static int intParam(String[] args, String arg, int def){
+		for (int i = 0; i<args.length - 1; i++){
+			if (args[i].equals(arg)){
+				return Integer.parseInt(args[i+1]);
+			}
+		}
+		return def;
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class BinaryWireCodecTest {
+
+	private static JsonObject roundTrip(JsonObject frame) {
+		Buffer buf = WireCodec.BINARY.encode(frame);
+		assertTrue(BinaryWireCodec.isBinaryFrame(buf));
+		return WireCodec.decode(buf);
+	}
+
+	@Test
+	public void integersRoundTrip() {
+		long[] longs = { 0, 1, -1, 63, -64, 64, -65, 127, 128, 300, -300, Long.MAX_VALUE, Long.MIN_VALUE };
+		int[] ints = { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 20, -(1 << 20) };
+		JsonObject frame = new JsonObject();
+		for (int i = 0; i < longs.length; i++) {
+			frame.put("l" + i, longs[i]);
+		}
+		for (int i = 0; i < ints.length; i++) {
+			frame.put("i" + i, ints[i]);
+		}
+		JsonObject res = roundTrip(frame);
+		for (int i = 0; i < longs.length; i++) {
+			assertEquals(Long.valueOf(longs[i]), res.getValue("l" + i));
+		}
+		for (int i = 0; i < ints.length; i++) {
+			assertEquals(Integer.valueOf(ints[i]), res.getValue("i" + i));
+		}
+	}
+
+	@Test
+	public void smallValuesAreShort() {
+		/* zig-zag: small negative numbers take a single byte too */
+		int pos = WireCodec.BINARY.encode(new JsonObject().put("v", 63L)).length();
+		int neg = WireCodec.BINARY.encode(new JsonObject().put("v", -64L)).length();
+		int big = WireCodec.BINARY.encode(new JsonObject().put("v", 64L)).length();
+		assertEquals(pos, neg);
+		assertEquals(pos + 1, big);
+	}
+
+	@Test
+	public void nestedValuesRoundTrip() {
+		JsonObject frame = new JsonObject()
+				.put("s", "héllo 世界")
+				.put("empty", "")
+				.put("d", 3.25)
+				.put("t", true)
+				.put("f", false)
+				.putNull("n")
+				.put("a", new JsonArray().add(1).add("x").add(new JsonArray()).add(new JsonObject().put("k", -5L)))
+				.put("o", new JsonObject().put("inner", new JsonObject().put("z", 2.5)));
+		assertEquals(frame, roundTrip(frame));
+	}
+
+	@Test
+	public void jsonFramesAreNotBinary() {
+		Buffer buf = WireCodec.JSON.encode(new JsonObject().put("a", 1));
+		assertFalse(BinaryWireCodec.isBinaryFrame(buf));
+		assertEquals(1, (int) WireCodec.decode(buf).getInteger("a"));
+	}
+
+	@Test(expected = DecodeException.class)
+	public void badMagicByte() {
+		Buffer buf = WireCodec.BINARY.encode(new JsonObject().put("a", 1));
+		buf.setByte(0, (byte) 0x01);
+		WireCodec.decode(buf);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedVersion() {
+		Buffer buf = WireCodec.BINARY.encode(new JsonObject().put("a", 1));
+		buf.setByte(1, (byte) (BinaryWireCodec.VERSION + 1));
+		WireCodec.decode(buf);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownTag() {
+		Buffer buf = Buffer.buffer().appendByte(BinaryWireCodec.MAGIC).appendByte(BinaryWireCodec.VERSION).appendByte((byte) 99);
+		WireCodec.decode(buf);
+	}
+
+	/* a count of 2^31 - 1 in a frame of 7 bytes */
+	@Test(expected = IllegalArgumentException.class)
+	public void hugeObjectCount() {
+		WireCodec.decode(frame(BinaryWireCodec.T_OBJECT, 0xFF, 0xFF, 0xFF, 0xFF, 0x07));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void hugeArrayCount() {
+		WireCodec.decode(frame(BinaryWireCodec.T_OBJECT, 0x01, 0x01, 'a', BinaryWireCodec.T_ARRAY, 0xFF, 0xFF, 0xFF, 0xFF, 0x07));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeCount() {
+		WireCodec.decode(frame(BinaryWireCodec.T_OBJECT, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void stringLongerThanTheFrame() {
+		WireCodec.decode(frame(BinaryWireCodec.T_OBJECT, 0x01, 0x7F, 'a'));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void endlessVarint() {
+		WireCodec.decode(frame(BinaryWireCodec.T_OBJECT, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+	}
+
+	@Test
+	public void negotiation() {
+		assertSame(WireCodec.BINARY, WireCodec.negotiate(new JsonArray().add("unknown").add(WireCodec.BINARY.getName())));
+		assertSame(WireCodec.JSON, WireCodec.negotiate(null));
+		assertSame(WireCodec.JSON, WireCodec.negotiate(new JsonArray().add("unknown")));
+		assertNull(WireCodec.forName("unknown"));
+	}
+
+	private static Buffer frame(int... bytes) {
+		Buffer buf = Buffer.buffer().appendByte(BinaryWireCodec.MAGIC).appendByte(BinaryWireCodec.VERSION);
+		for (int b: bytes) {
+			buf.appendByte((byte) b);
+		}
+		return buf;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BoundedLongSetTest {
+
+	@Test
+	public void addAndRemove() {
+		BoundedLongSet set = new BoundedLongSet(8);
+		set.add(3);
+		set.add(5);
+		assertTrue(set.contains(3));
+		assertTrue(set.remove(3));
+		assertFalse(set.remove(3));
+		assertFalse(set.remove(4));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	public void oldestForgottenFirst() {
+		BoundedLongSet set = new BoundedLongSet(100);
+		for (long i = 0; i < 150; i++) {
+			set.add(i);
+		}
+		assertEquals(100, set.size());
+		for (long i = 0; i < 50; i++) {
+			assertFalse(set.contains(i));
+		}
+		for (long i = 50; i < 150; i++) {
+			assertTrue(set.contains(i));
+		}
+	}
+
+	@Test
+	public void lateOutcomeAfterEviction() {
+		/* ids of failed actions: one more failure than kept */
+		BoundedLongSet failed = new BoundedLongSet(AgentBodyProxy.MAX_FAILED_KEPT);
+		for (long id = 1; id <= AgentBodyProxy.MAX_FAILED_KEPT + 1; id++) {
+			failed.add(id);
+		}
+		/* only the outcome of the first action can no more be recognized as late */
+		assertFalse(failed.remove(1));
+		for (long id = 2; id <= AgentBodyProxy.MAX_FAILED_KEPT + 1; id++) {
+			assertTrue(failed.remove(id));
+		}
+		assertEquals(0, failed.size());
+	}
+
+	@Test
+	public void removedKeysDoNotEvictOthers() {
+		BoundedLongSet set = new BoundedLongSet(4);
+		set.add(1);
+		set.add(2);
+		assertTrue(set.remove(1));
+		/* added again: its first addition is stale */
+		set.add(2);
+		set.add(3);
+		/* forgets the addition of 1, removed */
+		set.add(4);
+		/* forgets the first addition of 2, not the current one */
+		set.add(5);
+		assertTrue(set.contains(2));
+		assertTrue(set.contains(5));
+		assertEquals(4, set.size());
+		set.add(6);
+		assertFalse(set.contains(2));
+		assertEquals(4, set.size());
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/* maps created for 4 keys have 8 slots: colliding keys are found with the hash of the map */
+public class LongObjectHashMapTest {
+
+	private static final int MASK = 7;
+
+	@Test
+	public void putGetAndReplace() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(-1, "b"));
+		assertEquals("a", map.put(1, "c"));
+		assertEquals(2, map.size());
+		assertEquals("c", map.get(1));
+		assertEquals("b", map.get(-1));
+		assertNull(map.get(2));
+		assertNull(map.remove(2));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void growsKeepingTheMappings() {
+		LongObjectHashMap<Long> map = new LongObjectHashMap<Long>(4);
+		List<Long> keys = new ArrayList<Long>();
+		keys.add(0L);
+		keys.add(Long.MIN_VALUE);
+		keys.add(Long.MAX_VALUE);
+		for (long k = 1; k <= 1000; k++) {
+			keys.add(k * 1024);
+			keys.add(-k);
+		}
+		for (long k: keys) {
+			map.put(k, k);
+		}
+		assertEquals(keys.size(), map.size());
+		for (long k: keys) {
+			assertEquals(Long.valueOf(k), map.get(k));
+		}
+	}
+
+	@Test
+	public void collidingKeysShareARun() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		long[] same = collidingKeys(3, 3);
+		for (long k: same) {
+			map.put(k, "v" + k);
+		}
+		for (long k: same) {
+			assertEquals("v" + k, map.get(k));
+		}
+		assertEquals("v" + same[1], map.put(same[1], "x"));
+		assertEquals("x", map.get(same[1]));
+		assertEquals(3, map.size());
+	}
+
+	@Test
+	public void removeShiftsBackTheRun() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		long[] same = collidingKeys(3, 3);
+		long next = collidingKeys(4, 1)[0];
+		for (long k: same) {
+			map.put(k, "v" + k);
+		}
+		/* after the run of its home slot */
+		map.put(next, "n");
+		assertEquals("v" + same[0], map.remove(same[0]));
+		assertNull(map.get(same[0]));
+		assertEquals("v" + same[1], map.get(same[1]));
+		assertEquals("v" + same[2], map.get(same[2]));
+		assertEquals("n", map.get(next));
+		assertEquals("v" + same[1], map.remove(same[1]));
+		assertEquals("v" + same[2], map.get(same[2]));
+		assertEquals("n", map.get(next));
+		assertEquals(2, map.size());
+		map.put(same[0], "again");
+		assertEquals("again", map.get(same[0]));
+	}
+
+	@Test
+	public void removeInARunWrappingAround() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		long[] last = collidingKeys(MASK, 3);
+		long first = collidingKeys(0, 1)[0];
+		for (long k: last) {
+			map.put(k, "v" + k);
+		}
+		/* the run fills the last slot and the first two, the key of slot 0 goes after it */
+		map.put(first, "f");
+		assertEquals("v" + last[0], map.remove(last[0]));
+		assertEquals("v" + last[1], map.get(last[1]));
+		assertEquals("v" + last[2], map.get(last[2]));
+		assertEquals("f", map.get(first));
+		assertEquals("f", map.remove(first));
+		assertEquals("v" + last[2], map.get(last[2]));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void sameAsHashMap() {
+		LongObjectHashMap<Integer> map = new LongObjectHashMap<Integer>(4);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		Random random = new Random(42);
+		for (int n = 0; n < 100000; n++) {
+			long key = random.nextInt(200) - 100;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			} else {
+				assertEquals(expected.put(key, n), map.put(key, n));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = -100; key < 100; key++) {
+			assertEquals(expected.get(key), map.get(key));
+		}
+	}
+
+	@Test
+	public void clearReturnsTheValues() {
+		LongObjectHashMap<String> map = new LongObjectHashMap<String>(4);
+		map.put(1, "a");
+		map.put(2, "b");
+		map.put(3, "c");
+		List<String> removed = map.clear();
+		removed.sort(null);
+		assertEquals(List.of("a", "b", "c"), removed);
+		assertEquals(0, map.size());
+		assertNull(map.get(1));
+		map.put(1, "d");
+		assertEquals("d", map.get(1));
+		assertEquals(1, map.size());
+	}
+
+	/* n keys with the given home slot in a map of 8 slots */
+	private static long[] collidingKeys(int home, int n) {
+		long[] found = new long[n];
+		int i = 0;
+		for (long k = 1; i < n; k++) {
+			long h = k * 0x9E3779B97F4A7C15L;
+			if (((int) (h ^ (h >>> 32)) & MASK) == home) {
+				found[i++] = k;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cartago.ArtifactObsProperty;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class ObsPropertyDeltasTest {
+
+	private final ObsPropertyDeltas sender = new ObsPropertyDeltas();
+	private final ObsPropertyDeltas receiver = new ObsPropertyDeltas();
+
+	private ArtifactObsProperty send(Object... values) {
+		JsonArray frame = sender.encodeChanged(new ArtifactObsProperty[] { new ArtifactObsProperty("count_1", 1, "count", values) }, null, true, null);
+		return receiver.decodeChanged(frame, null)[0];
+	}
+
+	@Test
+	public void onlyChangedValuesAreSent() {
+		send(1, "a", 2.5);
+		JsonArray frame = sender.encodeChanged(new ArtifactObsProperty[] { new ArtifactObsProperty("count_1", 1, "count", new Object[] { 2, "a", 2.5 }) }, null, true, null);
+		JsonArray delta = frame.getJsonObject(0).getJsonArray("delta");
+		assertEquals(1, delta.size());
+		assertEquals(0, (int) delta.getJsonObject(0).getInteger("pos"));
+		ArtifactObsProperty res = receiver.decodeChanged(frame, null)[0];
+		assertArrayEquals(new Object[] { 2, "a", 2.5 }, res.getValues());
+	}
+
+	/* the artifact updates the list in place: the copy kept by the sender is the same list */
+	@Test
+	public void valuesUpdatedInPlaceAreSent() {
+		JsonArray list = new JsonArray().add(1);
+		send(list, "a");
+		list.add(2);
+		ArtifactObsProperty res = send(list, "a");
+		assertEquals(new JsonArray().add(1).add(2), res.getValues()[0]);
+		assertEquals("a", res.getValues()[1]);
+	}
+
+	@Test
+	public void unknownPropertiesAreSentInFull() {
+		JsonArray frame = sender.encodeChanged(new ArtifactObsProperty[] { new ArtifactObsProperty("count_1", 1, "count", new Object[] { 1 }) }, null, true, null);
+		JsonObject obj = frame.getJsonObject(0);
+		assertNull(obj.getJsonArray("delta"));
+		assertEquals(1, receiver.decodeChanged(frame, null)[0].getValues()[0]);
+	}
+}
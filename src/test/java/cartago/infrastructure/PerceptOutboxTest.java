@@ -0,0 +1,282 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cartago.ArtifactId;
+import cartago.ArtifactObsProperty;
+import cartago.Tuple;
+import cartago.events.ArtifactObsEvent;
+import cartago.events.CartagoEvent;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class PerceptOutboxTest {
+
+	private Vertx vertx;
+	private TestBody body;
+	private ArtifactId aid;
+
+	@Before
+	public void setUp() {
+		vertx = Vertx.vertx();
+		body = new TestBody();
+		aid = new ArtifactId("counter", "Counter", null, null);
+	}
+
+	@After
+	public void tearDown() {
+		vertx.close();
+	}
+
+	@Test
+	public void eventsSentOnlyWithCredit() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig(), WireProtocol.CREDIT);
+		for (int i = 1; i <= 5; i++) {
+			outbox.offer(event(i));
+		}
+		assertEquals(Collections.emptyList(), body.ids());
+		outbox.grant(2);
+		assertEquals(List.of(1L, 2L), body.ids());
+		outbox.grant(10);
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L), body.ids());
+		outbox.offer(event(6));
+		assertEquals(6, body.ids().size());
+	}
+
+	@Test
+	public void batchesUpToMaxEvents() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig().setMaxBatchEvents(3), WireProtocol.CREDIT, WireProtocol.BATCH);
+		for (int i = 1; i <= 7; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.grant(100);
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L), body.ids());
+		assertEquals("batch", body.frames.get(0).getString("evType"));
+	}
+
+	@Test
+	public void framesWrittenWithoutTheLock() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig(), WireProtocol.CREDIT, WireProtocol.RESUME);
+		body.outbox = outbox;
+		for (int i = 1; i <= 3; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.grant(2);
+		outbox.detach();
+		outbox.grant(1);
+		assertTrue(outbox.resume(1, () -> body.frames.add(new JsonObject().put("state", "resumed"))));
+		outbox.flush();
+		assertFalse(body.lockedWrite);
+	}
+
+	@Test
+	public void overflowDropsTheOldest() {
+		RemoteSessionConfig config = new RemoteSessionConfig().setMaxPendingEvents(3).setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		PerceptOutbox outbox = outbox(config, WireProtocol.CREDIT);
+		for (int i = 1; i <= 10; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.grant(100);
+		assertEquals(List.of(8L, 9L, 10L), body.ids());
+	}
+
+	/* the producer waits for the agent, no event is lost */
+	@Test
+	public void overflowBlocksByDefault() throws Exception {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig().setMaxPendingEvents(3), WireProtocol.CREDIT);
+		Thread producer = new Thread(() -> {
+			for (int i = 1; i <= 10; i++) {
+				outbox.offer(signal(i));
+			}
+		});
+		producer.start();
+		while (producer.isAlive() && producer.getState() != Thread.State.WAITING) {
+			Thread.sleep(5);
+		}
+		outbox.grant(100);
+		producer.join(5000);
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), body.ids());
+	}
+
+	@Test
+	public void conflationKeepsTheSignals() throws Exception {
+		RemoteSessionConfig config = new RemoteSessionConfig().setMaxPendingEvents(3).setOverflowPolicy(OverflowPolicy.CONFLATE);
+		PerceptOutbox outbox = outbox(config, WireProtocol.CREDIT);
+		Thread producer = new Thread(() -> {
+			for (int i = 1; i <= 10; i++) {
+				outbox.offer(signal(i));
+			}
+		});
+		producer.start();
+		while (producer.isAlive() && producer.getState() != Thread.State.WAITING) {
+			Thread.sleep(5);
+		}
+		outbox.grant(100);
+		producer.join(5000);
+		assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), body.ids());
+	}
+
+	@Test
+	public void overflowDisconnects() {
+		RemoteSessionConfig config = new RemoteSessionConfig().setMaxPendingEvents(3).setOverflowPolicy(OverflowPolicy.DISCONNECT);
+		PerceptOutbox outbox = outbox(config, WireProtocol.CREDIT);
+		for (int i = 1; i <= 10; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.grant(100);
+		assertTrue(body.disconnected);
+		assertEquals(Collections.emptyList(), body.ids());
+	}
+
+	@Test
+	public void replayAfterResume() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig(), WireProtocol.RESUME);
+		for (int i = 1; i <= 4; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.detach();
+		outbox.offer(event(5));
+		assertEquals(4, body.frames.size());
+		body.frames.clear();
+
+		/* the client got the first two events */
+		outbox.ack(1);
+		assertTrue(outbox.resume(2, () -> body.frames.add(new JsonObject().put("state", "resumed"))));
+		outbox.flush();
+		assertEquals("resumed", body.frames.get(0).getString("state"));
+		assertEquals(List.of(3L, 4L, 5L), body.ids());
+		assertEquals(5L, (long) body.frames.get(body.frames.size() - 1).getLong("seq"));
+	}
+
+	@Test
+	public void eventsSentAgainUseTheNewWindow() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig(), WireProtocol.CREDIT, WireProtocol.RESUME);
+		outbox.grant(10);
+		for (int i = 1; i <= 3; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.detach();
+		for (int i = 4; i <= 6; i++) {
+			outbox.offer(event(i));
+		}
+		body.frames.clear();
+		/* the client got the first event, events 2 and 3 are sent again */
+		assertTrue(outbox.resume(1, () -> {}));
+		outbox.flush();
+		assertEquals(List.of(2L, 3L), body.ids());
+		outbox.grant(3);
+		assertEquals(List.of(2L, 3L, 4L), body.ids());
+		outbox.grant(10);
+		assertEquals(List.of(2L, 3L, 4L, 5L, 6L), body.ids());
+	}
+
+	@Test
+	public void resumeRefusedWhenEventsAreForgotten() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig().setMaxReplayEvents(2), WireProtocol.RESUME);
+		for (int i = 1; i <= 5; i++) {
+			outbox.offer(event(i));
+		}
+		outbox.detach();
+		/* events 1-3 are out of the replay window */
+		assertFalse(outbox.resume(1, () -> {}));
+		assertTrue(outbox.resume(3, () -> {}));
+	}
+
+	@Test
+	public void resumeRefusedForUnknownEvents() {
+		PerceptOutbox outbox = outbox(new RemoteSessionConfig(), WireProtocol.RESUME);
+		outbox.offer(event(1));
+		outbox.detach();
+		assertFalse(outbox.resume(2, () -> {}));
+	}
+
+	private PerceptOutbox outbox(RemoteSessionConfig config, String... features) {
+		JsonArray offer = new JsonArray();
+		for (String f: features) {
+			offer.add(f);
+		}
+		WireProtocol protocol = WireProtocol.negotiate(new JsonObject().put("features", offer));
+		return new PerceptOutbox(body, vertx, config.setMaxBatchDelay(0), protocol);
+	}
+
+	private CartagoEvent event(long id) {
+		ArtifactObsProperty prop = new ArtifactObsProperty("counter-count", 1, "count", new Object[] { id });
+		return new ArtifactObsEvent(id, aid, null, new ArtifactObsProperty[] { prop }, null, null, id);
+	}
+
+	private CartagoEvent signal(long id) {
+		return new ArtifactObsEvent(id, aid, new Tuple("tick", id), null, null, null, id);
+	}
+
+	static class TestBody extends AgentBodyRemote {
+
+		final List<JsonObject> frames = Collections.synchronizedList(new ArrayList<JsonObject>());
+		PerceptOutbox outbox;
+		volatile boolean lockedWrite;
+		volatile boolean disconnected;
+
+		@Override
+		JsonObject encodeEvent(CartagoEvent ev) {
+			return new JsonObject().put("id", ev.getId());
+		}
+
+		@Override
+		void writeFrame(JsonObject frame) {
+			lockedWrite |= outbox != null && Thread.holdsLock(outbox);
+			frames.add(frame);
+		}
+
+		@Override
+		boolean isWriteQueueFull() {
+			return false;
+		}
+
+		@Override
+		void disconnect() {
+			disconnected = true;
+		}
+
+		/* ids of the events sent, batches unpacked */
+		List<Long> ids() {
+			List<Long> ids = new ArrayList<Long>();
+			synchronized (frames) {
+				for (JsonObject frame: frames) {
+					if ("batch".equals(frame.getString("evType"))) {
+						for (Object ev: frame.getJsonArray("events")) {
+							ids.add(((JsonObject) ev).getLong("id"));
+						}
+					} else if (frame.containsKey("id")) {
+						ids.add(frame.getLong("id"));
+					}
+				}
+			}
+			return ids;
+		}
+	}
+}
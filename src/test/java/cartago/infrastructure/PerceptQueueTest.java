@@ -0,0 +1,186 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cartago.events.ArtifactObsEvent;
+import cartago.events.CartagoEvent;
+import io.vertx.core.Vertx;
+
+public class PerceptQueueTest {
+
+	@Test
+	public void capacityRoundedToPowerOfTwo() {
+		assertEquals(8, new PerceptQueue(5, PerceptQueue.Overflow.DROP_NEWEST).capacity());
+		assertEquals(8, new PerceptQueue(8, PerceptQueue.Overflow.DROP_NEWEST).capacity());
+		assertEquals(2, new PerceptQueue(0, PerceptQueue.Overflow.DROP_NEWEST).capacity());
+	}
+
+	@Test
+	public void fifoAcrossWrapAround() {
+		PerceptQueue queue = new PerceptQueue(4, PerceptQueue.Overflow.DROP_NEWEST);
+		long next = 0;
+		for (long i = 0; i < 1000; i++) {
+			assertTrue(queue.offer(event(i)));
+			if (i % 3 == 2) {
+				while (!queue.isEmpty()) {
+					assertEquals(next++, queue.poll().getId());
+				}
+			}
+		}
+		while (!queue.isEmpty()) {
+			assertEquals(next++, queue.poll().getId());
+		}
+		assertEquals(1000, next);
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void dropNewest() {
+		PerceptQueue queue = new PerceptQueue(4, PerceptQueue.Overflow.DROP_NEWEST);
+		for (long i = 0; i < 4; i++) {
+			assertTrue(queue.offer(event(i)));
+		}
+		assertFalse(queue.offer(event(4)));
+		assertEquals(List.of(0L, 1L, 2L, 3L), drain(queue));
+	}
+
+	@Test
+	public void dropOldest() {
+		PerceptQueue queue = new PerceptQueue(4, PerceptQueue.Overflow.DROP_OLDEST);
+		for (long i = 0; i < 10; i++) {
+			assertTrue(queue.offer(event(i)));
+		}
+		assertEquals(4, queue.size());
+		assertEquals(List.of(6L, 7L, 8L, 9L), drain(queue));
+	}
+
+	@Test
+	public void blockedProducerWaitsForTheConsumer() throws Exception {
+		PerceptQueue queue = new PerceptQueue(2, PerceptQueue.Overflow.BLOCK);
+		Thread producer = new Thread(() -> {
+			for (long i = 0; i < 100; i++) {
+				queue.offer(event(i));
+			}
+		});
+		producer.start();
+		List<Long> got = new ArrayList<Long>();
+		while (got.size() < 100) {
+			CartagoEvent ev = queue.poll(5, TimeUnit.SECONDS);
+			assertNotNull(ev);
+			got.add(ev.getId());
+		}
+		producer.join(5000);
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, (long) got.get(i));
+		}
+	}
+
+	@Test
+	public void consumerDoesNotBlockOnItself() {
+		PerceptQueue queue = new PerceptQueue(2, PerceptQueue.Overflow.BLOCK);
+		/* this thread becomes the consumer */
+		assertNull(queue.poll());
+		for (long i = 0; i < 5; i++) {
+			assertTrue(queue.offer(event(i)));
+		}
+		assertEquals(List.of(3L, 4L), drain(queue));
+	}
+
+	@Test
+	public void eventLoopNeverWaits() throws Exception {
+		PerceptQueue queue = new PerceptQueue(2, PerceptQueue.Overflow.BLOCK);
+		Vertx vertx = Vertx.vertx();
+		try {
+			CountDownLatch done = new CountDownLatch(1);
+			vertx.runOnContext(v -> {
+				for (long i = 0; i < 10; i++) {
+					queue.offer(event(i));
+				}
+				done.countDown();
+			});
+			/* nobody is consuming: the event loop must not wait for room */
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(10, queue.size());
+			List<Long> expected = new ArrayList<Long>();
+			for (long i = 0; i < 10; i++) {
+				expected.add(i);
+			}
+			assertEquals(expected, drain(queue));
+		} finally {
+			vertx.close();
+		}
+	}
+
+	@Test
+	public void pollTimesOut() throws Exception {
+		PerceptQueue queue = new PerceptQueue(2, PerceptQueue.Overflow.BLOCK);
+		long t0 = System.nanoTime();
+		assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - t0 >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	@Test
+	public void waitingConsumerWokenUp() throws Exception {
+		PerceptQueue queue = new PerceptQueue(2, PerceptQueue.Overflow.BLOCK);
+		Thread producer = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException ex) {
+			}
+			queue.offer(event(7));
+		});
+		producer.start();
+		CartagoEvent ev = queue.poll(5, TimeUnit.SECONDS);
+		assertNotNull(ev);
+		assertEquals(7, ev.getId());
+	}
+
+	@Test
+	public void drainUpToMax() {
+		PerceptQueue queue = new PerceptQueue(8, PerceptQueue.Overflow.DROP_NEWEST);
+		for (long i = 0; i < 5; i++) {
+			queue.offer(event(i));
+		}
+		List<CartagoEvent> target = new ArrayList<CartagoEvent>();
+		assertEquals(3, queue.drainTo(target, 3));
+		assertEquals(2, queue.drainTo(target, 10));
+		assertEquals(5, target.size());
+	}
+
+	private static List<Long> drain(PerceptQueue queue) {
+		List<Long> ids = new ArrayList<Long>();
+		CartagoEvent ev;
+		while ((ev = queue.poll()) != null) {
+			ids.add(ev.getId());
+		}
+		return ids;
+	}
+
+	private static CartagoEvent event(long id) {
+		return new ArtifactObsEvent(id, null, null, null, null, null, id);
+	}
+}
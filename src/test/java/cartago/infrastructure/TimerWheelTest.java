@@ -0,0 +1,105 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/* the wheel is advanced by hand, with times relative to its creation */
+public class TimerWheelTest {
+
+	@Test
+	public void expiresAfterTheDelay() {
+		long t0 = System.currentTimeMillis();
+		TimerWheel wheel = new TimerWheel(10, 16);
+		List<String> fired = new ArrayList<String>();
+		wheel.schedule(50, () -> fired.add("a"));
+		wheel.schedule(100, () -> fired.add("b"));
+		wheel.advance(t0 + 30);
+		assertEquals(List.of(), fired);
+		wheel.advance(t0 + 80);
+		assertEquals(List.of("a"), fired);
+		wheel.advance(t0 + 130);
+		assertEquals(List.of("a", "b"), fired);
+		wheel.advance(t0 + 500);
+		assertEquals(2, fired.size());
+	}
+
+	@Test
+	public void cancelled() {
+		long t0 = System.currentTimeMillis();
+		TimerWheel wheel = new TimerWheel(10, 16);
+		List<String> fired = new ArrayList<String>();
+		/* same slot: the cancelled one is in the middle of the list */
+		wheel.schedule(50, () -> fired.add("a"));
+		TimerWheel.Timeout b = wheel.schedule(50, () -> fired.add("b"));
+		wheel.schedule(50, () -> fired.add("c"));
+		b.cancel();
+		wheel.advance(t0 + 100);
+		assertEquals(2, fired.size());
+		assertFalse(fired.contains("b"));
+		/* cancelling an expired timeout has no effect */
+		b.cancel();
+	}
+
+	@Test
+	public void longerThanOneRound() {
+		long t0 = System.currentTimeMillis();
+		TimerWheel wheel = new TimerWheel(10, 4);
+		List<String> fired = new ArrayList<String>();
+		wheel.schedule(100, () -> fired.add("late"));
+		wheel.schedule(20, () -> fired.add("early"));
+		/* the slot of the late timeout is visited twice before it expires */
+		for (long t = 0; t <= 90; t += 10) {
+			wheel.advance(t0 + t);
+		}
+		assertEquals(List.of("early"), fired);
+		wheel.advance(t0 + 120);
+		assertEquals(List.of("early", "late"), fired);
+	}
+
+	@Test
+	public void afterALongPause() {
+		long t0 = System.currentTimeMillis();
+		TimerWheel wheel = new TimerWheel(10, 4);
+		int[] count = new int[1];
+		for (int i = 0; i < 100; i++) {
+			wheel.schedule(i * 7, () -> count[0]++);
+		}
+		wheel.advance(t0 + 10000);
+		assertEquals(100, count[0]);
+		wheel.advance(t0 + 20000);
+		assertEquals(100, count[0]);
+	}
+
+	@Test
+	public void scheduledByAnExpiredTask() {
+		long t0 = System.currentTimeMillis();
+		TimerWheel wheel = new TimerWheel(10, 16);
+		List<String> fired = new ArrayList<String>();
+		wheel.schedule(0, () -> wheel.schedule(0, () -> fired.add("next")));
+		wheel.advance(t0 + 20);
+		assertEquals(List.of(), fired);
+		wheel.advance(t0 + 40);
+		assertEquals(List.of("next"), fired);
+	}
+}
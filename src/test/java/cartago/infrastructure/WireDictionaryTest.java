@@ -0,0 +1,148 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cartago.ArtifactObsProperty;
+import cartago.Op;
+import io.vertx.core.json.JsonObject;
+
+public class WireDictionaryTest {
+
+	@Test
+	public void defineThenReference() {
+		WireDictionary out = new WireDictionary();
+		WireDictionary in = new WireDictionary();
+
+		Object first = out.encodeString("count");
+		assertTrue(first instanceof JsonObject);
+		assertEquals("count", in.decodeString(first));
+
+		Object second = out.encodeString("count");
+		assertEquals(0, second);
+		assertEquals("count", in.decodeString(second));
+
+		Object other = out.encodeString("inc");
+		assertEquals(1, (int) ((JsonObject) other).getInteger("@"));
+		assertEquals("inc", in.decodeString(other));
+		assertEquals("count", in.decodeString(out.encodeString("count")));
+	}
+
+	@Test
+	public void encoderAppliedOnFirstOccurrenceOnly() {
+		WireDictionary out = new WireDictionary();
+		int[] calls = new int[1];
+		for (int i = 0; i < 10; i++) {
+			out.encode("k", k -> { calls[0]++; return k.toUpperCase(); });
+		}
+		assertEquals(1, calls[0]);
+	}
+
+	@Test
+	public void definitionsSurviveTheWireCodecs() {
+		for (WireCodec codec: new WireCodec[] { WireCodec.JSON, WireCodec.BINARY }) {
+			WireDictionary out = new WireDictionary();
+			WireDictionary in = new WireDictionary();
+			for (int i = 0; i < 3; i++) {
+				JsonObject frame = new JsonObject().put("a", out.encodeString("a")).put("b", out.encodeString("b"));
+				JsonObject res = WireCodec.decode(codec.encode(frame));
+				assertEquals("a", in.decodeString(res.getValue("a")));
+				assertEquals("b", in.decodeString(res.getValue("b")));
+			}
+		}
+	}
+
+	@Test
+	public void fullDictionarySendsValuesInFull() {
+		WireDictionary out = new WireDictionary();
+		WireDictionary in = new WireDictionary();
+		for (int i = 0; i < WireDictionary.DEFAULT_MAX_ENTRIES; i++) {
+			assertEquals("v" + i, in.decodeString(out.encodeString("v" + i)));
+		}
+		Object full = out.encodeString("extra");
+		assertEquals("extra", full);
+		assertEquals("extra", out.encodeString("extra"));
+		assertEquals("extra", in.decodeString(full));
+
+		/* entries defined before keep being referenced */
+		Object last = out.encodeString("v" + (WireDictionary.DEFAULT_MAX_ENTRIES - 1));
+		assertEquals(WireDictionary.DEFAULT_MAX_ENTRIES - 1, last);
+		assertEquals("v" + (WireDictionary.DEFAULT_MAX_ENTRIES - 1), in.decodeString(last));
+	}
+
+	/* entries are defined by the encoders in the order the decoders read them */
+	@Test
+	public void operationsAndDeltasDefineInOrder() {
+		WireDictionary out = new WireDictionary();
+		WireDictionary in = new WireDictionary();
+		Op op = JsonUtil.toOp(JsonUtil.toJson(new Op("inc", 1, "x"), out, true), in);
+		assertEquals("inc", op.getName());
+		assertEquals(1, op.getParamValues()[0]);
+
+		ObsPropertyDeltas sender = new ObsPropertyDeltas();
+		ObsPropertyDeltas receiver = new ObsPropertyDeltas();
+		ArtifactObsProperty[] first = { new ArtifactObsProperty("count_1", 1, "count", new Object[] { 1, "a" }) };
+		receiver.decodeChanged(sender.encodeChanged(first, out, true, null), in);
+		ArtifactObsProperty[] next = { new ArtifactObsProperty("count_1", 1, "count", new Object[] { 2.5, "a" }) };
+		ArtifactObsProperty[] res = receiver.decodeChanged(sender.encodeChanged(next, out, true, null), in);
+		assertEquals(2.5, res[0].getValues()[0]);
+		assertEquals("a", res[0].getValues()[1]);
+	}
+
+	/* a peer must not make the dictionary grow at will */
+	@Test(expected = IllegalArgumentException.class)
+	public void hostileIndex() {
+		new WireDictionary().decodeString(new JsonObject().put("@", 2000000000).put("v", "x"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeIndex() {
+		new WireDictionary().decodeString(new JsonObject().put("@", -1).put("v", "x"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void definitionOutOfOrder() {
+		WireDictionary in = new WireDictionary();
+		in.decodeString(new JsonObject().put("@", 0).put("v", "a"));
+		in.decodeString(new JsonObject().put("@", 2).put("v", "c"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void definitionBeyondTheSize() {
+		WireDictionary in = new WireDictionary(1);
+		in.decodeString(new JsonObject().put("@", 0).put("v", "a"));
+		in.decodeString(new JsonObject().put("@", 1).put("v", "b"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void undefinedReference() {
+		WireDictionary in = new WireDictionary();
+		in.decodeString(new JsonObject().put("@", 0).put("v", "a"));
+		in.decodeString(1);
+	}
+
+	@Test
+	public void nullValues() {
+		WireDictionary out = new WireDictionary(2);
+		assertNull(out.encodeString(null));
+		assertNull(new WireDictionary().decodeString(null));
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * CArtAgO - DISI, University of Bologna
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package cartago.infrastructure;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class WspKeysTest {
+
+	@Test
+	public void internedByName() {
+		WspKeys keys = new WspKeys();
+		WspKey key = keys.of("http://host:8080/main");
+		assertSame(key, keys.of("http://host:8080/main"));
+		assertSame(key, keys.lookup("http://host:8080/main"));
+		assertNull(keys.lookup("http://host:8080/other"));
+	}
+
+	@Test
+	public void renamedLeadsToTheSameKey() {
+		WspKeys keys = new WspKeys();
+		WspKey key = keys.of("http://host:0/main");
+		keys.rename(key, "http://host:8080/main");
+		assertSame(key, keys.lookup("http://host:8080/main"));
+		/* renamed again to the same name: nothing changes */
+		keys.rename(key, "http://host:8080/main");
+		assertSame(key, keys.lookup("http://host:0/main"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void renameToAnotherWorkspaceFails() {
+		WspKeys keys = new WspKeys();
+		WspKey key = keys.of("http://host:0/main");
+		keys.of("http://host:8080/main");
+		keys.rename(key, "http://host:8080/main");
+	}
+
+	@Test
+	public void removedWithAllItsNames() {
+		WspKeys keys = new WspKeys();
+		WspKey key = keys.of("http://host:0/main");
+		keys.rename(key, "http://host:8080/main");
+		WspKey other = keys.of("http://host:8080/other");
+		keys.remove(key);
+		assertNull(keys.lookup("http://host:0/main"));
+		assertNull(keys.lookup("http://host:8080/main"));
+		assertSame(other, keys.lookup("http://host:8080/other"));
+		assertEquals(1, keys.size());
+	}
+}